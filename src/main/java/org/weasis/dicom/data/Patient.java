@@ -62,6 +62,10 @@ public class Patient implements XmlDescription {
         return patientID;
     }
 
+    public String getIssuerOfPatientID() {
+        return issuerOfPatientID;
+    }
+
     public String getPatientName() {
         return patientName;
     }
@@ -10,13 +10,31 @@
  *******************************************************************************/
 package org.weasis.dicom.wado;
 
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.QueryOption;
+import org.dcm4che3.net.Status;
 import org.dcm4che3.net.service.QueryRetrieveLevel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,11 +43,32 @@ import org.weasis.dicom.data.SOPInstance;
 import org.weasis.dicom.data.Series;
 import org.weasis.dicom.data.Study;
 import org.weasis.dicom.op.CFind;
+import org.weasis.dicom.param.AdvancedParams;
+import org.weasis.dicom.param.DicomNode;
 import org.weasis.dicom.param.DicomParam;
 import org.weasis.dicom.param.DicomState;
 import org.weasis.dicom.util.DateUtil;
 import org.weasis.dicom.util.StringUtil;
 import org.weasis.dicom.wado.WadoQuery.WadoMessage;
+import org.weasis.dicom.wado.cache.InstanceCache;
+import org.weasis.dicom.wado.cache.InstanceCache.SeriesInstances;
+import org.weasis.dicom.wado.cache.NegativeCache;
+import org.weasis.dicom.wado.cache.SeriesCache;
+import org.weasis.dicom.wado.cache.StudyCache;
+import org.weasis.dicom.wado.cache.StudyTreeCache;
+import org.weasis.dicom.wado.net.AssociationPool;
+import org.weasis.dicom.wado.net.CircuitBreaker;
+import org.weasis.dicom.wado.net.CircuitBreaker.Call;
+import org.weasis.dicom.wado.net.ConcurrencyLimiter;
+import org.weasis.dicom.wado.net.ConcurrencyLimiter.Permit;
+import org.weasis.dicom.wado.net.FindResponseHandler;
+import org.weasis.dicom.wado.net.FindFuture;
+import org.weasis.dicom.wado.net.PacsCapabilities;
+import org.weasis.dicom.wado.net.PacsCluster;
+import org.weasis.dicom.wado.net.PacsCluster.Member;
+import org.weasis.dicom.wado.net.PooledAssociation;
+import org.weasis.dicom.wado.net.QidoClient;
+import org.weasis.dicom.wado.net.QueryRejectedException;
 
 public class BuildManifestDcmQR {
 
@@ -49,6 +88,16 @@ public class BuildManifestDcmQR {
             offset = 9;
         }
 
+        // lowerDateTime is the most recent date and upperDateTime the oldest date
+        Date lowerDateTime = parseDateTime(params.getLowerDateTime());
+        Date upperDateTime = parseDateTime(params.getUpperDateTime());
+        DicomParam[] studyDateTime = getStudyDateTimeRange(params, upperDateTime, lowerDateTime);
+        // Multi-valued matching key: the PACS returns the studies containing at least one of the modalities
+        boolean modalitiesMatching = isModalitiesInStudyMatching(params);
+        DicomParam modalitiesInStudy =
+            modalitiesMatching ? new DicomParam(Tag.ModalitiesInStudy, getModalities(params.getModalitiesInStudy()))
+                : new DicomParam(Tag.ModalitiesInStudy);
+
         DicomParam[] keysStudies = {
             // Matching Keys
             new DicomParam(Tag.PatientID, beginIndex < 0 ? patientID : patientID.substring(0, beginIndex)),
@@ -56,153 +105,245 @@ public class BuildManifestDcmQR {
             new DicomParam(Tag.IssuerOfPatientID, beginIndex < 0 ? null : patientID.substring(beginIndex + offset)),
             new DicomParam(Tag.PatientName, params.getPatientName()),
             new DicomParam(Tag.PatientBirthDate, params.getPatientBirthDate()), CFind.PatientSex,
-            CFind.ReferringPhysicianName, CFind.StudyDescription, CFind.StudyDate, CFind.StudyTime,
-            CFind.AccessionNumber, CFind.StudyInstanceUID, CFind.StudyID, new DicomParam(Tag.ModalitiesInStudy) };
-
-        DicomState state = CFind.process(params.getAdvancedParams(), params.getCallingNode(), params.getCalledNode(), 0,
-            QueryRetrieveLevel.STUDY, keysStudies);
+            CFind.ReferringPhysicianName, CFind.StudyDescription, studyDateTime[0], studyDateTime[1],
+            CFind.AccessionNumber, CFind.StudyInstanceUID, CFind.StudyID, modalitiesInStudy,
+            new DicomParam(Tag.NumberOfStudyRelatedSeries), new DicomParam(Tag.NumberOfStudyRelatedInstances) };
 
-        List<Attributes> studies = state.getDicomRSP();
+        List<Attributes> studies = query(params, QueryRetrieveLevel.STUDY, keysStudies);
         if (studies != null) {
-            Collections.sort(studies, new Comparator<Attributes>() {
+            // The studies of the patient can answer the next requests by study
+            StudyCache cache = params.getStudyCache();
+            if (cache != null) {
+                cache.putStudies(params.getCalledNode(), studies);
+            }
+            filterStudies(params, studies, modalitiesMatching);
+            fillSeries(params, studies);
+        }
+        return null;
+    }
 
-                @Override
-                public int compare(Attributes o1, Attributes o2) {
-                    Date date1 = o1.getDate(Tag.StudyDate);
-                    Date date2 = o2.getDate(Tag.StudyDate);
-                    if (date1 != null && date2 != null) {
-                        // inverse time
-                        int rep = date2.compareTo(date1);
-                        if (rep == 0) {
-                            Date time1 = o1.getDate(Tag.StudyTime);
-                            Date time2 = o2.getDate(Tag.StudyTime);
-                            if (time1 != null && time2 != null) {
-                                // inverse time
-                                return time2.compareTo(time1);
-                            }
-                        } else {
-                            return rep;
+    /**
+     * Sorts the studies of a patient by date (the most recent first) and keeps the studies matching the IID parameters
+     * (date range, most recent results, modalities and keywords).
+     *
+     * @param modalitiesMatching
+     *            true when the studies have already been matched on ModalitiesInStudy
+     */
+    static void filterStudies(DicomQueryParams params, List<Attributes> studies, boolean modalitiesMatching) {
+        Collections.sort(studies, new Comparator<Attributes>() {
+
+            @Override
+            public int compare(Attributes o1, Attributes o2) {
+                Date date1 = o1.getDate(Tag.StudyDate);
+                Date date2 = o2.getDate(Tag.StudyDate);
+                if (date1 != null && date2 != null) {
+                    // inverse time
+                    int rep = date2.compareTo(date1);
+                    if (rep == 0) {
+                        Date time1 = o1.getDate(Tag.StudyTime);
+                        Date time2 = o2.getDate(Tag.StudyTime);
+                        if (time1 != null && time2 != null) {
+                            // inverse time
+                            return time2.compareTo(time1);
                         }
                     } else {
-                        if (date1 == null) {
-                            return 1;
-                        }
-                        if (date2 == null) {
-                            return -1;
-                        }
+                        return rep;
                     }
-                    return 0;
-                }
-            });
-
-            if (StringUtil.hasText(params.getLowerDateTime())) {
-                Date lowerDateTime = null;
-                try {
-                    lowerDateTime = javax.xml.bind.DatatypeConverter.parseDateTime(params.getLowerDateTime()).getTime();
-                } catch (Exception e) {
-                    LOGGER.error("Cannot parse date: {}", params.getLowerDateTime());
-                }
-                if (lowerDateTime != null) {
-                    for (int i = studies.size() - 1; i >= 0; i--) {
-                        Attributes s = studies.get(i);
-                        Date date = DateUtil.dateTime(s.getDate(Tag.StudyDate), s.getDate(Tag.StudyTime));
-                        int rep = date.compareTo(lowerDateTime);
-                        if (rep > 0) {
-                            studies.remove(i);
-                        }
+                } else {
+                    if (date1 == null) {
+                        return 1;
+                    }
+                    if (date2 == null) {
+                        return -1;
                     }
                 }
+                return 0;
             }
+        });
 
-            if (StringUtil.hasText(params.getUpperDateTime())) {
-                Date upperDateTime = null;
-                try {
-                    upperDateTime = javax.xml.bind.DatatypeConverter.parseDateTime(params.getUpperDateTime()).getTime();
-                } catch (Exception e) {
-                    LOGGER.error("Cannot parse date: {}", params.getUpperDateTime());
+        /*
+         * The date range has been sent as matching keys, but some PACS ignore range matching and StudyTime is not
+         * sent as a range without combined date and time matching. Filter again to match exactly the IID
+         * parameters.
+         */
+        Date lowerDateTime = parseDateTime(params.getLowerDateTime());
+        Date upperDateTime = parseDateTime(params.getUpperDateTime());
+        if (lowerDateTime != null) {
+            for (int i = studies.size() - 1; i >= 0; i--) {
+                Attributes s = studies.get(i);
+                Date date = DateUtil.dateTime(s.getDate(Tag.StudyDate), s.getDate(Tag.StudyTime));
+                int rep = date.compareTo(lowerDateTime);
+                if (rep > 0) {
+                    studies.remove(i);
                 }
-                if (upperDateTime != null) {
-                    for (int i = studies.size() - 1; i >= 0; i--) {
-                        Attributes s = studies.get(i);
-                        Date date = DateUtil.dateTime(s.getDate(Tag.StudyDate), s.getDate(Tag.StudyTime));
-                        int rep = date.compareTo(upperDateTime);
-                        if (rep < 0) {
-                            studies.remove(i);
-                        }
-                    }
+            }
+        }
+
+        if (upperDateTime != null) {
+            for (int i = studies.size() - 1; i >= 0; i--) {
+                Attributes s = studies.get(i);
+                Date date = DateUtil.dateTime(s.getDate(Tag.StudyDate), s.getDate(Tag.StudyTime));
+                int rep = date.compareTo(upperDateTime);
+                if (rep < 0) {
+                    studies.remove(i);
                 }
             }
+        }
 
-            if (StringUtil.hasText(params.getMostRecentResults())) {
-                int recent = StringUtil.getInteger(params.getMostRecentResults());
-                if (recent > 0) {
-                    for (int i = studies.size() - 1; i >= recent; i--) {
-                        studies.remove(i);
-                    }
+        if (StringUtil.hasText(params.getMostRecentResults())) {
+            int recent = StringUtil.getInteger(params.getMostRecentResults());
+            if (recent > 0) {
+                for (int i = studies.size() - 1; i >= recent; i--) {
+                    studies.remove(i);
                 }
             }
+        }
 
-            if (StringUtil.hasText(params.getModalitiesInStudy())) {
-                for (int i = studies.size() - 1; i >= 0; i--) {
-                    Attributes s = studies.get(i);
-                    String m = s.getString(Tag.ModalitiesInStudy);
-                    if (StringUtil.hasText(m)) {
-                        boolean remove = true;
-                        for (String mod : params.getModalitiesInStudy().split(",")) {
-                            if (m.indexOf(mod) != -1) {
-                                remove = false;
-                                break;
-                            }
+        // Filter only when the PACS does not support the matching on ModalitiesInStudy
+        if (!modalitiesMatching && StringUtil.hasText(params.getModalitiesInStudy())) {
+            for (int i = studies.size() - 1; i >= 0; i--) {
+                Attributes s = studies.get(i);
+                String m = s.getString(Tag.ModalitiesInStudy);
+                if (StringUtil.hasText(m)) {
+                    boolean remove = true;
+                    for (String mod : params.getModalitiesInStudy().split(",")) {
+                        if (m.indexOf(mod) != -1) {
+                            remove = false;
+                            break;
                         }
+                    }
 
-                        if (remove) {
-                            studies.remove(i);
-                        }
+                    if (remove) {
+                        studies.remove(i);
                     }
                 }
-
             }
 
-            if (StringUtil.hasText(params.getKeywords())) {
-                String[] keys = params.getKeywords().split(",");
-                for (int i = 0; i < keys.length; i++) {
-                    keys[i] = StringUtil.deAccent(keys[i].trim().toUpperCase());
-                }
+        }
 
-                study: for (int i = studies.size() - 1; i >= 0; i--) {
-                    Attributes s = studies.get(i);
-                    String desc = StringUtil.deAccent(s.getString(Tag.StudyDescription, "").toUpperCase());
+        if (StringUtil.hasText(params.getKeywords())) {
+            String[] keys = params.getKeywords().split(",");
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = StringUtil.deAccent(keys[i].trim().toUpperCase());
+            }
 
-                    for (int j = 0; j < keys.length; j++) {
-                        if (desc.contains(keys[j])) {
-                            continue study;
-                        }
+            study: for (int i = studies.size() - 1; i >= 0; i--) {
+                Attributes s = studies.get(i);
+                String desc = StringUtil.deAccent(s.getString(Tag.StudyDescription, "").toUpperCase());
+
+                for (int j = 0; j < keys.length; j++) {
+                    if (desc.contains(keys[j])) {
+                        continue study;
                     }
-                    studies.remove(i);
                 }
+                studies.remove(i);
             }
+        }
+    }
 
-            for (Attributes studyDataSet : studies) {
-                fillSeries(params, studyDataSet);
+    private static boolean isModalitiesInStudyMatching(DicomQueryParams params) {
+        if (!StringUtil.hasText(params.getModalitiesInStudy())) {
+            return false;
+        }
+        // The configuration overrides the capability detected by the probe
+        String matching = params.getProperties().getProperty("pacs.capability.modalitiesInStudy");
+        if (matching != null) {
+            return StringUtil.getNULLtoFalse(matching);
+        }
+        PacsCapabilities capabilities = params.getCapabilities();
+        return capabilities != null && Boolean.TRUE.equals(capabilities.getModalitiesInStudyMatching());
+    }
+
+    private static String[] getModalities(String modalities) {
+        List<String> list = new ArrayList<String>();
+        for (String mod : modalities.split(",")) {
+            if (StringUtil.hasText(mod)) {
+                list.add(mod.trim());
+            }
+        }
+        return list.toArray(new String[list.size()]);
+    }
+
+    private static Date parseDateTime(String dateTime) {
+        if (StringUtil.hasText(dateTime)) {
+            try {
+                return javax.xml.bind.DatatypeConverter.parseDateTime(dateTime).getTime();
+            } catch (Exception e) {
+                LOGGER.error("Cannot parse date: {}", dateTime);
             }
         }
         return null;
     }
 
+    /**
+     * Builds the StudyDate and StudyTime matching keys with DICOM range matching. StudyTime is a range only when
+     * combined date and time matching has been negotiated, otherwise StudyDate and StudyTime would be matched
+     * independently. When the PACS does not support range matching, the dates are only filtered on the results.
+     *
+     * @param from
+     *            the oldest date or null
+     * @param to
+     *            the most recent date or null
+     * @return the StudyDate and StudyTime keys
+     */
+    private static DicomParam[] getStudyDateTimeRange(DicomQueryParams params, Date from, Date to) {
+        PacsCapabilities capabilities = params.getCapabilities();
+        if ((from == null && to == null)
+            || (capabilities != null && Boolean.FALSE.equals(capabilities.getRangeMatching()))) {
+            return new DicomParam[] { CFind.StudyDate, CFind.StudyTime };
+        }
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd");
+        String date = (from == null ? "" : dateFormat.format(from)) + "-" + (to == null ? "" : dateFormat.format(to));
+
+        AdvancedParams advancedParams = params.getAdvancedParams();
+        if (advancedParams != null && advancedParams.getQueryOptions() != null
+            && advancedParams.getQueryOptions().contains(QueryOption.DATETIME)) {
+            SimpleDateFormat timeFormat = new SimpleDateFormat("HHmmss");
+            String time =
+                (from == null ? "" : timeFormat.format(from)) + "-" + (to == null ? "" : timeFormat.format(to));
+            return new DicomParam[] { new DicomParam(Tag.StudyDate, date), new DicomParam(Tag.StudyTime, time) };
+        }
+        return new DicomParam[] { new DicomParam(Tag.StudyDate, date), CFind.StudyTime };
+    }
+
     public static List<Patient> buildFromStudyInstanceUID(DicomQueryParams params, String studyInstanceUID)
         throws Exception {
         if (!StringUtil.hasText(studyInstanceUID)) {
             return null;
         }
-        DicomParam[] keysStudies = {
-            // Matching Keys
-            new DicomParam(Tag.StudyInstanceUID, studyInstanceUID),
-            // Return Keys
-            CFind.PatientID, CFind.IssuerOfPatientID, CFind.PatientName, CFind.PatientBirthDate, CFind.PatientSex,
-            CFind.ReferringPhysicianName, CFind.StudyDescription, CFind.StudyDate, CFind.StudyTime,
-            CFind.AccessionNumber, CFind.StudyID };
+        return buildFromStudyInstanceUIDs(params, Collections.singletonList(studyInstanceUID));
+    }
 
-        fillStudy(params, keysStudies);
+    /**
+     * Queries the studies with List of UID matching, the number of UIDs by query is limited by
+     * {@link DicomQueryParams#getUidListSize()}.
+     */
+    public static List<Patient> buildFromStudyInstanceUIDs(DicomQueryParams params, List<String> studyInstanceUIDs)
+        throws Exception {
+        List<Attributes> studies = new ArrayList<Attributes>();
+        List<String> uncached = new ArrayList<String>();
+        StudyCache cache = params.getStudyCache();
+        for (String uid : getKnownIDs(params, DicomQueryParams.StudyUID, getUIDs(studyInstanceUIDs))) {
+            List<Attributes> cached = cache == null ? null : cache.getByStudyInstanceUID(params.getCalledNode(), uid);
+            if (cached == null) {
+                uncached.add(uid);
+            } else {
+                studies.addAll(cached);
+            }
+        }
+        for (String[] uids : splitUIDs(uncached, params.getUidListSize())) {
+            List<Attributes> result =
+                query(params, QueryRetrieveLevel.STUDY, getStudyKeys(new DicomParam(Tag.StudyInstanceUID, uids)));
+            if (result != null) {
+                if (cache != null) {
+                    cache.putStudies(params.getCalledNode(), result);
+                }
+                putUnknownIDs(params, DicomQueryParams.StudyUID, uids, Tag.StudyInstanceUID, result);
+                studies.addAll(result);
+            }
+        }
+        // The series and instance queries of all the studies are dispatched together
+        fillSeries(params, studies);
 
         return params.getPatients();
     }
@@ -212,15 +353,39 @@ public class BuildManifestDcmQR {
         if (!StringUtil.hasText(accessionNumber)) {
             return null;
         }
-        DicomParam[] keysStudies = {
-            // Matching Keys
-            new DicomParam(Tag.AccessionNumber, accessionNumber),
-            // Return Keys
-            CFind.PatientID, CFind.IssuerOfPatientID, CFind.PatientName, CFind.PatientBirthDate, CFind.PatientSex,
-            CFind.ReferringPhysicianName, CFind.StudyDescription, CFind.StudyDate, CFind.StudyTime,
-            CFind.StudyInstanceUID, CFind.StudyID };
+        return buildFromStudyAccessionNumbers(params, Collections.singletonList(accessionNumber));
+    }
 
-        fillStudy(params, keysStudies);
+    /**
+     * List of UID matching does not apply to Accession Number, so there is one query by number at STUDY level. The
+     * series and instance queries of all the studies are dispatched together.
+     */
+    public static List<Patient> buildFromStudyAccessionNumbers(DicomQueryParams params, List<String> accessionNumbers)
+        throws Exception {
+        List<Attributes> studies = new ArrayList<Attributes>();
+        StudyCache cache = params.getStudyCache();
+        for (String accessionNumber : getKnownIDs(params, DicomQueryParams.AccessionNumber, accessionNumbers)) {
+            if (StringUtil.hasText(accessionNumber)) {
+                List<Attributes> result =
+                    cache == null ? null : cache.getByAccessionNumber(params.getCalledNode(), accessionNumber);
+                if (result == null) {
+                    result =
+                        query(params, QueryRetrieveLevel.STUDY,
+                            getStudyKeys(new DicomParam(Tag.AccessionNumber, accessionNumber)));
+                    if (result != null && cache != null) {
+                        cache.putAccessionNumber(params.getCalledNode(), accessionNumber, result);
+                    }
+                    if (result != null) {
+                        putUnknownIDs(params, DicomQueryParams.AccessionNumber, new String[] { accessionNumber },
+                            Tag.AccessionNumber, result);
+                    }
+                }
+                if (result != null) {
+                    studies.addAll(result);
+                }
+            }
+        }
+        fillSeries(params, studies);
 
         return params.getPatients();
     }
@@ -230,27 +395,48 @@ public class BuildManifestDcmQR {
         if (!StringUtil.hasText(seriesInstanceUID)) {
             return null;
         }
+        return buildFromSeriesInstanceUIDs(params, Collections.singletonList(seriesInstanceUID));
+    }
 
-        DicomParam[] keysSeries = {
-            // Matching Keys
-            new DicomParam(Tag.SeriesInstanceUID, seriesInstanceUID),
-            // Return Keys
-            CFind.PatientID, CFind.IssuerOfPatientID, CFind.PatientName, CFind.PatientBirthDate, CFind.PatientSex,
-            CFind.ReferringPhysicianName, CFind.StudyDescription, CFind.StudyDate, CFind.StudyTime,
-            CFind.AccessionNumber, CFind.StudyInstanceUID, CFind.StudyID, CFind.Modality, CFind.SeriesNumber,
-            CFind.SeriesDescription };
-
-        DicomState state = CFind.process(params.getAdvancedParams(), params.getCallingNode(), params.getCalledNode(), 0,
-            QueryRetrieveLevel.SERIES, keysSeries);
+    /**
+     * Queries the series with List of UID matching, the number of UIDs by query is limited by
+     * {@link DicomQueryParams#getUidListSize()}.
+     */
+    public static List<Patient> buildFromSeriesInstanceUIDs(DicomQueryParams params, List<String> seriesInstanceUIDs)
+        throws Exception {
+        // Group the series by study for getting the patient and the study only once
+        Map<String, List<Attributes>> seriesByStudy = new LinkedHashMap<String, List<Attributes>>();
+        List<String> uidList = new ArrayList<String>();
+        for (String uid : getKnownIDs(params, DicomQueryParams.SeriesUID, getUIDs(seriesInstanceUIDs))) {
+            Attributes dataset = getCachedSeries(params, uid);
+            if (dataset == null) {
+                uidList.add(uid);
+            } else {
+                groupBy(seriesByStudy, Tag.StudyInstanceUID, Collections.singletonList(dataset));
+            }
+        }
+        for (String[] uids : splitUIDs(uidList, params.getUidListSize())) {
+            DicomParam[] keysSeries = {
+                // Matching Keys
+                new DicomParam(Tag.SeriesInstanceUID, uids),
+                // Return Keys
+                CFind.PatientID, CFind.IssuerOfPatientID, CFind.PatientName, CFind.PatientBirthDate,
+                CFind.PatientSex, CFind.ReferringPhysicianName, CFind.StudyDescription, CFind.StudyDate,
+                CFind.StudyTime, CFind.AccessionNumber, CFind.StudyInstanceUID, CFind.StudyID, CFind.Modality,
+                CFind.SeriesNumber, CFind.SeriesDescription, new DicomParam(Tag.NumberOfSeriesRelatedInstances) };
+            List<Attributes> series = query(params, QueryRetrieveLevel.SERIES, keysSeries);
+            if (series != null) {
+                putUnknownIDs(params, DicomQueryParams.SeriesUID, uids, Tag.SeriesInstanceUID, series);
+                groupBy(seriesByStudy, Tag.StudyInstanceUID, series);
+            }
+        }
 
-        List<Attributes> series = state.getDicomRSP();
-        if (series != null && series.size() > 0) {
+        resolveParents(params, seriesByStudy.values());
+        for (List<Attributes> series : seriesByStudy.values()) {
             Attributes dataset = series.get(0);
             Patient patient = getPatient(params, dataset);
             Study study = getStudy(patient, dataset);
-            for (Attributes seriesDataset : series) {
-                fillInstance(params, seriesDataset, study);
-            }
+            fillInstances(params, series, study);
         }
 
         return params.getPatients();
@@ -261,64 +447,331 @@ public class BuildManifestDcmQR {
         if (!StringUtil.hasText(sopInstanceUID)) {
             return null;
         }
+        return buildFromSopInstanceUIDs(params, Collections.singletonList(sopInstanceUID));
+    }
 
-        DicomParam[] keysInstance = {
-            // Matching Keys
-            new DicomParam(Tag.SOPInstanceUID, sopInstanceUID),
-            // Return Keys
-            CFind.PatientID, CFind.IssuerOfPatientID, CFind.PatientName, CFind.PatientBirthDate, CFind.PatientSex,
-            CFind.ReferringPhysicianName, CFind.StudyDescription, CFind.StudyDate, CFind.StudyTime,
-            CFind.AccessionNumber, CFind.StudyInstanceUID, CFind.StudyID, CFind.SeriesInstanceUID, CFind.Modality,
-            CFind.SeriesNumber, CFind.SeriesDescription };
-
-        DicomState state = CFind.process(params.getAdvancedParams(), params.getCallingNode(), params.getCalledNode(), 0,
-            QueryRetrieveLevel.IMAGE, keysInstance);
+    /**
+     * Queries the instances with List of UID matching, the number of UIDs by query is limited by
+     * {@link DicomQueryParams#getUidListSize()}.
+     */
+    public static List<Patient> buildFromSopInstanceUIDs(DicomQueryParams params, List<String> sopInstanceUIDs)
+        throws Exception {
+        // Group the instances by series for getting the patient, the study and the series only once
+        Map<String, List<Attributes>> instancesBySeries = new LinkedHashMap<String, List<Attributes>>();
+        List<String> uidList = getKnownIDs(params, DicomQueryParams.ObjectUID, getUIDs(sopInstanceUIDs));
+        for (String[] uids : splitUIDs(uidList, params.getUidListSize())) {
+            DicomParam[] keysInstance = {
+                // Matching Keys
+                new DicomParam(Tag.SOPInstanceUID, uids),
+                // Return Keys
+                CFind.PatientID, CFind.IssuerOfPatientID, CFind.PatientName, CFind.PatientBirthDate,
+                CFind.PatientSex, CFind.ReferringPhysicianName, CFind.StudyDescription, CFind.StudyDate,
+                CFind.StudyTime, CFind.AccessionNumber, CFind.StudyInstanceUID, CFind.StudyID,
+                CFind.SeriesInstanceUID, CFind.Modality, CFind.SeriesNumber, CFind.SeriesDescription,
+                CFind.InstanceNumber };
+            List<Attributes> instances = query(params, QueryRetrieveLevel.IMAGE, keysInstance);
+            if (instances != null) {
+                putUnknownIDs(params, DicomQueryParams.ObjectUID, uids, Tag.SOPInstanceUID, instances);
+                groupBy(instancesBySeries, Tag.SeriesInstanceUID, instances);
+            }
+        }
 
-        List<Attributes> instances = state.getDicomRSP();
-        if (instances != null && instances.size() > 0) {
+        resolveParents(params, instancesBySeries.values());
+        for (List<Attributes> instances : instancesBySeries.values()) {
             Attributes dataset = instances.get(0);
             Patient patient = getPatient(params, dataset);
             Study study = getStudy(patient, dataset);
-            Series s = getSeries(study, dataset);
-            for (Attributes instanceDataSet : instances) {
-                String sopUID = instanceDataSet.getString(Tag.SOPInstanceUID);
-                if (sopUID != null) {
-                    SOPInstance sop = new SOPInstance(sopUID);
-                    sop.setInstanceNumber(instanceDataSet.getString(Tag.InstanceNumber));
-                    s.addSOPInstance(sop);
+            addInstances(getSeries(study, dataset), instances);
+        }
+        return params.getPatients();
+    }
+
+    /**
+     * The series are revalidated with the numbers of related series and instances of the study only when the study
+     * has been received from the PACS in this request. Otherwise (e.g. study from the study cache), the series are used
+     * only when they are not older than the time to live of the study cache.
+     *
+     * @return the series of the study from the tree cache or null when they must be queried
+     */
+    private static List<Attributes> getCachedSeries(DicomQueryParams params, Attributes studyDataSet) {
+        StudyTreeCache cache = params.getStudyTreeCache();
+        if (cache == null) {
+            return null;
+        }
+        String studyInstanceUID = studyDataSet.getString(Tag.StudyInstanceUID);
+        if (params.isFetchedStudy(studyInstanceUID)) {
+            return cache.getSeries(params.getCalledNode(), studyDataSet);
+        }
+        StudyCache studyCache = params.getStudyCache();
+        return studyCache == null ? null : cache.getSeries(params.getCalledNode(), studyInstanceUID,
+            studyCache.getTimeToLive());
+    }
+
+    /**
+     * Gets a series from the tree of its study, the study comes from the study cache.
+     *
+     * @return the study and series attributes or null when the series must be queried
+     */
+    private static Attributes getCachedSeries(DicomQueryParams params, String seriesInstanceUID) {
+        SeriesCache seriesCache = params.getSeriesCache();
+        StudyCache studyCache = params.getStudyCache();
+        if (seriesCache == null || studyCache == null || params.getStudyTreeCache() == null) {
+            return null;
+        }
+        Attributes seriesDataset = seriesCache.getSeries(params.getCalledNode(), seriesInstanceUID);
+        String studyInstanceUID = seriesDataset == null ? null : seriesDataset.getString(Tag.StudyInstanceUID);
+        if (studyInstanceUID == null) {
+            return null;
+        }
+        List<Attributes> studies = studyCache.getByStudyInstanceUID(params.getCalledNode(), studyInstanceUID);
+        if (studies == null || studies.isEmpty()) {
+            return null;
+        }
+        Attributes studyDataSet = studies.get(0);
+        List<Attributes> series = getCachedSeries(params, studyDataSet);
+        if (series != null) {
+            for (Attributes s : series) {
+                if (seriesInstanceUID.equals(s.getString(Tag.SeriesInstanceUID))) {
+                    studyDataSet.addAll(s);
+                    return studyDataSet;
                 }
             }
         }
-        return params.getPatients();
+        return null;
     }
 
-    private static WadoMessage fillStudy(DicomQueryParams params, DicomParam[] keysStudies) throws Exception {
-        DicomState state = CFind.process(params.getAdvancedParams(), params.getCallingNode(), params.getCalledNode(), 0,
-            QueryRetrieveLevel.STUDY, keysStudies);
+    /**
+     * Puts the series of a study in the tree cache and each series in the series cache.
+     */
+    private static void putSeries(DicomQueryParams params, String studyInstanceUID, List<Attributes> series) {
+        StudyTreeCache cache = params.getStudyTreeCache();
+        if (cache != null) {
+            cache.putSeries(params.getCalledNode(), studyInstanceUID, series);
+        }
+        SeriesCache seriesCache = params.getSeriesCache();
+        if (seriesCache != null) {
+            for (Attributes s : series) {
+                String seriesInstanceUID = s.getString(Tag.SeriesInstanceUID);
+                if (seriesInstanceUID != null) {
+                    Attributes attrs = new Attributes(s);
+                    attrs.setString(Tag.StudyInstanceUID, VR.UI, studyInstanceUID);
+                    seriesCache.putSeries(params.getCalledNode(), seriesInstanceUID, attrs);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the IDs without those for which the PACS has recently returned no result
+     */
+    private static List<String> getKnownIDs(DicomQueryParams params, String type, List<String> ids) {
+        NegativeCache cache = params.getNegativeCache();
+        if (cache == null) {
+            return ids;
+        }
+        List<String> list = new ArrayList<String>(ids.size());
+        for (String id : ids) {
+            if (cache.isUnknown(params.getCalledNode(), type, id)) {
+                LOGGER.debug("Skip the query of the unknown {}: {}", type, id);
+            } else {
+                list.add(id);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Puts in the negative cache the IDs of the query without response. The result must be the one of a query ended
+     * with a Success status, {@link #query} throws an exception for the other statuses (failure, cancel, refused
+     * association), so an incomplete result is never cached.
+     */
+    private static void putUnknownIDs(DicomQueryParams params, String type, String[] ids, int tag,
+        List<Attributes> result) {
+        NegativeCache cache = params.getNegativeCache();
+        if (cache == null) {
+            return;
+        }
+        Set<String> found = new HashSet<String>();
+        for (Attributes dataset : result) {
+            String val = dataset.getString(tag);
+            if (val != null) {
+                found.add(val.trim());
+            }
+        }
+        for (String id : ids) {
+            if (!found.contains(id.trim())) {
+                cache.putUnknown(params.getCalledNode(), type, id);
+            }
+        }
+    }
+
+    /**
+     * @return the UIDs without the empty and duplicated values
+     */
+    private static List<String> getUIDs(List<String> uids) {
+        Set<String> values = new LinkedHashSet<String>();
+        for (String uid : uids) {
+            if (StringUtil.hasText(uid)) {
+                values.add(uid.trim());
+            }
+        }
+        return new ArrayList<String>(values);
+    }
+
+    /**
+     * Splits the UIDs into arrays of at most maxSize values, the empty and duplicated values are removed.
+     */
+    private static List<String[]> splitUIDs(List<String> uids, int maxSize) {
+        int size = Math.max(1, maxSize);
+        List<String> list = getUIDs(uids);
+        List<String[]> chunks = new ArrayList<String[]>();
+        for (int i = 0; i < list.size(); i += size) {
+            List<String> chunk = list.subList(i, Math.min(i + size, list.size()));
+            chunks.add(chunk.toArray(new String[chunk.size()]));
+        }
+        return chunks;
+    }
+
+    private static void groupBy(Map<String, List<Attributes>> map, int tag, List<Attributes> datasets) {
+        for (Attributes dataset : datasets) {
+            String uid = dataset.getString(tag, "");
+            List<Attributes> list = map.get(uid);
+            if (list == null) {
+                list = new ArrayList<Attributes>();
+                map.put(uid, list);
+            }
+            list.add(dataset);
+        }
+    }
 
-        List<Attributes> studies = state.getDicomRSP();
+    private static WadoMessage fillStudy(DicomQueryParams params, DicomParam[] keysStudies) throws Exception {
+        List<Attributes> studies = query(params, QueryRetrieveLevel.STUDY, keysStudies);
         if (studies != null) {
+            fillSeries(params, studies);
+        }
+        return null;
+    }
+
+    private static void fillSeries(DicomQueryParams params, List<Attributes> studyList) throws Exception {
+        /*
+         * Several responses can contain the same study (e.g. several accession numbers of the same study). The
+         * streaming handlers also require a single query by study, as they modify the Study or Series objects.
+         */
+        List<Attributes> studies = new ArrayList<Attributes>(studyList.size());
+        Set<String> studyUIDs = new HashSet<String>();
+        for (Attributes studyDataSet : studyList) {
+            if (studyUIDs.add(studyDataSet.getString(Tag.StudyInstanceUID, ""))) {
+                studies.add(studyDataSet);
+            }
+        }
+        if (params.getQueryStrategy() == QueryStrategy.RELATIONAL) {
+            fillStudyInstances(params, studies);
+            return;
+        }
+        // The number of instance queries is not known yet
+        QueryDispatcher dispatcher = QueryDispatcher.getDispatcher(params, Integer.MAX_VALUE);
+        if (dispatcher == null) {
             for (Attributes studyDataSet : studies) {
                 fillSeries(params, studyDataSet);
             }
+            return;
+        }
+
+        /*
+         * The C-FIND queries are executed simultaneously, but the responses are merged in the current thread and in
+         * the same order as the sequential mode, so the Patient/Study/Series objects are never accessed concurrently
+         * and the result is always the same.
+         */
+        boolean failed = true;
+        try {
+            List<Future<List<Attributes>>> seriesQueries = new ArrayList<Future<List<Attributes>>>(studies.size());
+            List<List<Attributes>> cachedSeries = new ArrayList<List<Attributes>>(studies.size());
+            for (Attributes studyDataSet : studies) {
+                String studyInstanceUID = studyDataSet.getString(Tag.StudyInstanceUID);
+                List<Attributes> cached = getCachedSeries(params, studyDataSet);
+                cachedSeries.add(cached);
+                seriesQueries.add(StringUtil.hasText(studyInstanceUID) && cached == null ? dispatcher.submit(
+                    QueryRetrieveLevel.SERIES, getSeriesKeys(studyInstanceUID)) : null);
+            }
+
+            List<List<Future<List<Attributes>>>> instanceQueries = new ArrayList<List<Future<List<Attributes>>>>();
+            for (int i = 0; i < studies.size(); i++) {
+                Attributes studyDataSet = studies.get(i);
+                List<Attributes> series = cachedSeries.get(i);
+                if (series == null) {
+                    series = getResult(params, seriesQueries.get(i));
+                    if (series != null) {
+                        putSeries(params, studyDataSet.getString(Tag.StudyInstanceUID), series);
+                    }
+                }
+                if (series != null) {
+                    // Get patient from each study in case IssuerOfPatientID is different
+                    Patient patient = getPatient(params, studyDataSet);
+                    Study study = getStudy(patient, studyDataSet);
+                    // Submit the instance queries of this study without waiting the series queries of the next studies
+                    instanceQueries.add(submitInstanceQueries(params, dispatcher, series, study));
+                }
+            }
+
+            for (List<Future<List<Attributes>>> queries : instanceQueries) {
+                mergeInstances(params, queries);
+            }
+            failed = false;
+        } finally {
+            dispatcher.close(failed);
         }
-        return null;
     }
 
-    private static void fillSeries(DicomQueryParams params, Attributes studyDataSet) throws Exception {
-        String studyInstanceUID = studyDataSet.getString(Tag.StudyInstanceUID);
-        if (StringUtil.hasText(studyInstanceUID)) {
+    /**
+     * Relational strategy: one query at IMAGE level by study, the series are grouped from the instance responses.
+     */
+    private static void fillStudyInstances(DicomQueryParams params, List<Attributes> studies) throws Exception {
+        QueryDispatcher dispatcher = QueryDispatcher.getDispatcher(params, studies.size());
+        if (dispatcher == null) {
+            for (Attributes studyDataSet : studies) {
+                String studyInstanceUID = studyDataSet.getString(Tag.StudyInstanceUID);
+                if (StringUtil.hasText(studyInstanceUID)) {
+                    query(params, QueryRetrieveLevel.IMAGE, getStudyInstanceHandler(params, studyDataSet),
+                        getStudyInstanceKeys(studyInstanceUID));
+                }
+            }
+            return;
+        }
 
-            DicomParam[] keysSeries = {
-                // Matching Keys
-                new DicomParam(Tag.StudyInstanceUID, studyInstanceUID),
-                // Return Keys
-                CFind.SeriesInstanceUID, CFind.Modality, CFind.SeriesNumber, CFind.SeriesDescription };
+        boolean failed = true;
+        try {
+            List<Future<List<Attributes>>> queries = new ArrayList<Future<List<Attributes>>>(studies.size());
+            for (Attributes studyDataSet : studies) {
+                String studyInstanceUID = studyDataSet.getString(Tag.StudyInstanceUID);
+                // The study is created before sending the query, the handler is the only one to modify it until the
+                // end of the query
+                queries.add(StringUtil.hasText(studyInstanceUID) ? dispatcher.submit(QueryRetrieveLevel.IMAGE,
+                    getStudyInstanceHandler(params, studyDataSet), getStudyInstanceKeys(studyInstanceUID)) : null);
+            }
+            mergeInstances(params, queries);
+            failed = false;
+        } finally {
+            dispatcher.close(failed);
+        }
+    }
 
-            DicomState state = CFind.process(params.getAdvancedParams(), params.getCallingNode(),
-                params.getCalledNode(), 0, QueryRetrieveLevel.SERIES, keysSeries);
+    private static StudyInstanceHandler getStudyInstanceHandler(DicomQueryParams params, Attributes studyDataSet)
+        throws Exception {
+        // Get patient from each study in case IssuerOfPatientID is different
+        Patient patient = getPatient(params, studyDataSet);
+        return new StudyInstanceHandler(params, getStudy(patient, studyDataSet));
+    }
 
-            List<Attributes> series = state.getDicomRSP();
+    private static void fillSeries(DicomQueryParams params, Attributes studyDataSet) throws Exception {
+        String studyInstanceUID = studyDataSet.getString(Tag.StudyInstanceUID);
+        if (StringUtil.hasText(studyInstanceUID)) {
+            List<Attributes> series = getCachedSeries(params, studyDataSet);
+            if (series == null) {
+                series = query(params, QueryRetrieveLevel.SERIES, getSeriesKeys(studyInstanceUID));
+                if (series != null) {
+                    putSeries(params, studyInstanceUID, series);
+                }
+            }
             if (series != null) {
                 // Get patient from each study in case IssuerOfPatientID is different
                 Patient patient = getPatient(params, studyDataSet);
@@ -330,29 +783,659 @@ public class BuildManifestDcmQR {
         }
     }
 
+    private static void fillInstances(DicomQueryParams params, List<Attributes> series, Study study)
+        throws Exception {
+        QueryDispatcher dispatcher = QueryDispatcher.getDispatcher(params, series.size());
+        if (dispatcher == null) {
+            for (Attributes seriesDataset : series) {
+                fillInstance(params, seriesDataset, study);
+            }
+            return;
+        }
+
+        boolean failed = true;
+        try {
+            mergeInstances(params, submitInstanceQueries(params, dispatcher, series, study));
+            failed = false;
+        } finally {
+            dispatcher.close(failed);
+        }
+    }
+
     private static void fillInstance(DicomQueryParams params, Attributes seriesDataset, Study study) throws Exception {
         String serieInstanceUID = seriesDataset.getString(Tag.SeriesInstanceUID);
         if (StringUtil.hasText(serieInstanceUID)) {
-            DicomParam[] keysInstance = {
-                // Matching Keys
-                new DicomParam(Tag.StudyInstanceUID, study.getStudyInstanceUID()),
-                new DicomParam(Tag.SeriesInstanceUID, serieInstanceUID),
-                // Return Keys
-                CFind.SOPInstanceUID, CFind.InstanceNumber };
-            DicomState state = CFind.process(params.getAdvancedParams(), params.getCallingNode(),
-                params.getCalledNode(), 0, QueryRetrieveLevel.IMAGE, keysInstance);
+            Series series = getSeries(study, seriesDataset);
+            if (!addCachedInstances(params, seriesDataset, series)) {
+                query(params, QueryRetrieveLevel.IMAGE, getInstanceHandler(params, seriesDataset, series),
+                    getInstanceKeys(study.getStudyInstanceUID(), serieInstanceUID));
+            }
+        }
+    }
 
-            List<Attributes> instances = state.getDicomRSP();
-            if (instances != null) {
+    private static List<Future<List<Attributes>>> submitInstanceQueries(DicomQueryParams params,
+        QueryDispatcher dispatcher, List<Attributes> series, Study study) throws Exception {
+        List<Future<List<Attributes>>> futures = new ArrayList<Future<List<Attributes>>>(series.size());
+        for (Attributes seriesDataset : series) {
+            String serieInstanceUID = seriesDataset.getString(Tag.SeriesInstanceUID);
+            if (StringUtil.hasText(serieInstanceUID)) {
+                // The series is created before sending the query, the handler is the only one to modify it until
+                // the end of the query
                 Series s = getSeries(study, seriesDataset);
+                if (!addCachedInstances(params, seriesDataset, s)) {
+                    futures.add(dispatcher.submit(QueryRetrieveLevel.IMAGE,
+                        getInstanceHandler(params, seriesDataset, s),
+                        getInstanceKeys(study.getStudyInstanceUID(), serieInstanceUID)));
+                }
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * @return true if the instances of the cache have been added to the series, false if the instances must be
+     *         queried
+     */
+    private static boolean addCachedInstances(DicomQueryParams params, Attributes seriesDataset, Series series) {
+        InstanceCache cache = params.getInstanceCache();
+        int nbInstances = seriesDataset.getInt(Tag.NumberOfSeriesRelatedInstances, -1);
+        if (cache == null || nbInstances < 0) {
+            return false;
+        }
+        SeriesInstances instances =
+            cache.getInstances(params.getCalledNode(), series.getSeriesInstanceUID(), nbInstances);
+        if (instances == null) {
+            return false;
+        }
+        for (int i = 0; i < instances.size(); i++) {
+            SOPInstance sop = new SOPInstance(instances.getSopInstanceUID(i));
+            sop.setInstanceNumber(instances.getInstanceNumber(i));
+            series.addSOPInstance(sop);
+        }
+        return true;
+    }
+
+    private static InstanceHandler getInstanceHandler(DicomQueryParams params, Attributes seriesDataset,
+        Series series) {
+        InstanceCache cache = params.getInstanceCache();
+        int nbInstances = seriesDataset.getInt(Tag.NumberOfSeriesRelatedInstances, -1);
+        if (cache == null || nbInstances <= 0) {
+            return new InstanceHandler(params, series);
+        }
+        return new CachingInstanceHandler(params, series, cache, params.getCalledNode(), nbInstances);
+    }
+
+    /**
+     * Waits for the instance queries, the instances have been added to the series by the handlers.
+     */
+    private static void mergeInstances(DicomQueryParams params, List<Future<List<Attributes>>> instanceQueries)
+        throws Exception {
+        for (Future<List<Attributes>> future : instanceQueries) {
+            getResult(params, future);
+        }
+    }
+
+    private static void addInstances(Series series, List<Attributes> instances) {
+        for (Attributes instanceDataSet : instances) {
+            addInstance(series, instanceDataSet);
+        }
+    }
 
-                for (Attributes instanceDataSet : instances) {
-                    String sopUID = instanceDataSet.getString(Tag.SOPInstanceUID);
-                    if (sopUID != null) {
-                        SOPInstance sop = new SOPInstance(sopUID);
-                        sop.setInstanceNumber(instanceDataSet.getString(Tag.InstanceNumber));
-                        s.addSOPInstance(sop);
+    static void addInstance(Series series, Attributes instanceDataSet) {
+        String sopUID = instanceDataSet.getString(Tag.SOPInstanceUID);
+        if (sopUID != null) {
+            SOPInstance sop = new SOPInstance(sopUID);
+            sop.setInstanceNumber(instanceDataSet.getString(Tag.InstanceNumber));
+            series.addSOPInstance(sop);
+        }
+    }
+
+    /**
+     * The responses received after the build has been stopped are rejected, so the patient list can be serialized
+     * while the cancelled queries are still running.
+     */
+    private static void checkStopped(DicomQueryParams params) {
+        if (params.isStopped()) {
+            throw new CancellationException("The manifest build has been stopped");
+        }
+    }
+
+    /**
+     * Adds each instance response to the series and drops the dataset.
+     */
+    static class InstanceHandler implements FindResponseHandler {
+        protected final DicomQueryParams params;
+        protected final Series series;
+
+        InstanceHandler(DicomQueryParams params, Series series) {
+            this.params = params;
+            this.series = series;
+        }
+
+        @Override
+        public void handle(Attributes dataset) throws Exception {
+            synchronized (params.getBuildLock()) {
+                checkStopped(params);
+                addInstance(series, dataset);
+            }
+        }
+    }
+
+    /**
+     * Adds each instance response to the series and puts the instance list in the cache when the number of responses
+     * is equal to the Number of Series Related Instances.
+     */
+    static class CachingInstanceHandler extends InstanceHandler {
+        private final InstanceCache cache;
+        private final DicomNode node;
+        private final int nbInstances;
+        private final List<String> sopInstanceUIDs = new ArrayList<String>();
+        private final List<String> instanceNumbers = new ArrayList<String>();
+
+        CachingInstanceHandler(DicomQueryParams params, Series series, InstanceCache cache, DicomNode node,
+            int nbInstances) {
+            super(params, series);
+            this.cache = cache;
+            this.node = node;
+            this.nbInstances = nbInstances;
+        }
+
+        @Override
+        public void handle(Attributes dataset) throws Exception {
+            super.handle(dataset);
+            String sopUID = dataset.getString(Tag.SOPInstanceUID);
+            if (sopUID != null) {
+                sopInstanceUIDs.add(sopUID);
+                instanceNumbers.add(dataset.getString(Tag.InstanceNumber));
+                if (sopInstanceUIDs.size() == nbInstances) {
+                    cache.putInstances(node, series.getSeriesInstanceUID(), sopInstanceUIDs, instanceNumbers);
+                } else if (sopInstanceUIDs.size() == nbInstances + 1) {
+                    // The series has been modified since the SERIES level query
+                    cache.removeSeries(node, series.getSeriesInstanceUID());
+                }
+            }
+        }
+    }
+
+    /**
+     * Relational query at IMAGE level: adds each instance response to its series, the series are created on the fly.
+     */
+    static class StudyInstanceHandler implements FindResponseHandler {
+        private final DicomQueryParams params;
+        private final Study study;
+        private final Map<String, Series> seriesMap = new HashMap<String, Series>();
+
+        StudyInstanceHandler(DicomQueryParams params, Study study) {
+            this.params = params;
+            this.study = study;
+        }
+
+        @Override
+        public void handle(Attributes dataset) throws Exception {
+            String seriesUID = dataset.getString(Tag.SeriesInstanceUID);
+            if (seriesUID != null && dataset.getString(Tag.SOPInstanceUID) != null) {
+                synchronized (params.getBuildLock()) {
+                    checkStopped(params);
+                    Series s = seriesMap.get(seriesUID);
+                    if (s == null) {
+                        s = getSeries(study, dataset);
+                        seriesMap.put(seriesUID, s);
                     }
+                    addInstance(s, dataset);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the matching key and all the STUDY level return keys, the responses can be shared through the study
+     *         cache
+     */
+    private static DicomParam[] getStudyKeys(DicomParam matchingKey) {
+        DicomParam[] returnKeys =
+            { CFind.PatientID, CFind.IssuerOfPatientID, CFind.PatientName, CFind.PatientBirthDate, CFind.PatientSex,
+                CFind.ReferringPhysicianName, CFind.StudyDescription, CFind.StudyDate, CFind.StudyTime,
+                CFind.AccessionNumber, CFind.StudyInstanceUID, CFind.StudyID,
+                new DicomParam(Tag.NumberOfStudyRelatedSeries), new DicomParam(Tag.NumberOfStudyRelatedInstances) };
+        List<DicomParam> keys = new ArrayList<DicomParam>(returnKeys.length + 1);
+        // Matching Keys
+        keys.add(matchingKey);
+        // Return Keys
+        for (DicomParam p : returnKeys) {
+            if (p.getTag() != matchingKey.getTag()) {
+                keys.add(p);
+            }
+        }
+        return keys.toArray(new DicomParam[keys.size()]);
+    }
+
+    private static DicomParam[] getSeriesKeys(String studyInstanceUID) {
+        return new DicomParam[] {
+            // Matching Keys
+            new DicomParam(Tag.StudyInstanceUID, studyInstanceUID),
+            // Return Keys
+            CFind.SeriesInstanceUID, CFind.Modality, CFind.SeriesNumber, CFind.SeriesDescription,
+            new DicomParam(Tag.NumberOfSeriesRelatedInstances) };
+    }
+
+    private static DicomParam[] getStudyInstanceKeys(String studyInstanceUID) {
+        return new DicomParam[] {
+            // Matching Keys
+            new DicomParam(Tag.StudyInstanceUID, studyInstanceUID),
+            // Return Keys
+            CFind.SeriesInstanceUID, CFind.Modality, CFind.SeriesNumber, CFind.SeriesDescription, CFind.SOPInstanceUID,
+            CFind.InstanceNumber };
+    }
+
+    private static DicomParam[] getInstanceKeys(String studyInstanceUID, String serieInstanceUID) {
+        return new DicomParam[] {
+            // Matching Keys
+            new DicomParam(Tag.StudyInstanceUID, studyInstanceUID),
+            new DicomParam(Tag.SeriesInstanceUID, serieInstanceUID),
+            // Return Keys
+            CFind.SOPInstanceUID, CFind.InstanceNumber };
+    }
+
+    /**
+     * Waits for the result within the remaining time of the build. When the time is over, the query is cancelled (a
+     * C-CANCEL is sent for a pipelined query) and the dispatcher must be closed as failed.
+     */
+    private static List<Attributes> getResult(DicomQueryParams params, Future<List<Attributes>> future)
+        throws Exception {
+        if (future == null) {
+            return null;
+        }
+        try {
+            long remainingTime = params.getRemainingTime();
+            if (remainingTime == Long.MAX_VALUE) {
+                return future.get();
+            }
+            return future.get(remainingTime, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new TimeoutException("The time budget of the manifest build is over ("
+                + params.getBuildTimeout() + " ms)");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    static List<Attributes> query(DicomQueryParams params, QueryRetrieveLevel level, DicomParam... keys)
+        throws Exception {
+        return query(params, level, null, keys);
+    }
+
+    /**
+     * @param handler
+     *            the handler consuming each response as soon as it is received, null means the responses are returned
+     * @return the responses, an empty list when a handler is given
+     */
+    static List<Attributes> query(DicomQueryParams params, QueryRetrieveLevel level, FindResponseHandler handler,
+        DicomParam... keys) throws Exception {
+        QueryBatcher batcher = params.getQueryBatcher();
+        List<Attributes> result;
+        if (handler == null && batcher != null && batcher.isBatchable(params, level, keys)) {
+            result = batcher.query(params, level, keys);
+        } else {
+            result = execute(params, level, handler, keys);
+        }
+        if (level == QueryRetrieveLevel.STUDY && result != null) {
+            // These studies can revalidate the series of the tree cache
+            params.addFetchedStudies(result);
+        }
+        return result;
+    }
+
+    /**
+     * Sends the query to the PACS. The permit of the concurrency limiter is taken before the authorization of the
+     * circuit breaker, so the time waiting for a permit is not measured as a slow answer of the PACS.
+     */
+    static List<Attributes> execute(DicomQueryParams params, QueryRetrieveLevel level, FindResponseHandler handler,
+        DicomParam... keys) throws Exception {
+        params.checkDeadline();
+        DicomNode calledNode = params.getCalledNode();
+        CircuitBreaker breaker = params.getCircuitBreaker();
+        if (breaker != null && breaker.isOpen(calledNode)) {
+            // Fail fast, without waiting for a permit
+            return rejectOpenCircuit(params, calledNode, level, handler, keys);
+        }
+        ConcurrencyLimiter limiter = params.getConcurrencyLimiter();
+        Permit permit = limiter == null ? null : limiter.acquire(calledNode, params.getRemainingTime());
+        Call call = null;
+        if (breaker != null) {
+            call = breaker.tryAcquire(calledNode);
+            if (call == null) {
+                if (permit != null) {
+                    permit.releaseUnmeasured();
+                }
+                return rejectOpenCircuit(params, calledNode, level, handler, keys);
+            }
+        }
+        Boolean success = null;
+        try {
+            List<Attributes> result = find(params, level, handler, keys);
+            success = Boolean.TRUE;
+            return result;
+        } catch (Exception e) {
+            if (isPacsFailure(e)) {
+                success = Boolean.FALSE;
+            }
+            throw e;
+        } finally {
+            if (success == null) {
+                // Stopped by the build or rejected locally, not a failure of the PACS
+                if (call != null) {
+                    call.ignore();
+                }
+                if (permit != null) {
+                    permit.releaseUnmeasured();
+                }
+            } else {
+                if (call != null) {
+                    call.record(success);
+                }
+                if (permit != null) {
+                    permit.release(success);
+                }
+            }
+        }
+    }
+
+    private static List<Attributes> rejectOpenCircuit(DicomQueryParams params, DicomNode calledNode,
+        QueryRetrieveLevel level, FindResponseHandler handler, DicomParam... keys) throws Exception {
+        if (params.failover(calledNode)) {
+            LOGGER.info("The circuit of {} is open, the next queries of the build are sent to {}",
+                PacsCapabilities.getNodeKey(calledNode), PacsCapabilities.getNodeKey(params.getCalledNode()));
+            return execute(params, level, handler, keys);
+        }
+        // Fail fast instead of waiting for the timeouts of a PACS which does not respond
+        throw new QueryRejectedException("The circuit of " + PacsCapabilities.getNodeKey(calledNode)
+            + " is open, the query is rejected");
+    }
+
+    /**
+     * @return false when the query has not been sent (local limit), or has been stopped by the build (cancellation,
+     *         time budget of the build), true for the errors of the PACS (failure status, network or association
+     *         error)
+     */
+    static boolean isPacsFailure(Exception e) {
+        return !(e instanceof QueryRejectedException || e instanceof TimeoutException
+            || e instanceof CancellationException || e instanceof InterruptedException);
+    }
+
+    private static List<Attributes> find(DicomQueryParams params, QueryRetrieveLevel level,
+        FindResponseHandler handler, DicomParam... keys) throws Exception {
+        QidoClient qido = params.getQidoClient();
+        if (qido != null) {
+            return qido.query(level, handler, params.getRemainingTime(), keys);
+        }
+        PacsCluster cluster = params.getPacsCluster();
+        if (cluster == null) {
+            return find(params, params.getCalledNode(), level, handler, keys);
+        }
+        if (cluster.isHedging() && params.getAssociationPool() != null) {
+            return hedgedFind(params, cluster, level, handler, keys);
+        }
+        Member member = cluster.acquire(null);
+        long startTime = System.currentTimeMillis();
+        boolean success = false;
+        try {
+            List<Attributes> result = find(params, member.getNode(), level, handler, keys);
+            success = true;
+            return result;
+        } finally {
+            cluster.release(member, level, System.currentTimeMillis() - startTime, success);
+        }
+    }
+
+    /**
+     * Sends the query to the least busy node of the cluster and, when there is no answer within the usual latency (95th
+     * percentile) of this node, sends a duplicate query to another node. The first answer is kept and the other query
+     * is cancelled. As the responses can come from both queries, they are collected before being given to the handler.
+     */
+    private static List<Attributes> hedgedFind(DicomQueryParams params, PacsCluster cluster,
+        QueryRetrieveLevel level, FindResponseHandler handler, DicomParam... keys) throws Exception {
+        Semaphore completed = new Semaphore(0);
+        List<HedgedQuery> queries = new ArrayList<HedgedQuery>(2);
+        HedgedQuery winner = null;
+        try {
+            // The first query is allowed by the circuit breaker and the concurrency limiter in execute()
+            HedgedQuery first = new HedgedQuery(params, cluster, cluster.acquire(null), level, null, null);
+            queries.add(first);
+            first.send(completed, keys);
+            long hedgeDelay = cluster.getHedgeDelay(first.member, level);
+            Exception error = null;
+            while (winner == null) {
+                int pending = 0;
+                for (HedgedQuery q : queries) {
+                    if (!q.consumed) {
+                        pending++;
+                    }
+                }
+                if (pending == 0) {
+                    throw error;
+                }
+                boolean hedge = hedgeDelay >= 0 && queries.size() == 1;
+                long remainingTime = params.getRemainingTime();
+                long wait = hedge ? Math.min(hedgeDelay, remainingTime) : remainingTime;
+                boolean answered;
+                if (wait == Long.MAX_VALUE) {
+                    completed.acquire();
+                    answered = true;
+                } else {
+                    answered = completed.tryAcquire(wait, TimeUnit.MILLISECONDS);
+                }
+                if (answered) {
+                    for (HedgedQuery q : queries) {
+                        if (!q.consumed && q.future.isDone()) {
+                            q.consumed = true;
+                            try {
+                                q.future.get();
+                                winner = q;
+                                break;
+                            } catch (ExecutionException e) {
+                                Throwable cause = e.getCause();
+                                error = cause instanceof Exception ? (Exception) cause : e;
+                            }
+                        }
+                    }
+                } else if (hedge && params.getRemainingTime() > 0) {
+                    // The duplicate query is an additional load, it is sent only when the PACS accepts more queries
+                    CircuitBreaker breaker = params.getCircuitBreaker();
+                    Call call = breaker == null ? null : breaker.tryAcquire(params.getCalledNode());
+                    ConcurrencyLimiter limiter = params.getConcurrencyLimiter();
+                    Permit permit =
+                        limiter == null || (breaker != null && call == null) ? null : limiter.tryAcquire(params
+                            .getCalledNode());
+                    if ((breaker != null && call == null) || (limiter != null && permit == null)) {
+                        if (call != null) {
+                            call.ignore();
+                        }
+                        LOGGER.debug("No duplicate query, the circuit is open or the limit is reached");
+                        hedgeDelay = -1L;
+                        continue;
+                    }
+                    Member other = cluster.acquire(first.member);
+                    HedgedQuery second = new HedgedQuery(params, cluster, other, level, call, permit);
+                    queries.add(second);
+                    try {
+                        second.send(completed, keys);
+                        cluster.addHedge(first.member);
+                        LOGGER.debug("No answer from {} after {} ms, the query is sent to {}", new Object[] {
+                            PacsCapabilities.getNodeKey(first.member.getNode()), hedgeDelay,
+                            PacsCapabilities.getNodeKey(other.getNode()) });
+                    } catch (Exception e) {
+                        second.consumed = true;
+                        LOGGER.warn("Cannot send the duplicate query to {}: {}",
+                            PacsCapabilities.getNodeKey(other.getNode()), e.getMessage());
+                    }
+                } else {
+                    throw new TimeoutException("The time budget of the manifest build is over ("
+                        + params.getBuildTimeout() + " ms)");
+                }
+            }
+        } finally {
+            for (HedgedQuery q : queries) {
+                q.close(q == winner);
+            }
+        }
+
+        List<Attributes> result = winner.future.get();
+        if (handler == null) {
+            return result;
+        }
+        for (Attributes dataset : result) {
+            handler.handle(dataset);
+        }
+        return Collections.emptyList();
+    }
+
+    private static List<Attributes> find(DicomQueryParams params, DicomNode calledNode, QueryRetrieveLevel level,
+        FindResponseHandler handler, DicomParam... keys) throws Exception {
+        AssociationPool pool = params.getAssociationPool();
+        if (pool != null) {
+            PooledAssociation as = pool.borrow(params.getCallingNode(), calledNode,
+                params.getAdvancedParams(), params.getConnectionOptionsKey(), params.getRemainingTime());
+            FindFuture future = null;
+            try {
+                // When the time is over, the query is cancelled and the association is aborted
+                future = as.cfindAsync(level, handler, keys);
+                return getResult(params, future);
+            } finally {
+                // A failure status leaves the association usable
+                if (future != null && future.hasFinalResponse() && as.isReady()) {
+                    pool.release(as);
+                } else {
+                    pool.invalidate(as);
+                }
+            }
+        }
+
+        /*
+         * CFind.process collects all the responses before returning, it cannot be interrupted by the time budget. The
+         * handler is called only at the end of the query, so the responses are not streamed without the pool.
+         */
+        DicomState state =
+            CFind.process(params.getAdvancedParams(), params.getCallingNode(), calledNode, 0, level, keys);
+        if (state.getStatus() != Status.Success) {
+            // Association refused, failure status... the responses are not the complete result
+            throw new IOException("C-FIND at " + level + " level with " + calledNode.getAet() + " ended with status "
+                + Integer.toHexString(state.getStatus()) + ": " + state.getMessage());
+        }
+        List<Attributes> result = state.getDicomRSP();
+        if (handler == null || result == null) {
+            return result;
+        }
+        for (Attributes dataset : result) {
+            handler.handle(dataset);
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Resolves with List of UID matching the series and the studies missing in the responses of the groups (when the
+     * PACS does not return the Patient ID at SERIES or IMAGE level), so that getPatient() does not send one query by
+     * group.
+     *
+     * @param groups
+     *            the responses grouped by study or by series, only the first dataset of each group is considered
+     */
+    private static void resolveParents(DicomQueryParams params, Iterable<List<Attributes>> groups) throws Exception {
+        Set<String> seriesUIDs = new LinkedHashSet<String>();
+        for (List<Attributes> group : groups) {
+            Attributes dataset = group.get(0);
+            String seriesInstanceUID = dataset.getString(Tag.SeriesInstanceUID);
+            if (!dataset.contains(Tag.PatientID) && !dataset.contains(Tag.StudyInstanceUID)
+                && StringUtil.hasText(seriesInstanceUID)
+                && getParent(params, QueryRetrieveLevel.SERIES, seriesInstanceUID) == null) {
+                seriesUIDs.add(seriesInstanceUID);
+            }
+        }
+        for (String[] uids : splitUIDs(new ArrayList<String>(seriesUIDs), params.getUidListSize())) {
+            queryParents(params, QueryRetrieveLevel.SERIES, uids);
+        }
+
+        Set<String> studyUIDs = new LinkedHashSet<String>();
+        for (List<Attributes> group : groups) {
+            Attributes dataset = group.get(0);
+            if (!dataset.contains(Tag.PatientID)) {
+                String studyInstanceUID = dataset.getString(Tag.StudyInstanceUID);
+                if (studyInstanceUID == null) {
+                    Attributes seriesDataset =
+                        getParent(params, QueryRetrieveLevel.SERIES, dataset.getString(Tag.SeriesInstanceUID, ""));
+                    studyInstanceUID = seriesDataset == null ? null : seriesDataset.getString(Tag.StudyInstanceUID);
+                }
+                if (StringUtil.hasText(studyInstanceUID)
+                    && getParent(params, QueryRetrieveLevel.STUDY, studyInstanceUID) == null) {
+                    studyUIDs.add(studyInstanceUID);
+                }
+            }
+        }
+        for (String[] uids : splitUIDs(new ArrayList<String>(studyUIDs), params.getUidListSize())) {
+            queryParents(params, QueryRetrieveLevel.STUDY, uids);
+        }
+    }
+
+    /**
+     * @return a copy of the series or the study resolved in the current request or in the cache, null if unknown
+     */
+    private static Attributes getParent(DicomQueryParams params, QueryRetrieveLevel level, String uid) {
+        Attributes dataset = params.getParent(level, uid);
+        if (dataset == null) {
+            if (level == QueryRetrieveLevel.SERIES) {
+                SeriesCache cache = params.getSeriesCache();
+                dataset = cache == null ? null : cache.getSeries(params.getCalledNode(), uid);
+            } else {
+                StudyCache cache = params.getStudyCache();
+                List<Attributes> studies =
+                    cache == null ? null : cache.getByStudyInstanceUID(params.getCalledNode(), uid);
+                dataset = studies == null || studies.isEmpty() ? null : studies.get(0);
+            }
+            if (dataset == null) {
+                return null;
+            }
+            params.putParent(level, uid, dataset);
+        }
+        return new Attributes(dataset);
+    }
+
+    /**
+     * Queries the series or the studies by UID and keeps them in the current request and in the cache.
+     */
+    private static void queryParents(DicomQueryParams params, QueryRetrieveLevel level, String[] uids)
+        throws Exception {
+        if (level == QueryRetrieveLevel.SERIES) {
+            DicomParam[] keysSeries = {
+                // Matching Keys
+                new DicomParam(Tag.SeriesInstanceUID, uids),
+                // Return Keys
+                CFind.StudyInstanceUID, CFind.Modality, CFind.SeriesNumber, CFind.SeriesDescription };
+            List<Attributes> series = query(params, QueryRetrieveLevel.SERIES, keysSeries);
+            SeriesCache cache = params.getSeriesCache();
+            for (Attributes dataset : series) {
+                String uid = dataset.getString(Tag.SeriesInstanceUID);
+                if (uid != null) {
+                    params.putParent(level, uid, dataset);
+                    if (cache != null) {
+                        cache.putSeries(params.getCalledNode(), uid, dataset);
+                    }
+                }
+            }
+        } else {
+            List<Attributes> studies =
+                query(params, QueryRetrieveLevel.STUDY, getStudyKeys(new DicomParam(Tag.StudyInstanceUID, uids)));
+            StudyCache cache = params.getStudyCache();
+            if (cache != null) {
+                cache.putStudies(params.getCalledNode(), studies);
+            }
+            for (Attributes dataset : studies) {
+                String uid = dataset.getString(Tag.StudyInstanceUID);
+                if (uid != null) {
+                    params.putParent(level, uid, dataset);
                 }
             }
         }
@@ -372,41 +1455,30 @@ public class BuildManifestDcmQR {
                 if (!StringUtil.hasText(seriesInstanceUID)) {
                     throw new Exception("Cannot get Series Instance UID with C-Find");
                 }
-                DicomParam[] keysSeries = {
-                    // Matching Keys
-                    new DicomParam(Tag.SeriesInstanceUID, patientDataset.getString(Tag.SeriesInstanceUID)),
-                    // Return Keys
-                    CFind.StudyInstanceUID, CFind.Modality, CFind.SeriesNumber, CFind.SeriesDescription };
-
-                DicomState state = CFind.process(params.getAdvancedParams(), params.getCallingNode(),
-                    params.getCalledNode(), 0, QueryRetrieveLevel.SERIES, keysSeries);
-                List<Attributes> series = state.getDicomRSP();
-                if (series.isEmpty()) {
-                    throw new Exception("Get empty C-Find reply at Series level for " + seriesInstanceUID);
+                Attributes seriesDataset = getParent(params, QueryRetrieveLevel.SERIES, seriesInstanceUID);
+                if (seriesDataset == null) {
+                    queryParents(params, QueryRetrieveLevel.SERIES, new String[] { seriesInstanceUID });
+                    seriesDataset = getParent(params, QueryRetrieveLevel.SERIES, seriesInstanceUID);
+                    if (seriesDataset == null) {
+                        throw new Exception("Get empty C-Find reply at Series level for " + seriesInstanceUID);
+                    }
                 }
-                patientDataset.addAll(series.get(0));
+                patientDataset.addAll(seriesDataset);
             }
 
             String studyInstanceUID = patientDataset.getString(Tag.StudyInstanceUID);
             if (!StringUtil.hasText(studyInstanceUID)) {
                 throw new Exception("Cannot get Study Instance UID with C-Find");
             }
-            DicomParam[] keysStudies = {
-                // Matching Keys
-                new DicomParam(Tag.StudyInstanceUID, studyInstanceUID),
-                // Return Keys
-                CFind.PatientID, CFind.IssuerOfPatientID, CFind.PatientName, CFind.PatientBirthDate, CFind.PatientSex,
-                CFind.ReferringPhysicianName, CFind.StudyDescription, CFind.StudyDate, CFind.StudyTime,
-                CFind.AccessionNumber, CFind.StudyID };
-
-            DicomState state = CFind.process(params.getAdvancedParams(), params.getCallingNode(),
-                params.getCalledNode(), 0, QueryRetrieveLevel.STUDY, keysStudies);
-
-            List<Attributes> studies = state.getDicomRSP();
-            if (studies.isEmpty()) {
-                throw new Exception("Get empty C-Find reply at Study level for " + studyInstanceUID);
+            Attributes studyDataset = getParent(params, QueryRetrieveLevel.STUDY, studyInstanceUID);
+            if (studyDataset == null) {
+                queryParents(params, QueryRetrieveLevel.STUDY, new String[] { studyInstanceUID });
+                studyDataset = getParent(params, QueryRetrieveLevel.STUDY, studyInstanceUID);
+                if (studyDataset == null) {
+                    throw new Exception("Get empty C-Find reply at Study level for " + studyInstanceUID);
+                }
             }
-            patientDataset.addAll(studies.get(0));
+            patientDataset.addAll(studyDataset);
 
         }
         String id = patientDataset.getString(Tag.PatientID, "Unknown");
@@ -460,4 +1532,107 @@ public class BuildManifestDcmQR {
         return s;
     }
 
+    /**
+     * A query sent to one node of the cluster by {@link #hedgedFind}.
+     */
+    private static class HedgedQuery {
+        private final DicomQueryParams params;
+        private final PacsCluster cluster;
+        private final Member member;
+        private final QueryRetrieveLevel level;
+        // Circuit breaker call and concurrency limiter permit of a duplicate query, null for the first query
+        private final Call call;
+        private final Permit permit;
+        private PooledAssociation association;
+        private FindFuture future;
+        private long startTime;
+        private boolean consumed = false;
+
+        HedgedQuery(DicomQueryParams params, PacsCluster cluster, Member member, QueryRetrieveLevel level, Call call,
+            Permit permit) {
+            this.params = params;
+            this.cluster = cluster;
+            this.member = member;
+            this.level = level;
+            this.call = call;
+            this.permit = permit;
+        }
+
+        void send(final Semaphore completed, DicomParam... keys) throws Exception {
+            startTime = System.currentTimeMillis();
+            association =
+                params.getAssociationPool().borrow(params.getCallingNode(), member.getNode(),
+                    params.getAdvancedParams(), params.getConnectionOptionsKey(), params.getRemainingTime());
+            future = association.cfindAsync(level, keys);
+            future.addListener(new Runnable() {
+
+                @Override
+                public void run() {
+                    completed.release();
+                }
+            });
+        }
+
+        /**
+         * Gives back the association, the query of the loser is cancelled and its association returns to the pool
+         * when the PACS has acknowledged the cancellation.
+         */
+        void close(boolean winner) {
+            final AssociationPool pool = params.getAssociationPool();
+            if (future == null) {
+                releaseGate(Boolean.FALSE);
+                cluster.release(member, level, -1L, false);
+                if (association != null) {
+                    pool.invalidate(association);
+                }
+                return;
+            }
+            if (future.isDone()) {
+                cluster.release(member, level, winner ? System.currentTimeMillis() - startTime : -1L, isSuccess());
+            } else {
+                // The latency of a cancelled query is unknown
+                cluster.release(member, level, -1L, true);
+                future.cancel(true);
+            }
+            final PooledAssociation as = association;
+            future.addListener(new Runnable() {
+
+                @Override
+                public void run() {
+                    releaseGate(future.isCancelled() ? null : Boolean.valueOf(isSuccess()));
+                    // A query ended by a failure or a Cancel status leaves the association usable
+                    if (future.hasFinalResponse() && as.isReady()) {
+                        pool.release(as);
+                    } else {
+                        pool.invalidate(as);
+                    }
+                }
+            });
+        }
+
+        private boolean isSuccess() {
+            return future.isDone() && !future.isCancelled() && future.getError() == null;
+        }
+
+        /**
+         * @param success
+         *            the result of the duplicate query, null when it has been cancelled
+         */
+        private void releaseGate(Boolean success) {
+            if (call != null) {
+                if (success == null) {
+                    call.ignore();
+                } else {
+                    call.record(success);
+                }
+            }
+            if (permit != null) {
+                if (success == null) {
+                    permit.releaseUnmeasured();
+                } else {
+                    permit.release(success);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.wado;
+
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The default source querying the PACS with C-FIND (or QIDO-RS when configured).
+ */
+public class DicomManifestSource implements ManifestSource {
+
+    public static final String NAME = "dicom";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void init(Properties properties) {
+        // The services (pool, caches...) are created by the ManifestManager servlet
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release
+    }
+
+    @Override
+    public void buildFromPatientID(DicomQueryParams params, String patientID) throws Exception {
+        BuildManifestDcmQR.buildFromPatientID(params, patientID);
+    }
+
+    @Override
+    public void buildFromStudyInstanceUIDs(DicomQueryParams params, List<String> studyInstanceUIDs) throws Exception {
+        BuildManifestDcmQR.buildFromStudyInstanceUIDs(params, studyInstanceUIDs);
+    }
+
+    @Override
+    public void buildFromStudyAccessionNumbers(DicomQueryParams params, List<String> accessionNumbers)
+        throws Exception {
+        BuildManifestDcmQR.buildFromStudyAccessionNumbers(params, accessionNumbers);
+    }
+
+    @Override
+    public void buildFromSeriesInstanceUIDs(DicomQueryParams params, List<String> seriesInstanceUIDs)
+        throws Exception {
+        BuildManifestDcmQR.buildFromSeriesInstanceUIDs(params, seriesInstanceUIDs);
+    }
+
+    @Override
+    public void buildFromSopInstanceUIDs(DicomQueryParams params, List<String> sopInstanceUIDs) throws Exception {
+        BuildManifestDcmQR.buildFromSopInstanceUIDs(params, sopInstanceUIDs);
+    }
+}
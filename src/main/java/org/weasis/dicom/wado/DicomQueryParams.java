@@ -11,16 +11,37 @@
 package org.weasis.dicom.wado;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeoutException;
 
 import javax.servlet.http.HttpServletRequest;
 
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.net.service.QueryRetrieveLevel;
 import org.weasis.dicom.data.Patient;
 import org.weasis.dicom.param.AdvancedParams;
 import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.wado.cache.InstanceCache;
+import org.weasis.dicom.wado.cache.NegativeCache;
+import org.weasis.dicom.wado.cache.SeriesCache;
+import org.weasis.dicom.wado.cache.StudyCache;
+import org.weasis.dicom.wado.cache.StudyTreeCache;
+import org.weasis.dicom.wado.net.AssociationPool;
+import org.weasis.dicom.wado.net.CircuitBreaker;
+import org.weasis.dicom.wado.net.ConcurrencyLimiter;
+import org.weasis.dicom.wado.net.PacsCapabilities;
+import org.weasis.dicom.wado.net.PacsCluster;
+import org.weasis.dicom.wado.net.QidoClient;
+import org.weasis.servlet.ServletUtil;
 
 public class DicomQueryParams {
 
@@ -60,6 +81,36 @@ public class DicomQueryParams {
     private final String charsetEncoding;
     private final boolean acceptNoImage;
     private final Map<String, String[]> requestMap;
+    private final int queryConcurrency;
+    private final int uidListSize;
+    private final QueryStrategy queryStrategy;
+    private AssociationPool associationPool;
+    private String connectionOptionsKey;
+    private PacsCapabilities capabilities;
+    private StudyCache studyCache;
+    private InstanceCache instanceCache;
+    private NegativeCache negativeCache;
+    private SeriesCache seriesCache;
+    private StudyTreeCache studyTreeCache;
+    private QueryBatcher queryBatcher;
+    private ConcurrencyLimiter concurrencyLimiter;
+    private CircuitBreaker circuitBreaker;
+    private PacsCluster pacsCluster;
+    private QidoClient qidoClient;
+    private ManifestSource manifestSource;
+    private ExecutorService queryExecutor;
+    private ExecutorService federationExecutor;
+    private DicomQueryParams secondaryParams;
+    private volatile boolean failedOver = false;
+    private final List<DicomQueryParams> federatedParams = new ArrayList<DicomQueryParams>(2);
+    private long buildTimeout = 0L;
+    private long deadline = Long.MAX_VALUE;
+    private final Object buildLock = new Object();
+    private volatile boolean stopped = false;
+    // Series and studies resolved during this request, by level and UID
+    private final Map<String, Attributes> parents = new HashMap<String, Attributes>();
+    // Studies whose STUDY level response has been received from the PACS during this request
+    private final Set<String> fetchedStudies = new HashSet<String>();
 
     public DicomQueryParams(DicomNode callingNode, DicomNode calledNode, HttpServletRequest request,
         WadoParameters wadoParameters, String charsetEncoding, boolean acceptNoImage, AdvancedParams params,
@@ -76,6 +127,48 @@ public class DicomQueryParams {
         this.acceptNoImage = acceptNoImage;
         this.advancedParams = params;
         this.requestMap = new HashMap<String, String[]>(request.getParameterMap());
+        this.queryConcurrency = ServletUtil.getIntProperty(this.properties, "thread.query.concurrency", 1);
+        this.uidListSize = ServletUtil.getIntProperty(this.properties, "pacs.query.uid.list.size", 20);
+        this.queryStrategy = QueryStrategy.getStrategy(this.properties.getProperty("pacs.query.strategy"), null);
+    }
+
+    /**
+     * Creates the parameters of a query shared by several builds (e.g. a batch of queries): same connection and same
+     * services, but a new patient list, no parent and its own time budget.
+     *
+     * @param deadline
+     *            the time in milliseconds at which the query must be over, Long.MAX_VALUE means no limit
+     */
+    DicomQueryParams(DicomQueryParams params, long deadline) {
+        this.properties = params.properties;
+        this.patients = new ArrayList<Patient>();
+        this.callingNode = params.callingNode;
+        // The current PACS when the build has failed over to the secondary PACS
+        this.calledNode = params.getCalledNode();
+        this.wadoParameters = params.wadoParameters;
+        this.charsetEncoding = params.charsetEncoding;
+        this.acceptNoImage = params.acceptNoImage;
+        this.advancedParams = params.getAdvancedParams();
+        this.requestMap = new HashMap<String, String[]>(params.requestMap);
+        this.queryConcurrency = params.queryConcurrency;
+        this.uidListSize = params.uidListSize;
+        this.queryStrategy = params.queryStrategy;
+        this.associationPool = params.associationPool;
+        this.connectionOptionsKey = params.getConnectionOptionsKey();
+        this.capabilities = params.getCapabilities();
+        this.studyCache = params.studyCache;
+        this.instanceCache = params.instanceCache;
+        this.negativeCache = params.negativeCache;
+        this.seriesCache = params.seriesCache;
+        this.studyTreeCache = params.studyTreeCache;
+        this.concurrencyLimiter = params.concurrencyLimiter;
+        this.circuitBreaker = params.circuitBreaker;
+        this.pacsCluster = params.getPacsCluster();
+        this.qidoClient = params.getQidoClient();
+        this.queryExecutor = params.queryExecutor;
+        this.secondaryParams = params.failedOver ? null : params.secondaryParams;
+        this.deadline = deadline;
+        this.buildTimeout = deadline == Long.MAX_VALUE ? 0L : Math.max(1L, deadline - System.currentTimeMillis());
     }
 
     public List<Patient> getPatients() {
@@ -86,8 +179,11 @@ public class DicomQueryParams {
         return callingNode;
     }
 
+    /**
+     * @return the PACS queried by the build, the secondary PACS when the build has failed over
+     */
     public DicomNode getCalledNode() {
-        return calledNode;
+        return failedOver ? secondaryParams.calledNode : calledNode;
     }
 
     public WadoParameters getWadoParameters() {
@@ -103,13 +199,394 @@ public class DicomQueryParams {
     }
 
     public AdvancedParams getAdvancedParams() {
-        return advancedParams;
+        return failedOver ? secondaryParams.advancedParams : advancedParams;
     }
 
     public Properties getProperties() {
         return properties;
     }
 
+    /**
+     * @return the maximum number of C-FIND queries executed simultaneously for building one manifest (1 means
+     *         sequential queries)
+     */
+    public int getQueryConcurrency() {
+        return queryConcurrency;
+    }
+
+    /**
+     * @return the maximum number of UIDs in a List of UID matching query (1 means one query by UID)
+     */
+    public int getUidListSize() {
+        // The configuration overrides the capability detected by the probe
+        String matching = properties.getProperty("pacs.capability.uidList");
+        if (matching != null) {
+            return Boolean.valueOf(matching.trim()) ? uidListSize : 1;
+        }
+        PacsCapabilities capabilities = getCapabilities();
+        if (capabilities != null && Boolean.FALSE.equals(capabilities.getUidListMatching())) {
+            return 1;
+        }
+        return uidListSize;
+    }
+
+    /**
+     * @return the strategy of the configuration, otherwise the fastest strategy supported by the PACS
+     */
+    public QueryStrategy getQueryStrategy() {
+        if (queryStrategy != null) {
+            return queryStrategy;
+        }
+        PacsCapabilities capabilities = getCapabilities();
+        return capabilities != null && capabilities.isRelationalQueries() ? QueryStrategy.RELATIONAL
+            : QueryStrategy.HIERARCHICAL;
+    }
+
+    /**
+     * @return the capabilities detected by the probe or null when the PACS has never been probed
+     */
+    public PacsCapabilities getCapabilities() {
+        return failedOver ? secondaryParams.capabilities : capabilities;
+    }
+
+    public void setCapabilities(PacsCapabilities capabilities) {
+        this.capabilities = capabilities;
+    }
+
+    public AssociationPool getAssociationPool() {
+        return associationPool;
+    }
+
+    /**
+     * @param associationPool
+     *            the pool of associations used by the C-FIND queries, null means opening an association for each query
+     * @param connectionOptionsKey
+     *            a key identifying the AdvancedParams options (e.g. TLS configuration) in the pool
+     */
+    public void setAssociationPool(AssociationPool associationPool, String connectionOptionsKey) {
+        this.associationPool = associationPool;
+        this.connectionOptionsKey = connectionOptionsKey;
+    }
+
+    public String getConnectionOptionsKey() {
+        return failedOver ? secondaryParams.connectionOptionsKey : connectionOptionsKey;
+    }
+
+    /**
+     * @return the cache of the STUDY level responses or null when there is no cache
+     */
+    public StudyCache getStudyCache() {
+        return studyCache;
+    }
+
+    public void setStudyCache(StudyCache studyCache) {
+        this.studyCache = studyCache;
+    }
+
+    /**
+     * @return the cache of the instance lists by series or null when there is no cache
+     */
+    public InstanceCache getInstanceCache() {
+        return instanceCache;
+    }
+
+    public void setInstanceCache(InstanceCache instanceCache) {
+        this.instanceCache = instanceCache;
+    }
+
+    /**
+     * @return the cache of the IDs without result or null when there is no cache
+     */
+    public NegativeCache getNegativeCache() {
+        return negativeCache;
+    }
+
+    public void setNegativeCache(NegativeCache negativeCache) {
+        this.negativeCache = negativeCache;
+    }
+
+    /**
+     * @return the cache resolving the study of a series or null when there is no cache
+     */
+    public SeriesCache getSeriesCache() {
+        return seriesCache;
+    }
+
+    public void setSeriesCache(SeriesCache seriesCache) {
+        this.seriesCache = seriesCache;
+    }
+
+    public StudyTreeCache getStudyTreeCache() {
+        return studyTreeCache;
+    }
+
+    public void setStudyTreeCache(StudyTreeCache studyTreeCache) {
+        this.studyTreeCache = studyTreeCache;
+    }
+
+    /**
+     * @return the batcher merging the queries of different requests or null when the queries are not merged
+     */
+    public QueryBatcher getQueryBatcher() {
+        return queryBatcher;
+    }
+
+    public void setQueryBatcher(QueryBatcher queryBatcher) {
+        this.queryBatcher = queryBatcher;
+    }
+
+    /**
+     * @return the limiter of the simultaneous C-FIND queries by PACS or null when there is no limit
+     */
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    public void setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * @return the equivalent nodes of the called PACS or null when the queries are sent only to the called node
+     */
+    public PacsCluster getPacsCluster() {
+        return failedOver ? secondaryParams.pacsCluster : pacsCluster;
+    }
+
+    public void setPacsCluster(PacsCluster pacsCluster) {
+        this.pacsCluster = pacsCluster;
+    }
+
+    /**
+     * @return the source of the patients, null means the PACS is queried with {@link BuildManifestDcmQR}
+     */
+    public ManifestSource getManifestSource() {
+        return manifestSource;
+    }
+
+    public void setManifestSource(ManifestSource manifestSource) {
+        this.manifestSource = manifestSource;
+    }
+
+    /**
+     * @return the QIDO-RS client used instead of C-FIND or null
+     */
+    public QidoClient getQidoClient() {
+        return failedOver ? secondaryParams.qidoClient : qidoClient;
+    }
+
+    public void setQidoClient(QidoClient qidoClient) {
+        this.qidoClient = qidoClient;
+    }
+
+    /**
+     * @return the executor shared by all the builds for running the C-FIND queries in parallel or null when the
+     *         queries are sequential
+     */
+    public ExecutorService getQueryExecutor() {
+        return queryExecutor;
+    }
+
+    public void setQueryExecutor(ExecutorService queryExecutor) {
+        this.queryExecutor = queryExecutor;
+    }
+
+    /**
+     * @return the executor shared by all the builds for querying the federated archives or null when they are queried
+     *         sequentially
+     */
+    public ExecutorService getFederationExecutor() {
+        return federationExecutor;
+    }
+
+    public void setFederationExecutor(ExecutorService federationExecutor) {
+        this.federationExecutor = federationExecutor;
+    }
+
+    /**
+     * @return the parameters of the secondary PACS (own node, connection options and capabilities) or null
+     */
+    public DicomQueryParams getSecondaryParams() {
+        return secondaryParams;
+    }
+
+    public void setSecondaryParams(DicomQueryParams secondaryParams) {
+        this.secondaryParams = secondaryParams == this ? null : secondaryParams;
+    }
+
+    /**
+     * Sends the next queries of the build to the secondary PACS, the caches are then keyed by the secondary PACS. The
+     * WADO URL of the manifest remains the one of the PACS at the beginning of the build.
+     *
+     * @param node
+     *            the node whose circuit is open
+     * @return true if the query can be sent again to the secondary PACS, false when there is no secondary PACS or when
+     *         node is the secondary PACS
+     */
+    public synchronized boolean failover(DicomNode node) {
+        if (secondaryParams == null || node == secondaryParams.calledNode) {
+            return false;
+        }
+        failedOver = true;
+        return true;
+    }
+
+    public boolean isFailedOver() {
+        return failedOver;
+    }
+
+    /**
+     * @return the parameters of the other archives queried with the same request, their patients are merged into the
+     *         patients of these parameters
+     */
+    public List<DicomQueryParams> getFederatedParams() {
+        return federatedParams;
+    }
+
+    public void addFederatedParams(DicomQueryParams params) {
+        if (params != null && params != this) {
+            federatedParams.add(params);
+        }
+    }
+
+    public long getBuildTimeout() {
+        return buildTimeout;
+    }
+
+    /**
+     * Sets the time budget of the build from now.
+     *
+     * @param buildTimeout
+     *            the time in milliseconds, 0 or a negative value means no limit
+     */
+    public void setBuildTimeout(long buildTimeout) {
+        this.buildTimeout = buildTimeout;
+        this.deadline = buildTimeout > 0 ? System.currentTimeMillis() + buildTimeout : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the time in milliseconds at which the build must be over, Long.MAX_VALUE means no limit
+     */
+    long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @return the remaining time in milliseconds of the build (0 when the time is over)
+     */
+    public long getRemainingTime() {
+        if (deadline == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0L, deadline - System.currentTimeMillis());
+    }
+
+    /**
+     * @throws TimeoutException
+     *             when the time budget of the build is over
+     */
+    public void checkDeadline() throws TimeoutException {
+        if (getRemainingTime() <= 0) {
+            throw new TimeoutException("The time budget of the manifest build is over (" + buildTimeout + " ms)");
+        }
+    }
+
+    /**
+     * Stops the build: the responses of the queries still running are rejected by the handlers. When this method
+     * returns, the patient list is not modified anymore.
+     */
+    public void stop() {
+        synchronized (buildLock) {
+            stopped = true;
+        }
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * @return the lock held by the handlers when they add a response to the patient list
+     */
+    Object getBuildLock() {
+        return buildLock;
+    }
+
+    /**
+     * @return the series or the study already resolved in this request or null. The dataset must not be modified.
+     */
+    public Attributes getParent(QueryRetrieveLevel level, String uid) {
+        synchronized (parents) {
+            return parents.get(level.name() + "|" + uid.trim());
+        }
+    }
+
+    public void putParent(QueryRetrieveLevel level, String uid, Attributes dataset) {
+        synchronized (parents) {
+            parents.put(level.name() + "|" + uid.trim(), dataset);
+        }
+    }
+
+    /**
+     * Records the STUDY level responses received from the PACS (not from a cache), their numbers of related series and
+     * instances are up to date.
+     */
+    public void addFetchedStudies(List<Attributes> studies) {
+        synchronized (fetchedStudies) {
+            for (Attributes study : studies) {
+                String uid = study.getString(Tag.StudyInstanceUID);
+                if (uid != null) {
+                    fetchedStudies.add(uid.trim());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the STUDY level response of the study has been received from the PACS during this request
+     */
+    public boolean isFetchedStudy(String studyInstanceUID) {
+        synchronized (fetchedStudies) {
+            return studyInstanceUID != null && fetchedStudies.contains(studyInstanceUID.trim());
+        }
+    }
+
+    /**
+     * @return a key identifying the requests which build the same manifest: the PACS node, the time budget (which
+     *         depends on the servlet path) and all the HTTP parameters sorted by name and by value
+     */
+    public String getRequestKey() {
+        StringBuilder buf = new StringBuilder(PacsCapabilities.getNodeKey(calledNode));
+        // A request with a longer time budget must not get the manifest truncated by a shorter one
+        buf.append("&timeout=");
+        buf.append(buildTimeout);
+        for (String name : new TreeSet<String>(requestMap.keySet())) {
+            String[] values = requestMap.get(name);
+            List<String> list = new ArrayList<String>();
+            if (values != null) {
+                for (String val : values) {
+                    if (val != null) {
+                        list.add(val.trim());
+                    }
+                }
+            }
+            Collections.sort(list);
+            buf.append('&');
+            buf.append(name);
+            buf.append('=');
+            buf.append(list);
+        }
+        return buf.toString();
+    }
+
     public String getRequestType() {
         return getFirstParam(requestMap.get(RequestType));
     }
@@ -0,0 +1,426 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.wado;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.naming.InitialContext;
+import javax.sql.DataSource;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.ElementDictionary;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.dicom.data.Patient;
+import org.weasis.dicom.data.Series;
+import org.weasis.dicom.data.Study;
+import org.weasis.dicom.util.StringUtil;
+import org.weasis.servlet.ServletUtil;
+
+/**
+ * Reads the patients, studies, series and instances directly from the database of the archive, with one query joining
+ * the four tables by request (or by group of jdbc.in.list.size UIDs). The tables, the join columns and the column of
+ * each DICOM attribute (jdbc.column.[keyword]) are configurable, the default mapping is the dcm4chee 2.x schema.
+ */
+public class JdbcManifestSource implements ManifestSource {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JdbcManifestSource.class);
+
+    public static final String NAME = "jdbc";
+
+    private static final String[] ALIASES = { "p", "st", "se", "i" };
+    private static final int[][] TAGS = {
+        { Tag.PatientID, Tag.IssuerOfPatientID, Tag.PatientName, Tag.PatientBirthDate, Tag.PatientSex },
+        { Tag.StudyInstanceUID, Tag.StudyDescription, Tag.StudyDate, Tag.StudyTime, Tag.AccessionNumber, Tag.StudyID,
+            Tag.ReferringPhysicianName }, { Tag.SeriesInstanceUID, Tag.SeriesNumber, Tag.Modality, Tag.SeriesDescription },
+        { Tag.SOPInstanceUID, Tag.InstanceNumber } };
+    // yyyy-MM-dd HH:mm:ss.S, yyyy-MM-ddTHH:mm:ss, yyyyMMddHHmmss or only the date
+    private static final Pattern DATE_TIME_PATTERN = Pattern
+        .compile("(\\d{4})-?(\\d{2})-?(\\d{2})(?:[ T]?(\\d{2}):?(\\d{2})(?:[:]?(\\d{2}))?(?:\\.\\d*)?)?");
+    // HH:mm:ss.S or HHmmss
+    private static final Pattern TIME_PATTERN = Pattern.compile("(\\d{2}):?(\\d{2})(?:[:]?(\\d{2}))?(?:\\.\\d*)?");
+    private static final int[] REQUIRED_TAGS = { Tag.PatientID, Tag.StudyInstanceUID, Tag.SeriesInstanceUID,
+        Tag.SOPInstanceUID };
+
+    private static final Map<String, String> DEFAULT_COLUMNS = new HashMap<String, String>();
+    static {
+        DEFAULT_COLUMNS.put("PatientID", "pat_id");
+        DEFAULT_COLUMNS.put("IssuerOfPatientID", "pat_id_issuer");
+        DEFAULT_COLUMNS.put("PatientName", "pat_name");
+        DEFAULT_COLUMNS.put("PatientBirthDate", "pat_birthdate");
+        DEFAULT_COLUMNS.put("PatientSex", "pat_sex");
+        DEFAULT_COLUMNS.put("StudyInstanceUID", "study_iuid");
+        DEFAULT_COLUMNS.put("StudyDescription", "study_desc");
+        DEFAULT_COLUMNS.put("StudyDate", "study_datetime");
+        DEFAULT_COLUMNS.put("StudyTime", "study_datetime");
+        DEFAULT_COLUMNS.put("AccessionNumber", "accession_no");
+        DEFAULT_COLUMNS.put("StudyID", "study_id");
+        DEFAULT_COLUMNS.put("ReferringPhysicianName", "ref_physician");
+        DEFAULT_COLUMNS.put("SeriesInstanceUID", "series_iuid");
+        DEFAULT_COLUMNS.put("SeriesNumber", "series_no");
+        DEFAULT_COLUMNS.put("Modality", "modality");
+        DEFAULT_COLUMNS.put("SeriesDescription", "series_desc");
+        DEFAULT_COLUMNS.put("SOPInstanceUID", "sop_iuid");
+        DEFAULT_COLUMNS.put("InstanceNumber", "inst_no");
+    }
+
+    private final List<Column> columns = new ArrayList<Column>();
+    private final Map<Integer, String> expressions = new HashMap<Integer, String>();
+    private String select;
+    private DataSource dataSource;
+    private String url;
+    private String user;
+    private String password;
+    private int inListSize;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void init(Properties properties) throws Exception {
+        String driver = properties.getProperty("jdbc.driver");
+        if (StringUtil.hasText(driver)) {
+            // Drivers without service registration (JDBC 3)
+            Class.forName(driver.trim());
+        }
+        String jndiName = properties.getProperty("jdbc.datasource");
+        if (StringUtil.hasText(jndiName)) {
+            // Connection pool of the servlet container
+            dataSource = (DataSource) new InitialContext().lookup(jndiName.trim());
+        } else {
+            url = properties.getProperty("jdbc.url");
+            if (!StringUtil.hasText(url)) {
+                throw new IllegalArgumentException("jdbc.datasource or jdbc.url is required by the jdbc source");
+            }
+            user = properties.getProperty("jdbc.user");
+            password = properties.getProperty("jdbc.password");
+        }
+        inListSize = Math.max(1, ServletUtil.getIntProperty(properties, "jdbc.in.list.size", 500));
+
+        columns.clear();
+        expressions.clear();
+        StringBuilder buf = new StringBuilder("SELECT ");
+        for (int level = 0; level < TAGS.length; level++) {
+            for (int tag : TAGS[level]) {
+                String keyword = ElementDictionary.keywordOf(tag, null);
+                String column = properties.getProperty("jdbc.column." + keyword, DEFAULT_COLUMNS.get(keyword));
+                if (StringUtil.hasText(column)) {
+                    String expression = ALIASES[level] + "." + column.trim();
+                    if (!columns.isEmpty()) {
+                        buf.append(", ");
+                    }
+                    buf.append(expression);
+                    columns.add(new Column(tag, ElementDictionary.vrOf(tag, null)));
+                    expressions.put(tag, expression);
+                }
+            }
+        }
+        for (int tag : REQUIRED_TAGS) {
+            if (!expressions.containsKey(tag)) {
+                throw new IllegalArgumentException("No column for " + ElementDictionary.keywordOf(tag, null));
+            }
+        }
+
+        buf.append(" FROM ");
+        buf.append(properties.getProperty("jdbc.table.patient", "patient"));
+        buf.append(" p JOIN ");
+        buf.append(properties.getProperty("jdbc.table.study", "study"));
+        buf.append(" st ON st.");
+        buf.append(properties.getProperty("jdbc.study.patient.fk", "patient_fk"));
+        buf.append(" = p.");
+        buf.append(properties.getProperty("jdbc.patient.pk", "pk"));
+        buf.append(" JOIN ");
+        buf.append(properties.getProperty("jdbc.table.series", "series"));
+        buf.append(" se ON se.");
+        buf.append(properties.getProperty("jdbc.series.study.fk", "study_fk"));
+        buf.append(" = st.");
+        buf.append(properties.getProperty("jdbc.study.pk", "pk"));
+        buf.append(" JOIN ");
+        buf.append(properties.getProperty("jdbc.table.instance", "instance"));
+        buf.append(" i ON i.");
+        buf.append(properties.getProperty("jdbc.instance.series.fk", "series_fk"));
+        buf.append(" = se.");
+        buf.append(properties.getProperty("jdbc.series.pk", "pk"));
+        select = buf.toString();
+        LOGGER.debug("JDBC source query: {}", select);
+    }
+
+    @Override
+    public void close() {
+        // The connections are closed after each request
+    }
+
+    @Override
+    public void buildFromPatientID(DicomQueryParams params, String patientID) throws Exception {
+        if (!StringUtil.hasText(patientID)) {
+            return;
+        }
+        // IssuerOfPatientID filter (syntax like in HL7 with extension^^^root), the patientID can be encrypted
+        int beginIndex = patientID.indexOf("^^^");
+        int offset = 3;
+        if (beginIndex == -1) {
+            beginIndex = patientID.indexOf("%5E%5E%5E");
+            offset = 9;
+        }
+        List<String> values = new ArrayList<String>(2);
+        StringBuilder where = new StringBuilder(expressions.get(Tag.PatientID));
+        where.append(" = ?");
+        values.add(beginIndex < 0 ? patientID : patientID.substring(0, beginIndex));
+        String issuerColumn = expressions.get(Tag.IssuerOfPatientID);
+        if (beginIndex >= 0 && issuerColumn != null) {
+            where.append(" AND ");
+            where.append(issuerColumn);
+            where.append(" = ?");
+            values.add(patientID.substring(beginIndex + offset));
+        }
+
+        Map<String, List<Attributes>> rowsByStudy = new LinkedHashMap<String, List<Attributes>>();
+        for (Attributes row : query(params, where.toString(), values)) {
+            String studyInstanceUID = row.getString(Tag.StudyInstanceUID);
+            List<Attributes> rows = rowsByStudy.get(studyInstanceUID);
+            if (rows == null) {
+                rows = new ArrayList<Attributes>();
+                rowsByStudy.put(studyInstanceUID, rows);
+            }
+            rows.add(row);
+        }
+
+        // Study datasets with ModalitiesInStudy for applying the same filters as with C-FIND
+        List<Attributes> studies = new ArrayList<Attributes>(rowsByStudy.size());
+        for (List<Attributes> rows : rowsByStudy.values()) {
+            Set<String> modalities = new LinkedHashSet<String>();
+            for (Attributes row : rows) {
+                String modality = row.getString(Tag.Modality);
+                if (StringUtil.hasText(modality)) {
+                    modalities.add(modality);
+                }
+            }
+            Attributes study = new Attributes(rows.get(0));
+            study.setString(Tag.ModalitiesInStudy, VR.CS, modalities.toArray(new String[modalities.size()]));
+            studies.add(study);
+        }
+        BuildManifestDcmQR.filterStudies(params, studies, false);
+
+        for (Attributes study : studies) {
+            addRows(params, rowsByStudy.get(study.getString(Tag.StudyInstanceUID)));
+        }
+    }
+
+    @Override
+    public void buildFromStudyInstanceUIDs(DicomQueryParams params, List<String> studyInstanceUIDs) throws Exception {
+        build(params, Tag.StudyInstanceUID, studyInstanceUIDs);
+    }
+
+    @Override
+    public void buildFromStudyAccessionNumbers(DicomQueryParams params, List<String> accessionNumbers)
+        throws Exception {
+        build(params, Tag.AccessionNumber, accessionNumbers);
+    }
+
+    @Override
+    public void buildFromSeriesInstanceUIDs(DicomQueryParams params, List<String> seriesInstanceUIDs)
+        throws Exception {
+        build(params, Tag.SeriesInstanceUID, seriesInstanceUIDs);
+    }
+
+    @Override
+    public void buildFromSopInstanceUIDs(DicomQueryParams params, List<String> sopInstanceUIDs) throws Exception {
+        build(params, Tag.SOPInstanceUID, sopInstanceUIDs);
+    }
+
+    private void build(DicomQueryParams params, int tag, List<String> values) throws Exception {
+        String expression = expressions.get(tag);
+        if (expression == null) {
+            throw new IllegalStateException("No column for " + ElementDictionary.keywordOf(tag, null));
+        }
+        List<String> ids = new ArrayList<String>(values.size());
+        for (String value : values) {
+            if (StringUtil.hasText(value)) {
+                ids.add(value.trim());
+            }
+        }
+        for (int i = 0; i < ids.size(); i += inListSize) {
+            List<String> group = ids.subList(i, Math.min(ids.size(), i + inListSize));
+            StringBuilder where = new StringBuilder(expression);
+            where.append(" IN (");
+            for (int k = 0; k < group.size(); k++) {
+                where.append(k == 0 ? "?" : ", ?");
+            }
+            where.append(')');
+            addRows(params, query(params, where.toString(), group));
+        }
+    }
+
+    private static void addRows(DicomQueryParams params, List<Attributes> rows) throws Exception {
+        for (Attributes row : rows) {
+            Patient patient = BuildManifestDcmQR.getPatient(params, row);
+            Study study = BuildManifestDcmQR.getStudy(patient, row);
+            Series series = BuildManifestDcmQR.getSeries(study, row);
+            BuildManifestDcmQR.addInstance(series, row);
+        }
+    }
+
+    /**
+     * @return one dataset by instance, with the attributes of the instance, its series, its study and its patient
+     */
+    private List<Attributes> query(DicomQueryParams params, String where, List<String> values) throws Exception {
+        params.checkDeadline();
+        long startTime = System.currentTimeMillis();
+        Connection connection = null;
+        PreparedStatement statement = null;
+        ResultSet result = null;
+        try {
+            connection = dataSource == null ? DriverManager.getConnection(url, user, password) : dataSource
+                .getConnection();
+            statement = connection.prepareStatement(select + " WHERE " + where);
+            long remainingTime = params.getRemainingTime();
+            if (remainingTime != Long.MAX_VALUE) {
+                statement.setQueryTimeout((int) Math.max(1L,
+                    Math.min(Integer.MAX_VALUE, TimeUnit.MILLISECONDS.toSeconds(remainingTime))));
+            }
+            for (int i = 0; i < values.size(); i++) {
+                statement.setString(i + 1, values.get(i));
+            }
+            result = statement.executeQuery();
+            List<Attributes> rows = new ArrayList<Attributes>();
+            while (result.next()) {
+                Attributes row = new Attributes(columns.size());
+                for (int i = 0; i < columns.size(); i++) {
+                    Column column = columns.get(i);
+                    String value = toString(column.vr, result.getObject(i + 1));
+                    if (value != null) {
+                        row.setString(column.tag, column.vr, value);
+                    }
+                }
+                rows.add(row);
+            }
+            LOGGER.debug("JDBC source: {} instances in {} ms", rows.size(), System.currentTimeMillis() - startTime);
+            return rows;
+        } finally {
+            close(result);
+            close(statement);
+            close(connection);
+        }
+    }
+
+    private static String toString(VR vr, Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Date) {
+            String pattern;
+            if (vr == VR.DA) {
+                pattern = "yyyyMMdd";
+            } else if (vr == VR.TM) {
+                pattern = "HHmmss";
+            } else {
+                pattern = "yyyyMMddHHmmss";
+            }
+            return new SimpleDateFormat(pattern).format((Date) value);
+        }
+        String str = value.toString().trim();
+        if (str.length() == 0) {
+            return null;
+        }
+        if (vr == VR.DA || vr == VR.TM || vr == VR.DT) {
+            // Date and time stored as text or returned as text by the driver (e.g. 2014-03-05 10:20:30.0)
+            return toDateTime(vr, str);
+        }
+        return str;
+    }
+
+    private static String toDateTime(VR vr, String value) {
+        Matcher matcher = DATE_TIME_PATTERN.matcher(value);
+        if (matcher.matches()) {
+            String date = matcher.group(1) + matcher.group(2) + matcher.group(3);
+            String time = matcher.group(4) == null ? null : getTime(matcher, 4);
+            if (vr == VR.DA) {
+                return date;
+            } else if (vr == VR.TM) {
+                return time;
+            }
+            return time == null ? date : date + time;
+        }
+        matcher = TIME_PATTERN.matcher(value);
+        if (vr == VR.TM && matcher.matches()) {
+            return getTime(matcher, 1);
+        }
+        LOGGER.debug("Cannot convert {} to {}", value, vr);
+        return value;
+    }
+
+    private static String getTime(Matcher matcher, int group) {
+        String seconds = matcher.group(group + 2);
+        return matcher.group(group) + matcher.group(group + 1) + (seconds == null ? "00" : seconds);
+    }
+
+    private static void close(ResultSet result) {
+        if (result != null) {
+            try {
+                result.close();
+            } catch (SQLException e) {
+                LOGGER.debug("Cannot close the result set: {}", e.getMessage());
+            }
+        }
+    }
+
+    private static void close(Statement statement) {
+        if (statement != null) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                LOGGER.debug("Cannot close the statement: {}", e.getMessage());
+            }
+        }
+    }
+
+    private static void close(Connection connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOGGER.debug("Cannot close the connection: {}", e.getMessage());
+            }
+        }
+    }
+
+    private static class Column {
+        private final int tag;
+        private final VR vr;
+
+        Column(int tag, VR vr) {
+            this.tag = tag;
+            this.vr = vr;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.wado;
+
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Source of the patients, studies, series and instances of the manifests. The implementations are registered in
+ * META-INF/services/org.weasis.dicom.wado.ManifestSource and selected by name with the manifest.source property. Each
+ * build method adds the results to {@link DicomQueryParams#getPatients()}.
+ */
+public interface ManifestSource {
+
+    /**
+     * @return the name used in the manifest.source property
+     */
+    String getName();
+
+    /**
+     * Called once when the connector starts.
+     */
+    void init(Properties properties) throws Exception;
+
+    /**
+     * Called once when the connector stops.
+     */
+    void close();
+
+    /**
+     * @param patientID
+     *            the Patient ID, optionally followed by ^^^ and the Issuer of Patient ID
+     */
+    void buildFromPatientID(DicomQueryParams params, String patientID) throws Exception;
+
+    void buildFromStudyInstanceUIDs(DicomQueryParams params, List<String> studyInstanceUIDs) throws Exception;
+
+    void buildFromStudyAccessionNumbers(DicomQueryParams params, List<String> accessionNumbers) throws Exception;
+
+    void buildFromSeriesInstanceUIDs(DicomQueryParams params, List<String> seriesInstanceUIDs) throws Exception;
+
+    void buildFromSopInstanceUIDs(DicomQueryParams params, List<String> sopInstanceUIDs) throws Exception;
+}
@@ -0,0 +1,286 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.wado;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.net.service.QueryRetrieveLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.dicom.param.DicomParam;
+import org.weasis.dicom.wado.net.PacsCapabilities;
+
+/**
+ * Gathers the queries of different requests by unique key (e.g. one Study Instance UID at STUDY level) which arrive
+ * within a short time window, and sends them to the PACS in one C-FIND with List of UID matching. The responses are
+ * split back to each caller.
+ * <p>
+ * The first caller of a batch waits for the end of the window (or until the batch is full) and sends the query, the
+ * other callers wait for its responses. No additional thread is required. The query of a batch has its own time
+ * budget (the longest of its callers), it is not stopped by the end of the build of the first caller.
+ */
+public class QueryBatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueryBatcher.class);
+
+    private final long window;
+    private final Map<String, Batch> pending = new HashMap<String, Batch>();
+
+    /**
+     * @param window
+     *            the time in milliseconds during which the queries are gathered
+     */
+    public QueryBatcher(long window) {
+        this.window = window;
+    }
+
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * @return true if the query contains only the unique key of the level as matching key
+     */
+    public boolean isBatchable(DicomQueryParams params, QueryRetrieveLevel level, DicomParam... keys) {
+        if (params.getUidListSize() <= 1 || keys.length == 0 || getUniqueKey(level) != keys[0].getTag()) {
+            return false;
+        }
+        String[] uids = keys[0].getValues();
+        if (uids == null || uids.length == 0 || uids.length >= params.getUidListSize()) {
+            return false;
+        }
+        for (int i = 1; i < keys.length; i++) {
+            if (hasValue(keys[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public List<Attributes> query(DicomQueryParams params, QueryRetrieveLevel level, DicomParam... keys)
+        throws Exception {
+        String key = getBatchKey(params, level, keys);
+        Request request = new Request(keys[0].getValues(), params.getDeadline());
+        Batch batch;
+        boolean leader = false;
+        synchronized (pending) {
+            batch = pending.get(key);
+            if (batch == null || !batch.add(request, params.getUidListSize())) {
+                batch = new Batch(params, level, keys);
+                batch.add(request, params.getUidListSize());
+                pending.put(key, batch);
+                leader = true;
+            }
+        }
+
+        if (leader) {
+            InterruptedException interrupted = null;
+            try {
+                batch.waitForRequests(window);
+            } catch (InterruptedException e) {
+                interrupted = e;
+            } finally {
+                synchronized (pending) {
+                    if (pending.get(key) == batch) {
+                        pending.remove(key);
+                    }
+                    batch.closed = true;
+                }
+                // Every request of the batch must be completed, whatever happens to the first caller
+                batch.execute(interrupted);
+            }
+            if (interrupted != null) {
+                Thread.currentThread().interrupt();
+                throw interrupted;
+            }
+        }
+        return request.get(params);
+    }
+
+    private static int getUniqueKey(QueryRetrieveLevel level) {
+        switch (level) {
+            case STUDY:
+                return Tag.StudyInstanceUID;
+            case SERIES:
+                return Tag.SeriesInstanceUID;
+            case IMAGE:
+                return Tag.SOPInstanceUID;
+            default:
+                return -1;
+        }
+    }
+
+    private static boolean hasValue(DicomParam p) {
+        String[] values = p.getValues();
+        return values != null && values.length > 0 && !(values.length == 1 && values[0] == null);
+    }
+
+    /**
+     * @return a key identifying the queries which can be merged: same connection and same return keys
+     */
+    private static String getBatchKey(DicomQueryParams params, QueryRetrieveLevel level, DicomParam... keys) {
+        StringBuilder buf = new StringBuilder(level.name());
+        buf.append('|');
+        buf.append(params.getCallingNode().getAet());
+        buf.append('|');
+        buf.append(PacsCapabilities.getNodeKey(params.getCalledNode()));
+        buf.append('|');
+        buf.append(params.getConnectionOptionsKey());
+        for (DicomParam p : keys) {
+            buf.append('|');
+            buf.append(Integer.toHexString(p.getTag()));
+        }
+        return buf.toString();
+    }
+
+    static class Request {
+        private final String[] uids;
+        private final long deadline;
+        private final List<Attributes> responses = new ArrayList<Attributes>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Exception error;
+
+        Request(String[] uids, long deadline) {
+            this.uids = uids;
+            this.deadline = deadline;
+        }
+
+        List<Attributes> get(DicomQueryParams params) throws Exception {
+            // Each caller waits within the time budget of its own build
+            long remainingTime = params.getRemainingTime();
+            if (remainingTime == Long.MAX_VALUE) {
+                done.await();
+            } else if (!done.await(remainingTime, TimeUnit.MILLISECONDS)) {
+                throw new TimeoutException("The time budget of the manifest build is over ("
+                    + params.getBuildTimeout() + " ms)");
+            }
+            if (error != null) {
+                throw error;
+            }
+            return responses;
+        }
+    }
+
+    static class Batch {
+        private final DicomQueryParams params;
+        private final QueryRetrieveLevel level;
+        private final DicomParam[] keys;
+        private final List<Request> requests = new ArrayList<Request>();
+        private final Set<String> uids = new LinkedHashSet<String>();
+        private long deadline = Long.MIN_VALUE;
+        private boolean closed = false;
+
+        Batch(DicomQueryParams params, QueryRetrieveLevel level, DicomParam[] keys) {
+            this.params = params;
+            this.level = level;
+            this.keys = keys;
+        }
+
+        /**
+         * Must be called with the lock of the pending map.
+         *
+         * @return false if the batch is closed or cannot contain more UIDs
+         */
+        boolean add(Request request, int maxSize) {
+            if (closed || uids.size() + request.uids.length > maxSize) {
+                return false;
+            }
+            requests.add(request);
+            deadline = Math.max(deadline, request.deadline);
+            for (String uid : request.uids) {
+                uids.add(uid);
+            }
+            if (uids.size() >= maxSize) {
+                closed = true;
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+            return true;
+        }
+
+        synchronized void waitForRequests(long window) throws InterruptedException {
+            long end = System.currentTimeMillis() + window;
+            long wait = window;
+            while (!closed && wait > 0) {
+                wait(wait);
+                wait = end - System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * Sends the query and completes all the requests. Must be called once the batch is closed.
+         *
+         * @param interruption
+         *            the interruption of the first caller or null, the query is sent only if other callers wait for it
+         */
+        void execute(InterruptedException interruption) {
+            try {
+                if (interruption != null && requests.size() == 1) {
+                    throw interruption;
+                }
+                DicomParam[] batchKeys = keys.clone();
+                batchKeys[0] = new DicomParam(keys[0].getTag(), uids.toArray(new String[uids.size()]));
+                if (requests.size() > 1) {
+                    LOGGER.debug("Batch {} queries at {} level into one query", requests.size(), level);
+                }
+                // Same connection as the first caller, but the time budget of the batch
+                DicomQueryParams batchParams = new DicomQueryParams(params, deadline);
+                List<Attributes> result = BuildManifestDcmQR.execute(batchParams, level, null, batchKeys);
+                dispatch(result == null ? new ArrayList<Attributes>() : result);
+            } catch (Exception e) {
+                for (Request r : requests) {
+                    r.error = e;
+                }
+            } finally {
+                for (Request r : requests) {
+                    r.done.countDown();
+                }
+            }
+        }
+
+        private void dispatch(List<Attributes> result) {
+            int tag = keys[0].getTag();
+            for (Attributes dataset : result) {
+                String uid = dataset.getString(tag);
+                boolean shared = false;
+                for (Request r : requests) {
+                    if (contains(r.uids, uid)) {
+                        // Each caller can modify its datasets
+                        r.responses.add(shared ? new Attributes(dataset) : dataset);
+                        shared = true;
+                    }
+                }
+            }
+        }
+
+        private static boolean contains(String[] values, String uid) {
+            if (uid != null) {
+                for (String val : values) {
+                    if (val != null && uid.trim().equals(val.trim())) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.wado;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.net.service.QueryRetrieveLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.param.DicomParam;
+import org.weasis.dicom.wado.net.AssociationPool;
+import org.weasis.dicom.wado.net.CircuitBreaker;
+import org.weasis.dicom.wado.net.CircuitBreaker.Call;
+import org.weasis.dicom.wado.net.ConcurrencyLimiter;
+import org.weasis.dicom.wado.net.ConcurrencyLimiter.Permit;
+import org.weasis.dicom.wado.net.FindFuture;
+import org.weasis.dicom.wado.net.FindResponseHandler;
+import org.weasis.dicom.wado.net.PacsCapabilities;
+import org.weasis.dicom.wado.net.PacsCluster;
+import org.weasis.dicom.wado.net.PacsCluster.Member;
+import org.weasis.dicom.wado.net.PooledAssociation;
+import org.weasis.dicom.wado.net.QidoClient;
+
+/**
+ * Sends several C-FIND queries without waiting for the previous responses, either in a thread pool or as
+ * asynchronous operations on a single association.
+ */
+abstract class QueryDispatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueryDispatcher.class);
+
+    Future<List<Attributes>> submit(QueryRetrieveLevel level, DicomParam... keys) throws Exception {
+        return submit(level, null, keys);
+    }
+
+    /**
+     * @param handler
+     *            the handler consuming each response, null means the responses are collected in the result list
+     */
+    abstract Future<List<Attributes>> submit(QueryRetrieveLevel level, FindResponseHandler handler,
+        DicomParam... keys) throws Exception;
+
+    /**
+     * Frees the resources. Must be called once all the results have been consumed or when an error occurred.
+     */
+    abstract void close(boolean failed);
+
+    /**
+     * @param maxTasks
+     *            the expected number of queries
+     * @return a dispatcher according to the configuration or null when the queries must be sequential
+     */
+    static QueryDispatcher getDispatcher(DicomQueryParams params, int maxTasks) throws Exception {
+        if (maxTasks <= 1) {
+            return null;
+        }
+        CircuitBreaker breaker = params.getCircuitBreaker();
+        if (breaker != null && breaker.getState(params.getCalledNode()) != CircuitBreaker.State.CLOSED) {
+            // Sequential queries, which are rejected immediately or used as trial queries by the circuit breaker
+            return null;
+        }
+        QidoClient qido = params.getQidoClient();
+        // The QIDO-RS queries are sent by several threads, each one using a keep-alive HTTP connection
+        AssociationPool pool = qido == null ? params.getAssociationPool() : null;
+        PacsCapabilities capabilities = params.getCapabilities();
+        boolean asyncOps = capabilities == null || capabilities.getMaxOpsInvoked() != 1;
+        if (pool != null && pool.getMaxOpsInvoked() != 1 && asyncOps) {
+            // The member is only selected here, each query of the dispatcher is counted as an outstanding query
+            PacsCluster cluster = params.getPacsCluster();
+            Member member = cluster == null ? null : cluster.acquire(null);
+            PooledAssociation as = null;
+            try {
+                as = pool.borrow(params.getCallingNode(), member == null ? params.getCalledNode() : member.getNode(),
+                    params.getAdvancedParams(), params.getConnectionOptionsKey(), params.getRemainingTime());
+            } finally {
+                if (member != null) {
+                    cluster.release(member, null, -1L, as != null);
+                }
+            }
+            if (as.getMaxOpsInvoked() != 1) {
+                return new PipelinedDispatcher(params, pool, as, cluster, member);
+            }
+            LOGGER.debug("Asynchronous operations are not supported by {}", params.getCalledNode().getAet());
+            pool.release(as);
+        }
+        int concurrency =
+            qido == null ? params.getQueryConcurrency() : Math.max(qido.getConcurrency(), params.getQueryConcurrency());
+        ExecutorService executor = params.getQueryExecutor();
+        if (concurrency > 1 && executor != null) {
+            return new ExecutorDispatcher(params, executor, Math.min(concurrency, maxTasks));
+        }
+        return null;
+    }
+
+    /**
+     * The queries are executed by the executor shared by all the builds, at most nbTasks queries of the build are
+     * submitted at the same time.
+     */
+    static class ExecutorDispatcher extends QueryDispatcher {
+        private final DicomQueryParams params;
+        private final ExecutorService executor;
+        private final Semaphore slots;
+        private final List<Future<List<Attributes>>> futures = new ArrayList<Future<List<Attributes>>>();
+
+        ExecutorDispatcher(DicomQueryParams params, ExecutorService executor, int nbTasks) {
+            this.params = params;
+            this.executor = executor;
+            this.slots = new Semaphore(nbTasks);
+        }
+
+        @Override
+        Future<List<Attributes>> submit(QueryRetrieveLevel level, FindResponseHandler handler, DicomParam... keys)
+            throws Exception {
+            // Waits for the completion of a previous query, not for the consumption of its result
+            if (!slots.tryAcquire(params.getRemainingTime(), TimeUnit.MILLISECONDS)) {
+                params.checkDeadline();
+                throw new TimeoutException("No query slot available");
+            }
+            FutureTask<List<Attributes>> task =
+                new FutureTask<List<Attributes>>(new FindTask(params, level, handler, keys)) {
+
+                    @Override
+                    protected void done() {
+                        slots.release();
+                    }
+                };
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                slots.release();
+                throw e;
+            }
+            synchronized (futures) {
+                futures.add(task);
+            }
+            return task;
+        }
+
+        @Override
+        void close(boolean failed) {
+            synchronized (futures) {
+                for (Future<List<Attributes>> future : futures) {
+                    // Interrupts the queries still running, the threads return to the shared executor
+                    future.cancel(true);
+                }
+                futures.clear();
+            }
+        }
+    }
+
+    /**
+     * All the queries are sent on the same association, the number of outstanding queries is limited by the maximum
+     * number of operations negotiated with the PACS. Like a sequential query, each query is allowed by the circuit
+     * breaker, holds a permit of the concurrency limiter and counts as an outstanding query of the cluster member only
+     * until its final response.
+     */
+    static class PipelinedDispatcher extends QueryDispatcher {
+        private final DicomQueryParams params;
+        private final DicomNode node;
+        private final AssociationPool pool;
+        private final PooledAssociation association;
+        private final PacsCluster cluster;
+        private final Member member;
+        private final List<FindFuture> futures = new ArrayList<FindFuture>();
+
+        PipelinedDispatcher(DicomQueryParams params, AssociationPool pool, PooledAssociation association,
+            PacsCluster cluster, Member member) {
+            this.params = params;
+            this.node = params.getCalledNode();
+            this.pool = pool;
+            this.association = association;
+            this.cluster = cluster;
+            this.member = member;
+        }
+
+        @Override
+        Future<List<Attributes>> submit(final QueryRetrieveLevel level, FindResponseHandler handler,
+            DicomParam... keys) throws Exception {
+            params.checkDeadline();
+            CircuitBreaker breaker = params.getCircuitBreaker();
+            if (breaker != null && breaker.isOpen(node)) {
+                return runSequentially(level, handler, keys);
+            }
+            // The permit is taken first, the time waiting for it is not measured by the circuit breaker
+            ConcurrencyLimiter limiter = params.getConcurrencyLimiter();
+            final Permit permit = limiter == null ? null : limiter.acquire(node, params.getRemainingTime());
+            final Call call = breaker == null ? null : breaker.tryAcquire(node);
+            if (breaker != null && call == null) {
+                if (permit != null) {
+                    permit.releaseUnmeasured();
+                }
+                return runSequentially(level, handler, keys);
+            }
+            if (member != null) {
+                cluster.reserve(member);
+            }
+            final long startTime = System.currentTimeMillis();
+            final FindFuture future;
+            try {
+                future = association.cfindAsync(level, handler, keys);
+            } catch (Exception e) {
+                complete(call, permit, level, -1L, BuildManifestDcmQR.isPacsFailure(e) ? Boolean.FALSE : null);
+                throw e;
+            }
+            synchronized (futures) {
+                futures.add(future);
+            }
+            future.addListener(new Runnable() {
+
+                @Override
+                public void run() {
+                    Exception error = future.getError();
+                    if (future.isCancelled() || error instanceof CancellationException) {
+                        // Stopped by the build, not by the PACS
+                        complete(call, permit, level, -1L, null);
+                    } else {
+                        complete(call, permit, level, System.currentTimeMillis() - startTime, error == null);
+                    }
+                }
+            });
+            return future;
+        }
+
+        /**
+         * The circuit has opened since the creation of the dispatcher, the query is sent (or rejected) like a
+         * sequential query.
+         */
+        private Future<List<Attributes>> runSequentially(QueryRetrieveLevel level, FindResponseHandler handler,
+            DicomParam... keys) {
+            FutureTask<List<Attributes>> task =
+                new FutureTask<List<Attributes>>(new FindTask(params, level, handler, keys));
+            task.run();
+            return task;
+        }
+
+        /**
+         * @param success
+         *            the result of the query, null when it has been cancelled or not sent
+         */
+        private void complete(Call call, Permit permit, QueryRetrieveLevel level, long latency, Boolean success) {
+            if (success == null) {
+                if (call != null) {
+                    call.ignore();
+                }
+                if (permit != null) {
+                    permit.releaseUnmeasured();
+                }
+            } else {
+                if (call != null) {
+                    call.record(success);
+                }
+                if (permit != null) {
+                    permit.release(success);
+                }
+            }
+            if (member != null) {
+                cluster.release(member, level, Boolean.TRUE.equals(success) ? latency : -1L, !Boolean.FALSE
+                    .equals(success));
+            }
+        }
+
+        @Override
+        void close(boolean failed) {
+            if (failed) {
+                synchronized (futures) {
+                    for (FindFuture future : futures) {
+                        // The queries still running are cancelled before aborting the association, so they are not
+                        // recorded as failures of the PACS
+                        future.cancel(true);
+                    }
+                }
+            }
+            if (failed || !association.isReady()) {
+                pool.invalidate(association);
+            } else {
+                pool.release(association);
+            }
+        }
+    }
+
+    static class FindTask implements Callable<List<Attributes>> {
+        private final DicomQueryParams params;
+        private final QueryRetrieveLevel level;
+        private final FindResponseHandler handler;
+        private final DicomParam[] keys;
+
+        FindTask(DicomQueryParams params, QueryRetrieveLevel level, FindResponseHandler handler, DicomParam... keys) {
+            this.params = params;
+            this.level = level;
+            this.handler = handler;
+            this.keys = keys;
+        }
+
+        @Override
+        public List<Attributes> call() throws Exception {
+            return BuildManifestDcmQR.query(params, level, handler, keys);
+        }
+    }
+}
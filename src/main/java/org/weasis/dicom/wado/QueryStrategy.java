@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.wado;
+
+/**
+ * How the series and the instances of a study are queried.
+ */
+public enum QueryStrategy {
+    /**
+     * One C-FIND at SERIES level by study and one C-FIND at IMAGE level by series (supported by all the PACS).
+     */
+    HIERARCHICAL,
+
+    /**
+     * One relational C-FIND at IMAGE level by study, the series are built from the instance responses. Requires the
+     * relational-queries extended negotiation.
+     */
+    RELATIONAL;
+
+    public static QueryStrategy getStrategy(String name) {
+        return getStrategy(name, HIERARCHICAL);
+    }
+
+    public static QueryStrategy getStrategy(String name, QueryStrategy defaultStrategy) {
+        if (name != null) {
+            try {
+                return QueryStrategy.valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                // return the default value
+            }
+        }
+        return defaultStrategy;
+    }
+}
@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.wado;
+
+/**
+ * A manifest shared by several identical requests. The xml is generated only once, because the generation of the
+ * wrapped manifest is not reentrant (e.g. WadoQuery appends to its buffer and sorts the patient list).
+ */
+public class SharedManifest implements XmlManifest {
+
+    private final XmlManifest manifest;
+    private String xml;
+
+    public SharedManifest(XmlManifest manifest) {
+        if (manifest == null) {
+            throw new IllegalArgumentException("manifest cannot be null");
+        }
+        this.manifest = manifest;
+    }
+
+    @Override
+    public synchronized String xmlManifest() {
+        if (xml == null) {
+            xml = manifest.xmlManifest();
+        }
+        return xml;
+    }
+
+    @Override
+    public Object getWadoMessage() {
+        return manifest.getWadoMessage();
+    }
+
+    @Override
+    public String getCharsetEncoding() {
+        return manifest.getCharsetEncoding();
+    }
+}
@@ -16,6 +16,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -40,8 +41,13 @@ public class WadoQuery implements XmlManifest {
     public static final String TAG_MSG_ATTRIBUTE_DESC = "description";
     public static final String TAG_MSG_ATTRIBUTE_LEVEL = "severity";
 
+    /**
+     * Root element of a manifest containing one wado_query element by archive
+     */
+    public static final String TAG_MANIFEST_ROOT = "manifest";
+
     private final StringBuilder wadoQuery = new StringBuilder();
-    private final List<Patient> patientList;
+    private final List<Archive> archives = new ArrayList<Archive>(1);
     private final String charsetEncoding;
     private WadoMessage wadoMessage;
 
@@ -65,47 +71,81 @@ public class WadoQuery implements XmlManifest {
         } else if (wadoParameters == null || !StringUtil.hasText(charsetEncoding)) {
             throw new IllegalArgumentException();
         } else {
-            this.patientList = patients;
+            this.archives.add(new Archive(patients, wadoParameters));
             this.charsetEncoding = charsetEncoding;
-            wadoQuery.append("<?xml version=\"1.0\" encoding=\"" + charsetEncoding + "\" ?>");
+        }
+    }
+
+    /**
+     * Adds the patients of another archive, they are written in their own wado_query element with the parameters of
+     * this archive.
+     * 
+     * @param patients
+     *            a list of patients
+     * @param wadoParameters
+     *            the wado parameters of the archive
+     */
+    public void addArchive(List<Patient> patients, WadoParameters wadoParameters) {
+        if (wadoParameters == null) {
+            throw new IllegalArgumentException();
+        }
+        archives.add(new Archive(patients, wadoParameters));
+    }
+
+    public String xmlManifest() {
+        wadoQuery.append("<?xml version=\"1.0\" encoding=\"" + charsetEncoding + "\" ?>");
+        boolean multipleArchives = archives.size() > 1;
+        if (multipleArchives) {
             wadoQuery.append("\n<");
-            wadoQuery.append(WadoParameters.TAG_DOCUMENT_ROOT);
+            wadoQuery.append(TAG_MANIFEST_ROOT);
             wadoQuery.append(WadoParameters.TAG_SCHEMA);
-            wadoQuery.append(" ");
-            TagUtil.addXmlAttribute(WadoParameters.TAG_WADO_URL, wadoParameters.getWadoURL(), wadoQuery);
-            TagUtil.addXmlAttribute(WadoParameters.TAG_WADO_WEB_LOGIN, wadoParameters.getWebLogin(), wadoQuery);
-            TagUtil.addXmlAttribute(WadoParameters.TAG_WADO_ONLY_SOP_UID, wadoParameters.isRequireOnlySOPInstanceUID(),
-                wadoQuery);
-            TagUtil.addXmlAttribute(WadoParameters.TAG_WADO_ADDITIONNAL_PARAMETERS,
-                wadoParameters.getAdditionnalParameters(), wadoQuery);
-            TagUtil.addXmlAttribute(WadoParameters.TAG_WADO_OVERRIDE_TAGS, wadoParameters.getOverrideDicomTagsList(),
-                wadoQuery);
             wadoQuery.append(">");
-            if (wadoParameters.getHttpTaglist() != null) {
-                for (WadoParameters.HttpTag tag : wadoParameters.getHttpTaglist()) {
-                    wadoQuery.append("\n<");
-                    wadoQuery.append(WadoParameters.TAG_HTTP_TAG);
-                    wadoQuery.append(" key=\"");
-                    wadoQuery.append(tag.getKey());
-                    wadoQuery.append("\" value=\"");
-                    wadoQuery.append(tag.getValue());
-                    wadoQuery.append("\" />");
-                }
+            appendMessage();
+            for (Archive archive : archives) {
+                appendWadoQuery(archive, false);
             }
+            wadoQuery.append("\n</");
+            wadoQuery.append(TAG_MANIFEST_ROOT);
+            wadoQuery.append(">");
+        } else {
+            appendWadoQuery(archives.get(0), true);
         }
+        return wadoQuery.toString();
     }
 
-    public String xmlManifest() {
-        if (wadoMessage != null) {
-            wadoQuery.append("\n<");
-            wadoQuery.append(TAG_DOCUMENT_MSG);
-            wadoQuery.append(" ");
-            TagUtil.addXmlAttribute(TAG_MSG_ATTRIBUTE_TITLE, wadoMessage.title, wadoQuery);
-            TagUtil.addXmlAttribute(TAG_MSG_ATTRIBUTE_DESC, wadoMessage.message, wadoQuery);
-            TagUtil.addXmlAttribute(TAG_MSG_ATTRIBUTE_LEVEL, wadoMessage.level.name(), wadoQuery);
-            wadoQuery.append("/>");
+    private void appendWadoQuery(Archive archive, boolean root) {
+        WadoParameters wadoParameters = archive.wadoParameters;
+        wadoQuery.append("\n<");
+        wadoQuery.append(WadoParameters.TAG_DOCUMENT_ROOT);
+        if (root) {
+            wadoQuery.append(WadoParameters.TAG_SCHEMA);
+        }
+        wadoQuery.append(" ");
+        TagUtil.addXmlAttribute(WadoParameters.TAG_WADO_URL, wadoParameters.getWadoURL(), wadoQuery);
+        TagUtil.addXmlAttribute(WadoParameters.TAG_WADO_WEB_LOGIN, wadoParameters.getWebLogin(), wadoQuery);
+        TagUtil.addXmlAttribute(WadoParameters.TAG_WADO_ONLY_SOP_UID, wadoParameters.isRequireOnlySOPInstanceUID(),
+            wadoQuery);
+        TagUtil.addXmlAttribute(WadoParameters.TAG_WADO_ADDITIONNAL_PARAMETERS,
+            wadoParameters.getAdditionnalParameters(), wadoQuery);
+        TagUtil.addXmlAttribute(WadoParameters.TAG_WADO_OVERRIDE_TAGS, wadoParameters.getOverrideDicomTagsList(),
+            wadoQuery);
+        wadoQuery.append(">");
+        if (wadoParameters.getHttpTaglist() != null) {
+            for (WadoParameters.HttpTag tag : wadoParameters.getHttpTaglist()) {
+                wadoQuery.append("\n<");
+                wadoQuery.append(WadoParameters.TAG_HTTP_TAG);
+                wadoQuery.append(" key=\"");
+                wadoQuery.append(tag.getKey());
+                wadoQuery.append("\" value=\"");
+                wadoQuery.append(tag.getValue());
+                wadoQuery.append("\" />");
+            }
+        }
+        if (root) {
+            appendMessage();
         }
 
+        List<Patient> patientList = archive.patients;
         if (patientList != null) {
             Collections.sort(patientList, new Comparator<Patient>() {
 
@@ -123,7 +163,18 @@ public class WadoQuery implements XmlManifest {
         wadoQuery.append("\n</");
         wadoQuery.append(WadoParameters.TAG_DOCUMENT_ROOT);
         wadoQuery.append(">");
-        return wadoQuery.toString();
+    }
+
+    private void appendMessage() {
+        if (wadoMessage != null) {
+            wadoQuery.append("\n<");
+            wadoQuery.append(TAG_DOCUMENT_MSG);
+            wadoQuery.append(" ");
+            TagUtil.addXmlAttribute(TAG_MSG_ATTRIBUTE_TITLE, wadoMessage.title, wadoQuery);
+            TagUtil.addXmlAttribute(TAG_MSG_ATTRIBUTE_DESC, wadoMessage.message, wadoQuery);
+            TagUtil.addXmlAttribute(TAG_MSG_ATTRIBUTE_LEVEL, wadoMessage.level.name(), wadoQuery);
+            wadoQuery.append("/>");
+        }
     }
 
     public String getCharsetEncoding() {
@@ -211,6 +262,16 @@ public class WadoQuery implements XmlManifest {
         }
     }
 
+    private static class Archive {
+        private final List<Patient> patients;
+        private final WadoParameters wadoParameters;
+
+        Archive(List<Patient> patients, WadoParameters wadoParameters) {
+            this.patients = patients;
+            this.wadoParameters = wadoParameters;
+        }
+    }
+
     public static class WadoMessage {
         public enum eLevel {
             INFO, WARN, ERROR;
@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.wado.cache;
+
+import java.util.List;
+
+import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.wado.net.PacsCapabilities;
+
+/**
+ * Cache of the instance lists of the series, keyed by Series Instance UID for each PACS. An entry is valid only when
+ * its number of instances is equal to the Number of Series Related Instances of the SERIES level response, otherwise
+ * the series has been modified and the instances must be queried again.
+ */
+public class InstanceCache extends QueryCache<String, InstanceCache.SeriesInstances> {
+
+    public InstanceCache(int maxSize, long timeToLive) {
+        super("instance", maxSize, timeToLive);
+    }
+
+    /**
+     * @param numberOfInstances
+     *            the Number of Series Related Instances returned at SERIES level
+     * @return the instances or null when the series is not in the cache or has a different number of instances
+     */
+    public SeriesInstances getInstances(DicomNode node, String seriesInstanceUID, int numberOfInstances) {
+        String key = getKey(node, seriesInstanceUID);
+        SeriesInstances instances = get(key);
+        if (instances != null && instances.size() != numberOfInstances) {
+            remove(key);
+            invalidateHit();
+            return null;
+        }
+        return instances;
+    }
+
+    public void putInstances(DicomNode node, String seriesInstanceUID, List<String> sopInstanceUIDs,
+        List<String> instanceNumbers) {
+        put(getKey(node, seriesInstanceUID), new SeriesInstances(sopInstanceUIDs.toArray(new String[sopInstanceUIDs
+            .size()]), instanceNumbers.toArray(new String[instanceNumbers.size()])));
+    }
+
+    public void removeSeries(DicomNode node, String seriesInstanceUID) {
+        remove(getKey(node, seriesInstanceUID));
+    }
+
+    private static String getKey(DicomNode node, String seriesInstanceUID) {
+        return PacsCapabilities.getNodeKey(node) + "|" + seriesInstanceUID;
+    }
+
+    public static class SeriesInstances {
+        private final String[] sopInstanceUIDs;
+        private final String[] instanceNumbers;
+
+        SeriesInstances(String[] sopInstanceUIDs, String[] instanceNumbers) {
+            this.sopInstanceUIDs = sopInstanceUIDs;
+            this.instanceNumbers = instanceNumbers;
+        }
+
+        public int size() {
+            return sopInstanceUIDs.length;
+        }
+
+        public String getSopInstanceUID(int index) {
+            return sopInstanceUIDs[index];
+        }
+
+        public String getInstanceNumber(int index) {
+            return instanceNumbers[index];
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.wado.cache;
+
+import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.wado.net.PacsCapabilities;
+
+/**
+ * Cache of the IDs (Study Instance UID, Accession Number...) for which the PACS has returned no result. The time to
+ * live must be short because the objects can be archived at any time.
+ */
+public class NegativeCache extends QueryCache<String, Boolean> {
+
+    public NegativeCache(int maxSize, long timeToLive) {
+        super("negative", maxSize, timeToLive);
+    }
+
+    /**
+     * @param type
+     *            the type of ID (e.g. studyUID, accessionNumber, seriesUID, objectUID)
+     * @return true if the PACS has recently returned no result for this ID
+     */
+    public boolean isUnknown(DicomNode node, String type, String id) {
+        return get(getKey(type, id, node)) != null;
+    }
+
+    public void putUnknown(DicomNode node, String type, String id) {
+        put(getKey(type, id, node), Boolean.TRUE);
+    }
+
+    /**
+     * Removes an ID for all the PACS.
+     *
+     * @param type
+     *            the type of ID or null for all the types
+     * @return the number of entries removed
+     */
+    public int invalidate(String type, String id) {
+        int nb = 0;
+        for (String key : keys()) {
+            if (type == null ? key.contains("|" + id + "|") : key.startsWith(type + "|" + id + "|")) {
+                if (remove(key) != null) {
+                    nb++;
+                }
+            }
+        }
+        return nb;
+    }
+
+    private static String getKey(String type, String id, DicomNode node) {
+        return type + "|" + id + "|" + PacsCapabilities.getNodeKey(node);
+    }
+}
@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.wado.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.weasis.servlet.ManifestManager;
+
+/**
+ * Bounded cache of query results. The least recently used entry is removed when the maximum size is reached and an
+ * entry expires after the time to live.
+ */
+public class QueryCache<K, V> {
+
+    private final String name;
+    private final int maxSize;
+    private final long timeToLive;
+    private final Map<K, Entry<V>> map;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxSize
+     *            the maximum number of entries
+     * @param timeToLive
+     *            the time in milliseconds after which an entry expires
+     */
+    public QueryCache(String name, int maxSize, long timeToLive) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be greater than 0");
+        }
+        this.name = name;
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+        this.map = ManifestManager.<K, Entry<V>> createLRUMap(maxSize);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * @return the value or null when the key is not in the cache or has expired
+     */
+    public V get(K key) {
+        synchronized (map) {
+            Entry<V> entry = map.get(key);
+            if (entry != null) {
+                if (!entry.isExpired(System.currentTimeMillis())) {
+                    hits.incrementAndGet();
+                    return entry.value;
+                }
+                map.remove(key);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @param maxAge
+     *            the maximum time in milliseconds since the value has been put in the cache
+     * @return the value or null when the key is not in the cache, has expired or is older than maxAge
+     */
+    public V get(K key, long maxAge) {
+        long now = System.currentTimeMillis();
+        synchronized (map) {
+            Entry<V> entry = map.get(key);
+            if (entry != null) {
+                if (!entry.isExpired(now)) {
+                    if (now - entry.creationTime <= maxAge) {
+                        hits.incrementAndGet();
+                        return entry.value;
+                    }
+                } else {
+                    map.remove(key);
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(K key, V value) {
+        if (key == null || value == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (map) {
+            map.put(key, new Entry<V>(value, now, now + timeToLive));
+        }
+    }
+
+    public V remove(K key) {
+        synchronized (map) {
+            Entry<V> entry = map.remove(key);
+            return entry == null ? null : entry.value;
+        }
+    }
+
+    /**
+     * Removes all the entries and resets the counters.
+     */
+    public void purge() {
+        synchronized (map) {
+            map.clear();
+        }
+        hits.set(0);
+        misses.set(0);
+    }
+
+    /**
+     * Removes the expired entries.
+     */
+    public void evictExpired() {
+        long now = System.currentTimeMillis();
+        synchronized (map) {
+            for (Iterator<Entry<V>> it = map.values().iterator(); it.hasNext();) {
+                if (it.next().isExpired(now)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the keys
+     */
+    protected List<K> keys() {
+        synchronized (map) {
+            return new ArrayList<K>(map.keySet());
+        }
+    }
+
+    public int size() {
+        synchronized (map) {
+            return map.size();
+        }
+    }
+
+    /**
+     * Counts the last hit as a miss, when the value returned by get() cannot be used (e.g. outdated value).
+     */
+    protected void invalidateHit() {
+        hits.decrementAndGet();
+        misses.incrementAndGet();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return name + " (size=" + size() + "/" + maxSize + ", ttl=" + timeToLive / 1000 + "s, hits=" + hits.get()
+            + ", misses=" + misses.get() + ")";
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long creationTime;
+        private final long expirationTime;
+
+        Entry(V value, long creationTime, long expirationTime) {
+            this.value = value;
+            this.creationTime = creationTime;
+            this.expirationTime = expirationTime;
+        }
+
+        boolean isExpired(long time) {
+            return time > expirationTime;
+        }
+    }
+}
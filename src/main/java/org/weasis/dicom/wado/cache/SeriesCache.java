@@ -0,0 +1,39 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.wado.cache;
+
+import org.dcm4che3.data.Attributes;
+import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.wado.net.PacsCapabilities;
+
+/**
+ * Cache of the SERIES level attributes (Study Instance UID, Modality...) keyed by Series Instance UID for each PACS.
+ * It resolves the study of an instance when the PACS does not return the Study Instance UID at IMAGE level.
+ */
+public class SeriesCache extends QueryCache<String, Attributes> {
+
+    public SeriesCache(int maxSize, long timeToLive) {
+        super("series", maxSize, timeToLive);
+    }
+
+    public Attributes getSeries(DicomNode node, String seriesInstanceUID) {
+        Attributes series = get(getKey(node, seriesInstanceUID));
+        return series == null ? null : new Attributes(series);
+    }
+
+    public void putSeries(DicomNode node, String seriesInstanceUID, Attributes series) {
+        put(getKey(node, seriesInstanceUID), new Attributes(series));
+    }
+
+    private static String getKey(DicomNode node, String seriesInstanceUID) {
+        return PacsCapabilities.getNodeKey(node) + "|" + seriesInstanceUID;
+    }
+}
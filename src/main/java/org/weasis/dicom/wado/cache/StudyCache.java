@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.wado.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.wado.net.PacsCapabilities;
+
+/**
+ * Cache of the STUDY level responses, keyed by Study Instance UID and by Accession Number for each PACS. The datasets
+ * are copied because they can be completed by the manifest builder.
+ */
+public class StudyCache extends QueryCache<String, List<Attributes>> {
+
+    public StudyCache(int maxSize, long timeToLive) {
+        super("study", maxSize, timeToLive);
+    }
+
+    public List<Attributes> getByStudyInstanceUID(DicomNode node, String studyInstanceUID) {
+        return copy(get(getKey(node, "uid", studyInstanceUID)));
+    }
+
+    public List<Attributes> getByAccessionNumber(DicomNode node, String accessionNumber) {
+        return copy(get(getKey(node, "an", accessionNumber)));
+    }
+
+    /**
+     * Adds each study with its Study Instance UID as key.
+     */
+    public void putStudies(DicomNode node, List<Attributes> studies) {
+        for (Attributes study : studies) {
+            String uid = study.getString(Tag.StudyInstanceUID);
+            if (uid != null) {
+                put(getKey(node, "uid", uid), Collections.singletonList(new Attributes(study)));
+            }
+        }
+    }
+
+    /**
+     * Adds all the studies matching an Accession Number.
+     */
+    public void putAccessionNumber(DicomNode node, String accessionNumber, List<Attributes> studies) {
+        if (studies.isEmpty()) {
+            return;
+        }
+        put(getKey(node, "an", accessionNumber), Collections.unmodifiableList(copy(studies)));
+        putStudies(node, studies);
+    }
+
+    public void removeStudy(DicomNode node, String studyInstanceUID) {
+        remove(getKey(node, "uid", studyInstanceUID));
+    }
+
+    private static String getKey(DicomNode node, String type, String value) {
+        return PacsCapabilities.getNodeKey(node) + "|" + type + "|" + value;
+    }
+
+    private static List<Attributes> copy(List<Attributes> studies) {
+        if (studies == null) {
+            return null;
+        }
+        List<Attributes> list = new ArrayList<Attributes>(studies.size());
+        for (Attributes study : studies) {
+            list.add(new Attributes(study));
+        }
+        return list;
+    }
+}
@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.wado.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.wado.net.PacsCapabilities;
+
+/**
+ * Cache of the series of a study, keyed by Study Instance UID for each PACS. With the {@link InstanceCache}, it keeps
+ * the tree built by a broader request (e.g. by Patient ID) for answering the narrower requests (by study or by
+ * series).
+ * <p>
+ * The series are returned only when they match the Number of Study Related Series and the Number of Study Related
+ * Instances of a STUDY level response just received from the PACS, so a study modified since the series query is
+ * queried again. Without such a response, the series are returned only when they are recent.
+ */
+public class StudyTreeCache extends QueryCache<String, List<Attributes>> {
+
+    public StudyTreeCache(int maxSize, long timeToLive) {
+        super("tree", maxSize, timeToLive);
+    }
+
+    /**
+     * @param study
+     *            a STUDY level response with the Study Instance UID and the number of related series and instances,
+     *            received from the PACS in the current request (not from a cache)
+     * @return a copy of the series of the study or null when they are not in the cache or outdated
+     */
+    public List<Attributes> getSeries(DicomNode node, Attributes study) {
+        String studyInstanceUID = study.getString(Tag.StudyInstanceUID);
+        int nbSeries = study.getInt(Tag.NumberOfStudyRelatedSeries, -1);
+        int nbInstances = study.getInt(Tag.NumberOfStudyRelatedInstances, -1);
+        if (studyInstanceUID == null || nbSeries < 0 || nbInstances < 0) {
+            return null;
+        }
+        String key = getKey(node, studyInstanceUID);
+        List<Attributes> series = get(key);
+        if (series == null) {
+            return null;
+        }
+        if (series.size() != nbSeries || countInstances(series) != nbInstances) {
+            // The study has been modified since the series have been cached
+            remove(key);
+            invalidateHit();
+            return null;
+        }
+        return copy(series);
+    }
+
+    /**
+     * Gets the series without revalidation, when there is no recent STUDY level response of the PACS.
+     *
+     * @param maxAge
+     *            the maximum time in milliseconds since the series have been cached
+     * @return a copy of the series of the study or null when they are not in the cache or older than maxAge
+     */
+    public List<Attributes> getSeries(DicomNode node, String studyInstanceUID, long maxAge) {
+        if (studyInstanceUID == null) {
+            return null;
+        }
+        List<Attributes> series = get(getKey(node, studyInstanceUID), maxAge);
+        return series == null ? null : copy(series);
+    }
+
+    /**
+     * Adds the SERIES level responses of a study. They are not cached when a Number of Series Related Instances is
+     * missing, as they could not be revalidated.
+     */
+    public void putSeries(DicomNode node, String studyInstanceUID, List<Attributes> series) {
+        List<Attributes> list = new ArrayList<Attributes>(series.size());
+        for (Attributes s : series) {
+            if (s.getInt(Tag.NumberOfSeriesRelatedInstances, -1) < 0) {
+                return;
+            }
+            Attributes attrs = new Attributes(s);
+            attrs.setString(Tag.StudyInstanceUID, VR.UI, studyInstanceUID);
+            list.add(attrs);
+        }
+        put(getKey(node, studyInstanceUID), Collections.unmodifiableList(list));
+    }
+
+    public void removeStudy(DicomNode node, String studyInstanceUID) {
+        remove(getKey(node, studyInstanceUID));
+    }
+
+    private static List<Attributes> copy(List<Attributes> series) {
+        List<Attributes> list = new ArrayList<Attributes>(series.size());
+        for (Attributes s : series) {
+            list.add(new Attributes(s));
+        }
+        return list;
+    }
+
+    private static int countInstances(List<Attributes> series) {
+        int count = 0;
+        for (Attributes s : series) {
+            count += s.getInt(Tag.NumberOfSeriesRelatedInstances, 0);
+        }
+        return count;
+    }
+
+    private static String getKey(DicomNode node, String studyInstanceUID) {
+        return PacsCapabilities.getNodeKey(node) + "|" + studyInstanceUID;
+    }
+}
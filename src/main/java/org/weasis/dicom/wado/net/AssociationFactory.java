@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.wado.net;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.QueryOption;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+import org.dcm4che3.net.pdu.ExtendedNegotiation;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.weasis.dicom.param.AdvancedParams;
+import org.weasis.dicom.param.DicomNode;
+
+/**
+ * Opens associations with the Study Root Query/Retrieve Information Model - FIND and the Verification SOP classes.
+ * The local device is configured once (bind address and TLS) and shared by all the associations.
+ */
+class AssociationFactory {
+
+    private final DicomNode calledNode;
+    private final AdvancedParams params;
+    private final ApplicationEntity ae;
+    private final Connection conn;
+    private final Connection remote;
+
+    AssociationFactory(DicomNode callingNode, DicomNode calledNode, AdvancedParams params, ExecutorService executor,
+        ScheduledExecutorService scheduledExecutor) throws IOException {
+        this.calledNode = calledNode;
+        this.params = params == null ? new AdvancedParams() : params;
+        Device device = new Device("weasis-pacs-connector");
+        this.conn = new Connection();
+        this.remote = new Connection();
+        this.ae = new ApplicationEntity(callingNode.getAet());
+        device.addConnection(conn);
+        device.addApplicationEntity(ae);
+        ae.addConnection(conn);
+        device.setExecutor(executor);
+        device.setScheduledExecutor(scheduledExecutor);
+
+        this.params.configureBind(ae, conn, callingNode);
+        this.params.configure(conn);
+        this.params.configureTLS(conn, remote);
+    }
+
+    AdvancedParams getParams() {
+        return params;
+    }
+
+    /**
+     * @param maxOpsInvoked
+     *            the number of asynchronous operations to propose (1 means synchronous operations)
+     * @param queryOptions
+     *            the query options of the extended negotiation, null means the options of the AdvancedParams
+     */
+    Association open(int maxOpsInvoked, EnumSet<QueryOption> queryOptions) throws Exception {
+        AAssociateRQ rq = new AAssociateRQ();
+        params.configureConnect(rq, remote, calledNode);
+        if (maxOpsInvoked != 1) {
+            rq.setMaxOpsInvoked(maxOpsInvoked);
+            rq.setMaxOpsPerformed(1);
+        }
+        rq.addPresentationContext(new PresentationContext(1, UID.StudyRootQueryRetrieveInformationModelFIND,
+            params.getTsuidOrder()));
+        EnumSet<QueryOption> options = queryOptions == null ? params.getQueryOptions() : queryOptions;
+        if (options != null && !options.isEmpty()) {
+            rq.addExtendedNegotiation(new ExtendedNegotiation(UID.StudyRootQueryRetrieveInformationModelFIND,
+                QueryOption.toExtendedNegotiation(options)));
+        }
+        rq.addPresentationContext(new PresentationContext(3, UID.VerificationSOPClass, UID.ImplicitVRLittleEndian));
+        return ae.connect(conn, remote, rq);
+    }
+}
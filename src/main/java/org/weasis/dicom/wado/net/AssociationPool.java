@@ -0,0 +1,378 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.wado.net;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4che3.net.Association;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.dicom.param.AdvancedParams;
+import org.weasis.dicom.param.DicomNode;
+
+/**
+ * Pool of DICOM associations used for the C-FIND queries. The associations are grouped by calling node, called node
+ * and connection options (TLS) and are reused until they have been idle for longer than the max idle time.
+ */
+public class AssociationPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AssociationPool.class);
+
+    public static final int DEFAULT_MAX_SIZE = 5;
+    public static final long DEFAULT_MAX_IDLE_TIME = 60000L; // in milliseconds => 1 min
+    public static final long DEFAULT_BORROW_TIMEOUT = 30000L; // in milliseconds => 30 sec
+    public static final long DEFAULT_ECHO_IDLE_TIME = 5000L; // in milliseconds => 5 sec
+
+    private final int maxSize;
+    private final long maxIdleTime;
+    private final long borrowTimeout;
+    private final long echoIdleTime;
+    private final int maxOpsInvoked;
+    private final Map<PoolKey, Entry> entries = new HashMap<PoolKey, Entry>();
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduledExecutor;
+    private boolean closed = false;
+
+    /**
+     * @param maxSize
+     *            the maximum number of associations by key
+     * @param maxIdleTime
+     *            the time in milliseconds after which an unused association is released
+     * @param borrowTimeout
+     *            the maximum time in milliseconds to wait for an association when all are in use
+     * @param echoIdleTime
+     *            a C-ECHO is sent before reusing an association idle for longer than this time in milliseconds (0
+     *            means always, a negative value means never)
+     * @param maxOpsInvoked
+     *            the maximum number of asynchronous operations proposed to the PACS (1 means synchronous operations, 0
+     *            means unlimited)
+     */
+    public AssociationPool(int maxSize, long maxIdleTime, long borrowTimeout, long echoIdleTime, int maxOpsInvoked) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be greater than 0");
+        }
+        this.maxSize = maxSize;
+        this.maxIdleTime = maxIdleTime;
+        this.borrowTimeout = borrowTimeout;
+        this.echoIdleTime = echoIdleTime;
+        this.maxOpsInvoked = maxOpsInvoked < 0 ? 1 : maxOpsInvoked;
+        ThreadFactory threadFactory = new DaemonThreadFactory("association-pool");
+        this.executor = Executors.newCachedThreadPool(threadFactory);
+        this.scheduledExecutor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+
+        long period = Math.max(1000L, maxIdleTime / 2);
+        scheduledExecutor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getMaxIdleTime() {
+        return maxIdleTime;
+    }
+
+    public int getMaxOpsInvoked() {
+        return maxOpsInvoked;
+    }
+
+    /**
+     * Gets an idle association or opens a new one. The association must be given back with release() or invalidate().
+     *
+     * @param optionsKey
+     *            a string identifying the connection options (e.g. TLS configuration) of the AdvancedParams
+     */
+    public PooledAssociation borrow(DicomNode callingNode, DicomNode calledNode, AdvancedParams params,
+        String optionsKey) throws Exception {
+        return borrow(callingNode, calledNode, params, optionsKey, borrowTimeout);
+    }
+
+    /**
+     * Same as {@link #borrow(DicomNode, DicomNode, AdvancedParams, String)}, but waits at most maxWait milliseconds
+     * (and no longer than the borrow timeout) when all the associations are in use.
+     */
+    public PooledAssociation borrow(DicomNode callingNode, DicomNode calledNode, AdvancedParams params,
+        String optionsKey, long maxWait) throws Exception {
+        PoolKey key = new PoolKey(callingNode, calledNode, optionsKey);
+        long timeout = Math.min(borrowTimeout, maxWait);
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while (true) {
+            Entry entry;
+            PooledAssociation idle = null;
+            synchronized (this) {
+                entry = getEntry(key, callingNode, calledNode, params);
+                while (idle == null && entry.size >= maxSize) {
+                    if (closed) {
+                        throw new QueryRejectedException("The association pool is closed");
+                    }
+                    idle = entry.idle.pollFirst();
+                    if (idle == null) {
+                        long wait = deadline - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            throw new QueryRejectedException("No DICOM association available for " + key
+                                + " after " + timeout + " ms");
+                        }
+                        wait(wait);
+                    }
+                }
+                if (closed) {
+                    throw new QueryRejectedException("The association pool is closed");
+                }
+                if (idle == null) {
+                    idle = entry.idle.pollFirst();
+                }
+                if (idle == null) {
+                    entry.size++;
+                }
+                entry.borrowed++;
+            }
+
+            if (idle != null) {
+                // Validation can send a C-ECHO, so it is done outside the lock
+                if (isValid(idle)) {
+                    LOGGER.trace("Reuse association with {}", key);
+                    return idle;
+                }
+                invalidate(idle);
+                continue;
+            }
+
+            try {
+                PooledAssociation as = entry.open(key);
+                LOGGER.debug("Open new association with {}", key);
+                return as;
+            } catch (Exception e) {
+                synchronized (this) {
+                    entry.size--;
+                    entry.borrowed--;
+                    notifyAll();
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Gives back a valid association to the pool.
+     */
+    public void release(PooledAssociation as) {
+        if (as == null) {
+            return;
+        }
+        as.touch();
+        boolean close = false;
+        synchronized (this) {
+            Entry entry = entries.get(as.getKey());
+            if (entry == null || closed || !as.isReady()) {
+                close = true;
+                if (entry != null) {
+                    entry.size--;
+                }
+            } else {
+                entry.idle.addFirst(as);
+            }
+            if (entry != null) {
+                entry.borrowed--;
+            }
+            notifyAll();
+        }
+        if (close) {
+            as.close();
+        }
+    }
+
+    /**
+     * Removes from the pool an association which cannot be reused (e.g. after an I/O error).
+     */
+    public void invalidate(PooledAssociation as) {
+        if (as == null) {
+            return;
+        }
+        synchronized (this) {
+            Entry entry = entries.get(as.getKey());
+            if (entry != null) {
+                entry.size--;
+                entry.borrowed--;
+            }
+            notifyAll();
+        }
+        as.getAssociation().abort();
+    }
+
+    /**
+     * Releases the associations which have been idle for longer than the max idle time.
+     */
+    public void evictIdle() {
+        List<PooledAssociation> toClose = new ArrayList<PooledAssociation>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for (Iterator<Map.Entry<PoolKey, Entry>> it = entries.entrySet().iterator(); it.hasNext();) {
+                Entry entry = it.next().getValue();
+                for (Iterator<PooledAssociation> iter = entry.idle.iterator(); iter.hasNext();) {
+                    PooledAssociation as = iter.next();
+                    if (now - as.getLastUsedTime() > maxIdleTime || !as.isReady()) {
+                        iter.remove();
+                        entry.size--;
+                        toClose.add(as);
+                    }
+                }
+                if (entry.size == 0 && entry.borrowed == 0) {
+                    it.remove();
+                }
+            }
+        }
+        for (PooledAssociation as : toClose) {
+            LOGGER.debug("Release idle association with {}", as.getKey());
+            as.close();
+        }
+    }
+
+    public void close() {
+        List<PooledAssociation> toClose = new ArrayList<PooledAssociation>();
+        synchronized (this) {
+            closed = true;
+            for (Entry entry : entries.values()) {
+                toClose.addAll(entry.idle);
+                entry.size -= entry.idle.size();
+                entry.idle.clear();
+            }
+            notifyAll();
+        }
+        for (PooledAssociation as : toClose) {
+            as.close();
+        }
+        scheduledExecutor.shutdownNow();
+        executor.shutdown();
+    }
+
+    private boolean isValid(PooledAssociation as) {
+        if (!as.isReady()) {
+            return false;
+        }
+        long idle = System.currentTimeMillis() - as.getLastUsedTime();
+        if (idle > maxIdleTime) {
+            return false;
+        }
+        if (echoIdleTime >= 0 && idle >= echoIdleTime) {
+            return as.echo();
+        }
+        return true;
+    }
+
+    private Entry getEntry(PoolKey key, DicomNode callingNode, DicomNode calledNode, AdvancedParams params)
+        throws IOException {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(callingNode, calledNode, params);
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    private class Entry {
+        private final Deque<PooledAssociation> idle = new ArrayDeque<PooledAssociation>();
+        private final AssociationFactory factory;
+        private int size = 0;
+        private int borrowed = 0;
+
+        Entry(DicomNode callingNode, DicomNode calledNode, AdvancedParams params) throws IOException {
+            this.factory = new AssociationFactory(callingNode, calledNode, params, executor, scheduledExecutor);
+        }
+
+        PooledAssociation open(PoolKey key) throws Exception {
+            Association as = factory.open(maxOpsInvoked, null);
+            return new PooledAssociation(key, as, factory.getParams().getPriority());
+        }
+    }
+
+    static class PoolKey {
+        private final String callingAet;
+        private final String calledAet;
+        private final String hostname;
+        private final Integer port;
+        private final String options;
+
+        PoolKey(DicomNode callingNode, DicomNode calledNode, String options) {
+            this.callingAet = callingNode.getAet();
+            this.calledAet = calledNode.getAet();
+            this.hostname = calledNode.getHostname();
+            this.port = calledNode.getPort();
+            this.options = options == null ? "" : options;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = 31 + (callingAet == null ? 0 : callingAet.hashCode());
+            result = 31 * result + (calledAet == null ? 0 : calledAet.hashCode());
+            result = 31 * result + (hostname == null ? 0 : hostname.hashCode());
+            result = 31 * result + (port == null ? 0 : port.hashCode());
+            return 31 * result + options.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof PoolKey)) {
+                return false;
+            }
+            PoolKey other = (PoolKey) obj;
+            return equals(callingAet, other.callingAet) && equals(calledAet, other.calledAet)
+                && equals(hostname, other.hostname) && equals(port, other.port) && options.equals(other.options);
+        }
+
+        private static boolean equals(Object o1, Object o2) {
+            return o1 == null ? o2 == null : o1.equals(o2);
+        }
+
+        @Override
+        public String toString() {
+            return callingAet + "->" + calledAet + "@" + hostname + ":" + port;
+        }
+    }
+
+    static class DaemonThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+        private final String prefix;
+
+        DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
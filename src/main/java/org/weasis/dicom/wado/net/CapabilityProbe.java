@@ -0,0 +1,330 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.wado.net;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.DimseRSP;
+import org.dcm4che3.net.QueryOption;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.pdu.AAssociateAC;
+import org.dcm4che3.net.pdu.ExtendedNegotiation;
+import org.dcm4che3.net.service.QueryRetrieveLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.dicom.param.AdvancedParams;
+import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.param.DicomParam;
+import org.weasis.dicom.util.FileUtil;
+import org.weasis.dicom.util.StringUtil;
+
+/**
+ * Detects the query capabilities of the PACS with a test association and a few C-FIND requests on a sample study. The
+ * probe runs at startup and periodically, the profiles are kept in memory and in a properties file so that they are
+ * available before the first probe has been completed.
+ */
+public class CapabilityProbe {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CapabilityProbe.class);
+
+    private static final String UNKNOWN_UID = "1.2.826.0.1.3680043.2.1143.999999999";
+    private static final String UNKNOWN_MODALITY = "ZZ";
+    // Number of days of the StudyDate range for finding a sample study
+    private static final int SAMPLE_DAYS = 7;
+
+    private final File file;
+    private final long period;
+    private final String sampleStudyUID;
+    private final ConcurrentHashMap<String, PacsCapabilities> profiles =
+        new ConcurrentHashMap<String, PacsCapabilities>();
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduledExecutor;
+
+    /**
+     * @param file
+     *            the file where the profiles are stored, null means profiles only in memory
+     * @param period
+     *            the time in milliseconds between two probes (0 means only at startup)
+     * @param sampleStudyUID
+     *            the Study Instance UID of the sample study, null means a study of the last days
+     */
+    public CapabilityProbe(File file, long period, String sampleStudyUID) {
+        this.file = file;
+        this.period = period;
+        this.sampleStudyUID = StringUtil.hasText(sampleStudyUID) ? sampleStudyUID.trim() : null;
+        AssociationPool.DaemonThreadFactory threadFactory = new AssociationPool.DaemonThreadFactory("pacs-probe");
+        this.executor = Executors.newCachedThreadPool(threadFactory);
+        this.scheduledExecutor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        load();
+    }
+
+    /**
+     * Schedules the probe of a PACS, the first probe is launched immediately in background.
+     */
+    public void register(final DicomNode callingNode, final DicomNode calledNode, final AdvancedParams params) {
+        Runnable task = new Runnable() {
+
+            @Override
+            public void run() {
+                probe(callingNode, calledNode, params);
+            }
+        };
+        if (period > 0) {
+            scheduledExecutor.scheduleWithFixedDelay(task, 0, period, TimeUnit.MILLISECONDS);
+        } else {
+            scheduledExecutor.execute(task);
+        }
+    }
+
+    /**
+     * @return the last known capabilities of the PACS or null if it has never been probed
+     */
+    public PacsCapabilities getCapabilities(DicomNode calledNode) {
+        return calledNode == null ? null : profiles.get(PacsCapabilities.getNodeKey(calledNode));
+    }
+
+    /**
+     * Probes the PACS and updates its profile when successful.
+     *
+     * @return the new capabilities or null if the PACS cannot be reached
+     */
+    public PacsCapabilities probe(DicomNode callingNode, DicomNode calledNode, AdvancedParams params) {
+        String nodeKey = PacsCapabilities.getNodeKey(calledNode);
+        Association as = null;
+        try {
+            AssociationFactory factory =
+                new AssociationFactory(callingNode, calledNode, params, executor, scheduledExecutor);
+            as = factory.open(0, EnumSet.of(QueryOption.RELATIONAL, QueryOption.DATETIME));
+
+            PacsCapabilities c = new PacsCapabilities(nodeKey);
+            EnumSet<QueryOption> options = getAcceptedOptions(as.getAAssociateAC());
+            c.setRelationalQueries(options.contains(QueryOption.RELATIONAL));
+            c.setCombinedDateTimeMatching(options.contains(QueryOption.DATETIME));
+            c.setMaxOpsInvoked(as.getMaxOpsInvoked());
+
+            int priority = factory.getParams().getPriority();
+            Attributes study = findSampleStudy(as, priority);
+            if (study == null) {
+                LOGGER.info("No study found in {}, the matching capabilities cannot be tested", nodeKey);
+            } else {
+                String studyUID = study.getString(Tag.StudyInstanceUID);
+                c.setRangeMatching(probeRangeMatching(as, priority, studyUID, study.getString(Tag.StudyDate)));
+                c.setUidListMatching(probeUidListMatching(as, priority, studyUID));
+                c.setModalitiesInStudyMatching(probeModalitiesMatching(as, priority, studyUID,
+                    study.getString(Tag.ModalitiesInStudy)));
+            }
+            c.setProbeTime(System.currentTimeMillis());
+            profiles.put(nodeKey, c);
+            LOGGER.info("PACS capabilities: {}", c);
+            store();
+            return c;
+        } catch (Exception e) {
+            LOGGER.warn("Cannot probe the capabilities of {}: {}", nodeKey, e.getMessage());
+            return null;
+        } finally {
+            if (as != null) {
+                try {
+                    as.release();
+                } catch (IOException e) {
+                    as.abort();
+                }
+            }
+        }
+    }
+
+    public void close() {
+        scheduledExecutor.shutdownNow();
+        executor.shutdown();
+    }
+
+    private static EnumSet<QueryOption> getAcceptedOptions(AAssociateAC ac) {
+        ExtendedNegotiation extNeg =
+            ac == null ? null : ac.getExtNegotiationFor(UID.StudyRootQueryRetrieveInformationModelFIND);
+        EnumSet<QueryOption> options = extNeg == null ? null : QueryOption.toOptions(extNeg);
+        return options == null ? EnumSet.noneOf(QueryOption.class) : options;
+    }
+
+    /**
+     * Finds the configured sample study or, when it is not set or not found, a study of the last days. The query is
+     * never universal, so that it is cheap for the PACS.
+     */
+    private Attributes findSampleStudy(Association as, int priority) throws Exception {
+        Attributes study = null;
+        if (sampleStudyUID != null) {
+            study = findSampleStudy(as, priority, new DicomParam(Tag.StudyInstanceUID, sampleStudyUID),
+                new DicomParam(Tag.StudyDate));
+        }
+        if (study == null) {
+            SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+            Calendar start = Calendar.getInstance();
+            String end = format.format(start.getTime());
+            start.add(Calendar.DAY_OF_MONTH, -SAMPLE_DAYS);
+            study = findSampleStudy(as, priority, new DicomParam(Tag.StudyInstanceUID),
+                new DicomParam(Tag.StudyDate, format.format(start.getTime()) + "-" + end));
+        }
+        return study;
+    }
+
+    private static Attributes findSampleStudy(Association as, int priority, DicomParam uid, DicomParam date)
+        throws Exception {
+        List<Attributes> studies = find(as, priority, 1, uid, date, new DicomParam(Tag.ModalitiesInStudy));
+        if (studies != null) {
+            for (Attributes s : studies) {
+                if (StringUtil.hasText(s.getString(Tag.StudyInstanceUID))) {
+                    return s;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A range starting the day after the study date must not match the study.
+     */
+    private static Boolean probeRangeMatching(Association as, int priority, String studyUID, String studyDate)
+        throws Exception {
+        if (!StringUtil.hasText(studyDate)) {
+            return null;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+        Calendar next = Calendar.getInstance();
+        try {
+            next.setTime(format.parse(studyDate.trim()));
+        } catch (ParseException e) {
+            return null;
+        }
+        next.add(Calendar.DAY_OF_MONTH, 1);
+        return matches(as, priority, studyUID, new DicomParam(Tag.StudyDate, studyDate.trim() + "-"))
+            && !matches(as, priority, studyUID, new DicomParam(Tag.StudyDate, format.format(next.getTime()) + "-"));
+    }
+
+    private static Boolean probeUidListMatching(Association as, int priority, String studyUID) throws Exception {
+        List<Attributes> result =
+            find(as, priority, 0, new DicomParam(Tag.StudyInstanceUID, UNKNOWN_UID, studyUID));
+        if (result == null) {
+            return Boolean.FALSE;
+        }
+        for (Attributes s : result) {
+            if (studyUID.equals(s.getString(Tag.StudyInstanceUID))) {
+                return Boolean.TRUE;
+            }
+        }
+        return Boolean.FALSE;
+    }
+
+    private static Boolean probeModalitiesMatching(Association as, int priority, String studyUID, String modality)
+        throws Exception {
+        if (!StringUtil.hasText(modality)) {
+            return null;
+        }
+        return matches(as, priority, studyUID, new DicomParam(Tag.ModalitiesInStudy, UNKNOWN_MODALITY, modality))
+            && !matches(as, priority, studyUID, new DicomParam(Tag.ModalitiesInStudy, UNKNOWN_MODALITY));
+    }
+
+    private static boolean matches(Association as, int priority, String studyUID, DicomParam key) throws Exception {
+        List<Attributes> result = find(as, priority, 0, new DicomParam(Tag.StudyInstanceUID, studyUID), key);
+        return result != null && !result.isEmpty();
+    }
+
+    /**
+     * @param autoCancel
+     *            the number of responses after which a C-CANCEL is sent (0 means never)
+     * @return the responses or null when the PACS answered with an error status
+     */
+    private static List<Attributes> find(Association as, int priority, int autoCancel, DicomParam... keys)
+        throws Exception {
+        DimseRSP rsp =
+            as.cfind(UID.StudyRootQueryRetrieveInformationModelFIND, priority,
+                PooledAssociation.buildKeys(QueryRetrieveLevel.STUDY, keys), null, autoCancel);
+        List<Attributes> result = new ArrayList<Attributes>();
+        while (rsp.next()) {
+            int status = rsp.getCommand().getInt(Tag.Status, -1);
+            if (Status.isPending(status)) {
+                if (rsp.getDataset() != null) {
+                    result.add(rsp.getDataset());
+                }
+            } else if (status != Status.Success && status != Status.Cancel) {
+                return null;
+            }
+        }
+        return result;
+    }
+
+    private void load() {
+        if (file == null || !file.canRead()) {
+            return;
+        }
+        Properties props = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            props.load(in);
+            for (String key : props.stringPropertyNames()) {
+                if (key.endsWith(".time")) {
+                    String nodeKey = key.substring(0, key.length() - 5);
+                    PacsCapabilities c = PacsCapabilities.load(props, nodeKey);
+                    if (c != null) {
+                        profiles.put(nodeKey, c);
+                        LOGGER.info("Load PACS capabilities: {}", c);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read the PACS capabilities from {}: {}", file, e.getMessage());
+        } finally {
+            FileUtil.safeClose(in);
+        }
+    }
+
+    private synchronized void store() {
+        if (file == null) {
+            return;
+        }
+        Properties props = new Properties();
+        for (PacsCapabilities c : profiles.values()) {
+            c.store(props);
+        }
+        OutputStream out = null;
+        try {
+            File dir = file.getParentFile();
+            if (dir != null) {
+                dir.mkdirs();
+            }
+            out = new FileOutputStream(file);
+            props.store(out, "PACS capabilities detected by weasis-pacs-connector");
+        } catch (IOException e) {
+            LOGGER.warn("Cannot write the PACS capabilities into {}: {}", file, e.getMessage());
+        } finally {
+            FileUtil.safeClose(out);
+        }
+    }
+}
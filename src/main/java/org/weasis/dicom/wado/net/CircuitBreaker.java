@@ -0,0 +1,259 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.wado.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.dicom.param.DicomNode;
+
+/**
+ * Circuit breaker by PACS. The outcome of the last C-FIND queries is recorded, a query is a failure when it ends with
+ * an error or when it is slower than the slow call time. When the rate of failures is too high, the circuit is open
+ * and the queries are rejected immediately. After the open duration, a few trial queries are allowed (half-open
+ * state): the circuit is closed again if they all succeed, otherwise it is open again.
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int windowSize;
+    private final int minCalls;
+    private final double failureRate;
+    private final long slowCallTime;
+    private final long openDuration;
+    private final int trialCalls;
+    private final ConcurrentHashMap<String, NodeCircuit> circuits = new ConcurrentHashMap<String, NodeCircuit>();
+
+    /**
+     * @param windowSize
+     *            the number of last queries used for computing the failure rate
+     * @param minCalls
+     *            the minimum number of queries in the window before opening the circuit
+     * @param failureRate
+     *            the rate of failures (between 0 and 1) opening the circuit
+     * @param slowCallTime
+     *            a successful query slower than this time in milliseconds is counted as a failure (0 means never)
+     * @param openDuration
+     *            the time in milliseconds during which the queries are rejected
+     * @param trialCalls
+     *            the number of successful trial queries required in half-open state for closing the circuit
+     */
+    public CircuitBreaker(int windowSize, int minCalls, double failureRate, long slowCallTime, long openDuration,
+        int trialCalls) {
+        if (windowSize < 1 || trialCalls < 1 || failureRate <= 0.0 || failureRate > 1.0) {
+            throw new IllegalArgumentException("Invalid circuit breaker configuration");
+        }
+        this.windowSize = windowSize;
+        this.minCalls = Math.max(1, Math.min(windowSize, minCalls));
+        this.failureRate = failureRate;
+        this.slowCallTime = slowCallTime;
+        this.openDuration = openDuration;
+        this.trialCalls = trialCalls;
+    }
+
+    public long getOpenDuration() {
+        return openDuration;
+    }
+
+    public double getFailureRate() {
+        return failureRate;
+    }
+
+    /**
+     * @return the state of the circuit of the PACS, an open circuit becomes half-open after the open duration
+     */
+    public State getState(DicomNode node) {
+        return getCircuit(node).getState();
+    }
+
+    /**
+     * @return true if the queries to the PACS are currently rejected
+     */
+    public boolean isOpen(DicomNode node) {
+        return getState(node) == State.OPEN;
+    }
+
+    /**
+     * @return the authorization to send a query, or null when the circuit is open or when all the trial queries of
+     *         the half-open state are in progress
+     */
+    public Call tryAcquire(DicomNode node) {
+        NodeCircuit circuit = getCircuit(node);
+        return circuit.tryAcquire() ? new Call(circuit) : null;
+    }
+
+    /**
+     * @return the state of the circuit of each PACS
+     */
+    public List<String> getStatistics() {
+        List<String> list = new ArrayList<String>();
+        for (NodeCircuit circuit : circuits.values()) {
+            list.add(circuit.toString());
+        }
+        return list;
+    }
+
+    private NodeCircuit getCircuit(DicomNode node) {
+        String key = PacsCapabilities.getNodeKey(node);
+        NodeCircuit circuit = circuits.get(key);
+        if (circuit == null) {
+            circuit = new NodeCircuit(key);
+            NodeCircuit previous = circuits.putIfAbsent(key, circuit);
+            if (previous != null) {
+                circuit = previous;
+            }
+        }
+        return circuit;
+    }
+
+    /**
+     * One query authorized by the circuit breaker, its outcome must be recorded once.
+     */
+    public static class Call {
+        private final NodeCircuit circuit;
+        private final long startTime;
+        private boolean recorded = false;
+
+        Call(NodeCircuit circuit) {
+            this.circuit = circuit;
+            this.startTime = System.currentTimeMillis();
+        }
+
+        public synchronized void record(boolean success) {
+            if (!recorded) {
+                recorded = true;
+                circuit.record(success, System.currentTimeMillis() - startTime);
+            }
+        }
+
+        /**
+         * Records nothing (e.g. query cancelled by the build), only the trial slot is released.
+         */
+        public synchronized void ignore() {
+            if (!recorded) {
+                recorded = true;
+                circuit.ignore();
+            }
+        }
+    }
+
+    class NodeCircuit {
+        private final String key;
+        private final boolean[] outcomes = new boolean[windowSize];
+        private int index = 0;
+        private int count = 0;
+        private int failures = 0;
+        private State state = State.CLOSED;
+        private long openTime = 0L;
+        private int trialsInProgress = 0;
+        private int trialSuccesses = 0;
+        private long rejected = 0L;
+
+        NodeCircuit(String key) {
+            this.key = key;
+        }
+
+        synchronized State getState() {
+            if (state == State.OPEN && System.currentTimeMillis() - openTime >= openDuration) {
+                setState(State.HALF_OPEN);
+            }
+            return state;
+        }
+
+        synchronized boolean tryAcquire() {
+            State s = getState();
+            if (s == State.CLOSED) {
+                return true;
+            }
+            if (s == State.HALF_OPEN && trialsInProgress + trialSuccesses < trialCalls) {
+                trialsInProgress++;
+                return true;
+            }
+            rejected++;
+            return false;
+        }
+
+        synchronized void record(boolean success, long latency) {
+            boolean failed = !success || (slowCallTime > 0 && latency > slowCallTime);
+            if (state == State.HALF_OPEN) {
+                trialsInProgress = Math.max(0, trialsInProgress - 1);
+                if (failed) {
+                    open();
+                } else if (++trialSuccesses >= trialCalls) {
+                    setState(State.CLOSED);
+                }
+                return;
+            }
+            if (state == State.OPEN) {
+                // Outcome of a query sent before the opening
+                return;
+            }
+            if (count == windowSize) {
+                if (outcomes[index]) {
+                    failures--;
+                }
+            } else {
+                count++;
+            }
+            outcomes[index] = failed;
+            if (failed) {
+                failures++;
+            }
+            index = (index + 1) % windowSize;
+            if (count >= minCalls && failures >= failureRate * count) {
+                open();
+            }
+        }
+
+        synchronized void ignore() {
+            if (state == State.HALF_OPEN) {
+                trialsInProgress = Math.max(0, trialsInProgress - 1);
+            }
+        }
+
+        private void open() {
+            openTime = System.currentTimeMillis();
+            setState(State.OPEN);
+        }
+
+        private void setState(State newState) {
+            if (state != newState) {
+                if (newState == State.OPEN) {
+                    LOGGER.warn("Open the circuit of {}: the queries are rejected for {} ms (failures={}/{})",
+                        new Object[] { key, openDuration, failures, count });
+                } else {
+                    LOGGER.info("The circuit of {} is {}", key, newState);
+                }
+                state = newState;
+            }
+            // Each state starts with a new window and new trials
+            index = 0;
+            count = 0;
+            failures = 0;
+            trialsInProgress = 0;
+            trialSuccesses = 0;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "circuit " + key + " (state=" + state + ", failures=" + failures + "/" + count + ", rejected="
+                + rejected + ")";
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.wado.net;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.dicom.param.DicomNode;
+
+/**
+ * Limits the number of simultaneous C-FIND queries sent to each PACS. The limit adapts to the PACS (AIMD): it is
+ * increased by one for each window of successful queries, and it is decreased multiplicatively when a query fails or
+ * when the recent latency becomes much higher than the usual latency of the PACS.
+ */
+public class ConcurrencyLimiter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConcurrencyLimiter.class);
+
+    // Weight of a new latency sample in the recent and in the usual latency
+    private static final double SHORT_RTT_WEIGHT = 0.2;
+    private static final double LONG_RTT_WEIGHT = 0.02;
+    // Decrease ratio when the latency increases
+    private static final double LATENCY_BACKOFF_RATIO = 0.9;
+
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double backoffRatio;
+    private final long maxWait;
+    private final ConcurrentHashMap<String, NodeLimit> limits = new ConcurrentHashMap<String, NodeLimit>();
+
+    /**
+     * @param initialLimit
+     *            the limit of a PACS before the first queries
+     * @param minLimit
+     *            the lowest limit
+     * @param maxLimit
+     *            the highest limit
+     * @param tolerance
+     *            the limit is decreased when the recent latency is greater than the usual latency multiplied by this
+     *            value
+     * @param backoffRatio
+     *            the limit is multiplied by this ratio when a query fails
+     * @param maxWait
+     *            the maximum time in milliseconds to wait when the limit is reached
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double tolerance, double backoffRatio,
+        long maxWait) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("The limits must be 1 <= min <= max");
+        }
+        if (backoffRatio <= 0.0 || backoffRatio >= 1.0 || tolerance <= 1.0) {
+            throw new IllegalArgumentException("The backoff ratio must be in ]0,1[ and the tolerance greater than 1");
+        }
+        this.initialLimit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.backoffRatio = backoffRatio;
+        this.maxWait = maxWait;
+    }
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * Waits until a query can be sent to the PACS. The permit must be released when the query is completed.
+     *
+     * @param timeout
+     *            the maximum time to wait in milliseconds (no longer than the max wait of the limiter)
+     */
+    public Permit acquire(DicomNode node, long timeout) throws IOException, InterruptedException {
+        NodeLimit limit = getNodeLimit(node);
+        limit.acquire(Math.min(maxWait, timeout));
+        return new Permit(limit);
+    }
+
+    /**
+     * @return a permit or null when the limit of the PACS is reached (e.g. for an optional query). The permit must be
+     *         released when the query is completed.
+     */
+    public Permit tryAcquire(DicomNode node) {
+        NodeLimit limit = getNodeLimit(node);
+        return limit.tryAcquire() ? new Permit(limit) : null;
+    }
+
+    /**
+     * @return the current limit of the PACS
+     */
+    public int getLimit(DicomNode node) {
+        return getNodeLimit(node).getLimit();
+    }
+
+    /**
+     * @return the state of the limit of each PACS
+     */
+    public List<String> getStatistics() {
+        List<String> list = new ArrayList<String>();
+        for (NodeLimit limit : limits.values()) {
+            list.add(limit.toString());
+        }
+        return list;
+    }
+
+    private NodeLimit getNodeLimit(DicomNode node) {
+        String key = PacsCapabilities.getNodeKey(node);
+        NodeLimit limit = limits.get(key);
+        if (limit == null) {
+            limit = new NodeLimit(key, initialLimit);
+            NodeLimit previous = limits.putIfAbsent(key, limit);
+            if (previous != null) {
+                limit = previous;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Authorization to send one query, {@link #release(boolean)} must be called once.
+     */
+    public static class Permit {
+        private final NodeLimit limit;
+        private final long startTime;
+        private boolean released = false;
+
+        Permit(NodeLimit limit) {
+            this.limit = limit;
+            this.startTime = System.currentTimeMillis();
+        }
+
+        /**
+         * Releases the permit and adapts the limit with the latency and the result of the query.
+         */
+        public synchronized void release(boolean success) {
+            if (!released) {
+                released = true;
+                limit.release(System.currentTimeMillis() - startTime, success ? Boolean.TRUE : Boolean.FALSE);
+            }
+        }
+
+        /**
+         * Releases the permit without adapting the limit (e.g. cancelled query).
+         */
+        public synchronized void releaseUnmeasured() {
+            if (!released) {
+                released = true;
+                limit.release(0L, null);
+            }
+        }
+    }
+
+    class NodeLimit {
+        private final String key;
+        private double limit;
+        private int inFlight = 0;
+        private double shortRtt = 0.0;
+        private double longRtt = 0.0;
+        private long successes = 0;
+        private long failures = 0;
+
+        NodeLimit(String key, int limit) {
+            this.key = key;
+            this.limit = limit;
+        }
+
+        synchronized int getLimit() {
+            return (int) limit;
+        }
+
+        synchronized void acquire(long timeout) throws IOException, InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (inFlight >= (int) limit) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new QueryRejectedException("C-FIND concurrency limit (" + (int) limit + ") reached for "
+                        + key);
+                }
+                wait(wait);
+            }
+            inFlight++;
+        }
+
+        synchronized boolean tryAcquire() {
+            if (inFlight >= (int) limit) {
+                return false;
+            }
+            inFlight++;
+            return true;
+        }
+
+        synchronized void release(long latency, Boolean success) {
+            int previousLimit = (int) limit;
+            if (Boolean.FALSE.equals(success)) {
+                failures++;
+                limit = Math.max(minLimit, limit * backoffRatio);
+            } else if (Boolean.TRUE.equals(success)) {
+                successes++;
+                shortRtt = shortRtt <= 0.0 ? latency : shortRtt + SHORT_RTT_WEIGHT * (latency - shortRtt);
+                longRtt = longRtt <= 0.0 ? latency : longRtt + LONG_RTT_WEIGHT * (latency - longRtt);
+                if (shortRtt > longRtt * tolerance) {
+                    limit = Math.max(minLimit, limit * LATENCY_BACKOFF_RATIO);
+                } else if (inFlight * 2 >= limit) {
+                    // Increase only when the limit is used, one more query for each window of queries
+                    limit = Math.min(maxLimit, limit + 1.0 / limit);
+                }
+            }
+            inFlight--;
+            notifyAll();
+            if ((int) limit != previousLimit) {
+                LOGGER.info("C-FIND concurrency limit of {} changed from {} to {} (latency={}ms, usual={}ms)",
+                    new Object[] { key, previousLimit, (int) limit, (long) shortRtt, (long) longRtt });
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "limiter " + key + " (limit=" + (int) limit + ", inFlight=" + inFlight + ", latency="
+                + (long) shortRtt + "ms, usual=" + (long) longRtt + "ms, successes=" + successes + ", failures="
+                + failures + ")";
+        }
+    }
+}
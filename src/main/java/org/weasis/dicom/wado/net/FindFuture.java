@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.wado.net;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.DimseRSPHandler;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.QueryRetrieveLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the responses of one C-FIND request. Several C-FIND requests can be outstanding on the same association
+ * when asynchronous operations have been negotiated, each response is dispatched by dcm4che to the handler having
+ * the same message ID. When a {@link FindResponseHandler} is given, the responses are not collected.
+ */
+public class FindFuture extends DimseRSPHandler implements Future<List<Attributes>> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FindFuture.class);
+
+    private final Association association;
+    private final QueryRetrieveLevel level;
+    private final FindResponseHandler handler;
+    private final List<Attributes> responses = new ArrayList<Attributes>();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<Runnable> listeners = new ArrayList<Runnable>(2);
+    private volatile int status = -1;
+    private volatile Exception error;
+    private volatile boolean cancelled = false;
+    private volatile int count = 0;
+
+    /**
+     * @param handler
+     *            the handler consuming each response, null means the responses are collected in the result list
+     */
+    FindFuture(Association association, QueryRetrieveLevel level, FindResponseHandler handler) {
+        super(association.nextMessageID());
+        this.association = association;
+        this.level = level;
+        this.handler = handler;
+    }
+
+    @Override
+    public void onDimseRSP(Association as, Attributes cmd, Attributes data) {
+        super.onDimseRSP(as, cmd, data);
+        int rspStatus = cmd.getInt(Tag.Status, -1);
+        if (Status.isPending(rspStatus)) {
+            if (data != null && error == null) {
+                count++;
+                if (handler == null) {
+                    responses.add(data);
+                } else {
+                    try {
+                        handler.handle(data);
+                    } catch (Exception e) {
+                        // Keep the first error, the remaining responses are ignored
+                        error = e;
+                    }
+                }
+            }
+        } else {
+            status = rspStatus;
+            if (rspStatus != Status.Success && !(rspStatus == Status.Cancel && cancelled) && error == null) {
+                // The responses already received are not the complete result
+                error =
+                    new IOException("C-FIND at " + level + " level with " + as.getCalledAET()
+                        + " ended with status " + Integer.toHexString(rspStatus));
+            }
+            complete();
+        }
+    }
+
+    @Override
+    public void onClose(Association as) {
+        super.onClose(as);
+        if (done.getCount() > 0) {
+            error = new IOException("Association closed before the final C-FIND response");
+            complete();
+        }
+    }
+
+    void fail(Exception e) {
+        error = e;
+        complete();
+    }
+
+    private void complete() {
+        done.countDown();
+        List<Runnable> list;
+        synchronized (listeners) {
+            list = new ArrayList<Runnable>(listeners);
+            listeners.clear();
+        }
+        for (Runnable listener : list) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                LOGGER.error("C-FIND completion listener", e);
+            }
+        }
+    }
+
+    /**
+     * Adds a listener called once by the thread completing the query (final response, error or association closed),
+     * or immediately by the current thread when the query is already completed.
+     */
+    public void addListener(Runnable listener) {
+        boolean completed;
+        synchronized (listeners) {
+            completed = isDone();
+            if (!completed) {
+                listeners.add(listener);
+            }
+        }
+        if (completed) {
+            listener.run();
+        }
+    }
+
+    /**
+     * @return the status of the final response, -1 when it has not been received
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return true when the final response has been received, whatever its status. The association can then be reused.
+     */
+    public boolean hasFinalResponse() {
+        return status != -1;
+    }
+
+    /**
+     * @return the error of a completed query (failure status, association closed or error of the handler) or null
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    /**
+     * @return the number of pending responses received
+     */
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (isDone()) {
+            return false;
+        }
+        cancelled = true;
+        try {
+            // Send a C-CANCEL, the SCP will answer with a Cancel status
+            cancel(association);
+        } catch (IOException e) {
+            LOGGER.debug("Cannot send C-CANCEL: {}", e.getMessage());
+            association.abort();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public List<Attributes> get() throws InterruptedException, ExecutionException {
+        done.await();
+        return getResult();
+    }
+
+    @Override
+    public List<Attributes> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+        TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException("No final C-FIND response after " + unit.toMillis(timeout) + " ms");
+        }
+        return getResult();
+    }
+
+    /**
+     * @return the responses, an empty list when they have been consumed by a handler
+     */
+    private List<Attributes> getResult() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException("C-FIND at " + level + " level cancelled");
+        }
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return responses;
+    }
+}
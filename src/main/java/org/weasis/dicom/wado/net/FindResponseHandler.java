@@ -0,0 +1,25 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.wado.net;
+
+import org.dcm4che3.data.Attributes;
+
+/**
+ * Consumes the C-FIND responses as soon as they are received, so the datasets are not kept in memory until the final
+ * response. The handler is called by the thread reading the association and never concurrently for the same query.
+ * <p>
+ * The responses are streamed only with the association pool (pacs.pool.size) or with QIDO-RS. Without the pool, and for
+ * the hedged queries, all the responses are collected before being given to the handler.
+ */
+public interface FindResponseHandler {
+
+    void handle(Attributes dataset) throws Exception;
+}
@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.wado.net;
+
+import java.util.Properties;
+
+import org.weasis.dicom.param.DicomNode;
+
+/**
+ * The query capabilities of a PACS detected by the {@link CapabilityProbe}. A null value means the capability has not
+ * been tested (e.g. no study was found in the PACS).
+ */
+public class PacsCapabilities {
+
+    private final String nodeKey;
+    private boolean relationalQueries;
+    private boolean combinedDateTimeMatching;
+    private Boolean rangeMatching;
+    private Boolean uidListMatching;
+    private Boolean modalitiesInStudyMatching;
+    private int maxOpsInvoked = 1;
+    private long probeTime;
+
+    public PacsCapabilities(String nodeKey) {
+        if (nodeKey == null) {
+            throw new IllegalArgumentException("nodeKey cannot be null!");
+        }
+        this.nodeKey = nodeKey;
+    }
+
+    public static String getNodeKey(DicomNode node) {
+        return node.getAet() + "@" + node.getHostname() + ":" + node.getPort();
+    }
+
+    public String getNodeKey() {
+        return nodeKey;
+    }
+
+    /**
+     * @return true if the PACS has accepted the relational-queries extended negotiation
+     */
+    public boolean isRelationalQueries() {
+        return relationalQueries;
+    }
+
+    public void setRelationalQueries(boolean relationalQueries) {
+        this.relationalQueries = relationalQueries;
+    }
+
+    /**
+     * @return true if the PACS has accepted the combined date and time range matching extended negotiation
+     */
+    public boolean isCombinedDateTimeMatching() {
+        return combinedDateTimeMatching;
+    }
+
+    public void setCombinedDateTimeMatching(boolean combinedDateTimeMatching) {
+        this.combinedDateTimeMatching = combinedDateTimeMatching;
+    }
+
+    public Boolean getRangeMatching() {
+        return rangeMatching;
+    }
+
+    public void setRangeMatching(Boolean rangeMatching) {
+        this.rangeMatching = rangeMatching;
+    }
+
+    public Boolean getUidListMatching() {
+        return uidListMatching;
+    }
+
+    public void setUidListMatching(Boolean uidListMatching) {
+        this.uidListMatching = uidListMatching;
+    }
+
+    public Boolean getModalitiesInStudyMatching() {
+        return modalitiesInStudyMatching;
+    }
+
+    public void setModalitiesInStudyMatching(Boolean modalitiesInStudyMatching) {
+        this.modalitiesInStudyMatching = modalitiesInStudyMatching;
+    }
+
+    /**
+     * @return the maximum number of asynchronous operations accepted by the PACS (1 means synchronous operations, 0
+     *         means unlimited)
+     */
+    public int getMaxOpsInvoked() {
+        return maxOpsInvoked;
+    }
+
+    public void setMaxOpsInvoked(int maxOpsInvoked) {
+        this.maxOpsInvoked = maxOpsInvoked;
+    }
+
+    public long getProbeTime() {
+        return probeTime;
+    }
+
+    public void setProbeTime(long probeTime) {
+        this.probeTime = probeTime;
+    }
+
+    public void store(Properties props) {
+        props.setProperty(nodeKey + ".relational", Boolean.toString(relationalQueries));
+        props.setProperty(nodeKey + ".datetime", Boolean.toString(combinedDateTimeMatching));
+        setProperty(props, nodeKey + ".range", rangeMatching);
+        setProperty(props, nodeKey + ".uidList", uidListMatching);
+        setProperty(props, nodeKey + ".modalitiesInStudy", modalitiesInStudyMatching);
+        props.setProperty(nodeKey + ".maxOps", Integer.toString(maxOpsInvoked));
+        props.setProperty(nodeKey + ".time", Long.toString(probeTime));
+    }
+
+    /**
+     * @return the capabilities of the node stored in the properties or null if they have never been stored
+     */
+    public static PacsCapabilities load(Properties props, String nodeKey) {
+        String time = props.getProperty(nodeKey + ".time");
+        if (time == null) {
+            return null;
+        }
+        PacsCapabilities c = new PacsCapabilities(nodeKey);
+        try {
+            c.probeTime = Long.parseLong(time.trim());
+            c.maxOpsInvoked = Integer.parseInt(props.getProperty(nodeKey + ".maxOps", "1").trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        c.relationalQueries = Boolean.parseBoolean(props.getProperty(nodeKey + ".relational"));
+        c.combinedDateTimeMatching = Boolean.parseBoolean(props.getProperty(nodeKey + ".datetime"));
+        c.rangeMatching = getBoolean(props, nodeKey + ".range");
+        c.uidListMatching = getBoolean(props, nodeKey + ".uidList");
+        c.modalitiesInStudyMatching = getBoolean(props, nodeKey + ".modalitiesInStudy");
+        return c;
+    }
+
+    private static void setProperty(Properties props, String key, Boolean value) {
+        if (value == null) {
+            props.remove(key);
+        } else {
+            props.setProperty(key, value.toString());
+        }
+    }
+
+    private static Boolean getBoolean(Properties props, String key) {
+        String val = props.getProperty(key);
+        return val == null ? null : Boolean.valueOf(val.trim());
+    }
+
+    @Override
+    public String toString() {
+        return nodeKey + " (relational=" + relationalQueries + ", datetime=" + combinedDateTimeMatching + ", range="
+            + rangeMatching + ", uidList=" + uidListMatching + ", modalitiesInStudy=" + modalitiesInStudyMatching
+            + ", maxOps=" + maxOpsInvoked + ")";
+    }
+}
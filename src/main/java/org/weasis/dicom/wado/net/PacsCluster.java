@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.wado.net;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.dcm4che3.net.service.QueryRetrieveLevel;
+import org.weasis.dicom.param.DicomNode;
+
+/**
+ * Equivalent DIMSE nodes of the same PACS (same AE title). The queries are sent to the node having the least
+ * outstanding queries, and the latency of each node is recorded for hedging the slow queries.
+ */
+public class PacsCluster {
+
+    // Number of latencies by node and by level used for computing the 95th percentile
+    private static final int LATENCY_WINDOW = 100;
+    private static final int MIN_LATENCY_SAMPLES = 20;
+
+    private final List<Member> members;
+    private final boolean hedging;
+    private final long minHedgeDelay;
+    private int next = 0;
+
+    /**
+     * @param nodes
+     *            the nodes, the first one identifies the PACS (capabilities, caches...)
+     * @param hedging
+     *            true for sending a duplicate query to another node when a node is slower than usual
+     * @param minHedgeDelay
+     *            the minimum time in milliseconds before sending a duplicate query
+     */
+    public PacsCluster(List<DicomNode> nodes, boolean hedging, long minHedgeDelay) {
+        if (nodes == null || nodes.isEmpty()) {
+            throw new IllegalArgumentException("nodes cannot be empty");
+        }
+        this.members = new ArrayList<Member>(nodes.size());
+        for (DicomNode node : nodes) {
+            members.add(new Member(node));
+        }
+        this.hedging = hedging && nodes.size() > 1;
+        this.minHedgeDelay = minHedgeDelay;
+    }
+
+    public DicomNode getNode() {
+        return members.get(0).node;
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    public boolean isHedging() {
+        return hedging;
+    }
+
+    /**
+     * @param excluded
+     *            a member which must not be selected or null
+     * @return the member having the least outstanding queries (in turn when equal) or null when no other member is
+     *         available. The member must be released when the query is completed.
+     */
+    public synchronized Member acquire(Member excluded) {
+        Member selected = null;
+        int size = members.size();
+        for (int i = 0; i < size; i++) {
+            Member m = members.get((next + i) % size);
+            if (m != excluded && (selected == null || m.outstanding < selected.outstanding)) {
+                selected = m;
+            }
+        }
+        if (selected != null) {
+            selected.outstanding++;
+            next = (next + 1) % size;
+        }
+        return selected;
+    }
+
+    /**
+     * Counts one more outstanding query on a given member (e.g. a query sent on an association already open with this
+     * member). The member must be released when the query is completed.
+     */
+    public synchronized void reserve(Member member) {
+        member.outstanding++;
+    }
+
+    /**
+     * @param level
+     *            the level of the query, can be null when the latency is not measured
+     * @param latency
+     *            the time of the query in milliseconds, a negative value means not measured (e.g. cancelled query)
+     */
+    public synchronized void release(Member member, QueryRetrieveLevel level, long latency, boolean success) {
+        member.outstanding--;
+        if (success && latency >= 0) {
+            member.addLatency(level, latency);
+        } else if (!success) {
+            member.failures++;
+        }
+    }
+
+    /**
+     * @return the delay in milliseconds before sending a duplicate query, or -1 when the latency of the node is not
+     *         known yet
+     */
+    public synchronized long getHedgeDelay(Member member, QueryRetrieveLevel level) {
+        long p95 = member.getPercentile95(level);
+        return p95 < 0 ? -1L : Math.max(minHedgeDelay, p95);
+    }
+
+    public synchronized void addHedge(Member member) {
+        member.hedges++;
+    }
+
+    /**
+     * @return the state of each node
+     */
+    public synchronized List<String> getStatistics() {
+        List<String> list = new ArrayList<String>(members.size());
+        for (Member m : members) {
+            StringBuilder buf = new StringBuilder("node ");
+            buf.append(PacsCapabilities.getNodeKey(m.node));
+            buf.append(" (outstanding=");
+            buf.append(m.outstanding);
+            for (QueryRetrieveLevel level : QueryRetrieveLevel.values()) {
+                long p95 = m.getPercentile95(level);
+                if (p95 >= 0) {
+                    buf.append(", p95 ");
+                    buf.append(level);
+                    buf.append('=');
+                    buf.append(p95);
+                    buf.append("ms");
+                }
+            }
+            buf.append(", hedges=");
+            buf.append(m.hedges);
+            buf.append(", failures=");
+            buf.append(m.failures);
+            buf.append(')');
+            list.add(buf.toString());
+        }
+        return list;
+    }
+
+    public static class Member {
+        private final DicomNode node;
+        private final long[][] latencies = new long[QueryRetrieveLevel.values().length][LATENCY_WINDOW];
+        private final int[] counts = new int[QueryRetrieveLevel.values().length];
+        private int outstanding = 0;
+        private long hedges = 0;
+        private long failures = 0;
+
+        Member(DicomNode node) {
+            this.node = node;
+        }
+
+        public DicomNode getNode() {
+            return node;
+        }
+
+        void addLatency(QueryRetrieveLevel level, long latency) {
+            int l = level.ordinal();
+            latencies[l][counts[l] % LATENCY_WINDOW] = latency;
+            counts[l]++;
+        }
+
+        long getPercentile95(QueryRetrieveLevel level) {
+            int l = level.ordinal();
+            int n = Math.min(counts[l], LATENCY_WINDOW);
+            if (n < MIN_LATENCY_SAMPLES) {
+                return -1L;
+            }
+            long[] values = Arrays.copyOf(latencies[l], n);
+            Arrays.sort(values);
+            return values[(int) Math.ceil(0.95 * n) - 1];
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.wado.net;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.ElementDictionary;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.DimseRSP;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.QueryRetrieveLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.dicom.param.DicomParam;
+
+/**
+ * An association opened by the {@link AssociationPool}. It must be used by only one thread at a time, between
+ * {@link AssociationPool#borrow} and {@link AssociationPool#release}. Several C-FIND requests can be sent without
+ * waiting for the responses with {@link #cfindAsync}.
+ */
+public class PooledAssociation {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PooledAssociation.class);
+
+    private final AssociationPool.PoolKey key;
+    private final Association association;
+    private final int priority;
+    private final long creationTime;
+    private volatile long lastUsedTime;
+
+    PooledAssociation(AssociationPool.PoolKey key, Association association, int priority) {
+        this.key = key;
+        this.association = association;
+        this.priority = priority;
+        this.creationTime = System.currentTimeMillis();
+        this.lastUsedTime = creationTime;
+    }
+
+    AssociationPool.PoolKey getKey() {
+        return key;
+    }
+
+    public Association getAssociation() {
+        return association;
+    }
+
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    public long getLastUsedTime() {
+        return lastUsedTime;
+    }
+
+    void touch() {
+        lastUsedTime = System.currentTimeMillis();
+    }
+
+    public boolean isReady() {
+        return association.isReadyForDataTransfer();
+    }
+
+    /**
+     * Sends a C-ECHO and waits for the response.
+     *
+     * @return true if the PACS has answered with a success status
+     */
+    public boolean echo() {
+        try {
+            DimseRSP rsp = association.cecho();
+            rsp.next();
+            return rsp.getCommand().getInt(Tag.Status, -1) == Status.Success;
+        } catch (Exception e) {
+            LOGGER.debug("C-ECHO failed on {}: {}", key, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return the maximum number of outstanding operations accepted by the PACS (0 means unlimited)
+     */
+    public int getMaxOpsInvoked() {
+        return association.getMaxOpsInvoked();
+    }
+
+    /**
+     * Sends a C-FIND with the Study Root Query/Retrieve Information Model and waits for the final response.
+     *
+     * @return the list of the pending responses
+     */
+    public List<Attributes> cfind(QueryRetrieveLevel level, DicomParam... keys) throws IOException,
+        InterruptedException {
+        return cfind(level, null, keys);
+    }
+
+    /**
+     * Sends a C-FIND and waits for the final response, each pending response is given to the handler.
+     *
+     * @return the list of the pending responses, an empty list when a handler is given
+     */
+    public List<Attributes> cfind(QueryRetrieveLevel level, FindResponseHandler handler, DicomParam... keys)
+        throws IOException, InterruptedException {
+        try {
+            return cfindAsync(level, handler, keys).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Sends a C-FIND without waiting for the responses. When the association has been negotiated with asynchronous
+     * operations, the next C-FIND can be sent immediately, otherwise this method blocks until the previous operation
+     * has been completed.
+     */
+    public FindFuture cfindAsync(QueryRetrieveLevel level, DicomParam... keys) throws IOException,
+        InterruptedException {
+        return cfindAsync(level, null, keys);
+    }
+
+    /**
+     * Same as {@link #cfindAsync(QueryRetrieveLevel, DicomParam...)}, but each pending response is given to the
+     * handler instead of being collected.
+     */
+    public FindFuture cfindAsync(QueryRetrieveLevel level, FindResponseHandler handler, DicomParam... keys)
+        throws IOException, InterruptedException {
+        FindFuture future = new FindFuture(association, level, handler);
+        try {
+            association.cfind(UID.StudyRootQueryRetrieveInformationModelFIND, priority, buildKeys(level, keys), null,
+                future);
+        } catch (IOException e) {
+            future.fail(e);
+            throw e;
+        }
+        touch();
+        return future;
+    }
+
+    void close() {
+        try {
+            if (association.isReadyForDataTransfer()) {
+                association.release();
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Cannot release association with {}: {}", key, e.getMessage());
+            association.abort();
+        }
+    }
+
+    public static Attributes buildKeys(QueryRetrieveLevel level, DicomParam... keys) {
+        Attributes attrs = new Attributes();
+        if (level != null) {
+            attrs.setString(Tag.QueryRetrieveLevel, VR.CS, level.name());
+        }
+        for (DicomParam p : keys) {
+            int tag = p.getTag();
+            String[] values = p.getValues();
+            VR vr = ElementDictionary.vrOf(tag, null);
+            if (values == null || values.length == 0 || (values.length == 1 && values[0] == null)) {
+                attrs.setNull(tag, vr);
+            } else {
+                attrs.setString(tag, vr, values);
+            }
+        }
+        return attrs;
+    }
+}
@@ -0,0 +1,435 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.wado.net;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.ElementDictionary;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.service.QueryRetrieveLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.dicom.data.xml.Base64;
+import org.weasis.dicom.param.DicomParam;
+import org.weasis.dicom.util.FileUtil;
+import org.weasis.util.JsonReader;
+import org.weasis.util.JsonReader.Event;
+
+/**
+ * Sends the queries with DICOMweb QIDO-RS instead of C-FIND. The matching keys become query parameters, the return
+ * keys become includefield parameters, and the JSON responses are parsed as a stream into the same datasets as the
+ * C-FIND responses. The HTTP connections are kept alive and reused by the JDK (see the http.maxConnections system
+ * property).
+ */
+public class QidoClient {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(QidoClient.class);
+
+    private final String baseURL;
+    private final int pageSize;
+    private final int concurrency;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final String authorization;
+
+    /**
+     * @param baseURL
+     *            the base URL of the QIDO-RS service (e.g. http://localhost:8080/dcm4chee-arc/aets/DCM4CHEE/rs)
+     * @param pageSize
+     *            the number of results by request (limit and offset parameters), 0 means no paging
+     * @param concurrency
+     *            the maximum number of series and instance queries executed simultaneously for building one manifest
+     * @param connectTimeout
+     *            the connection timeout in milliseconds
+     * @param readTimeout
+     *            the read timeout in milliseconds
+     * @param login
+     *            the credentials for the basic authentication (user:password) or null
+     */
+    public QidoClient(String baseURL, int pageSize, int concurrency, int connectTimeout, int readTimeout,
+        String login) {
+        if (baseURL == null) {
+            throw new IllegalArgumentException("baseURL cannot be null");
+        }
+        this.baseURL = baseURL.endsWith("/") ? baseURL.substring(0, baseURL.length() - 1) : baseURL;
+        this.pageSize = pageSize;
+        this.concurrency = concurrency;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.authorization = login == null ? null : "Basic " + Base64.encodeBytes(login.trim().getBytes());
+    }
+
+    public String getBaseURL() {
+        return baseURL;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Sends the query and reads all the pages of results.
+     *
+     * @param handler
+     *            the handler consuming each response as soon as it is parsed, null means the responses are returned
+     * @param maxTime
+     *            the maximum time in milliseconds for all the pages (Long.MAX_VALUE means only the configured timeouts)
+     * @return the responses, an empty list when a handler is given
+     * @throws TimeoutException
+     *             when the maximum time is over before the last page has been read
+     */
+    public List<Attributes> query(QueryRetrieveLevel level, FindResponseHandler handler, long maxTime,
+        DicomParam... keys) throws Exception {
+        List<Attributes> result = handler == null ? new ArrayList<Attributes>() : Collections.<Attributes> emptyList();
+        long deadline = maxTime == Long.MAX_VALUE ? Long.MAX_VALUE : System.currentTimeMillis() + maxTime;
+        int offset = 0;
+        while (true) {
+            int count;
+            try {
+                count = get(buildURL(level, offset, keys), handler, result, deadline);
+            } catch (SocketTimeoutException e) {
+                // The read timeout has been reduced to the remaining time
+                getRemainingTime(deadline);
+                throw e;
+            }
+            if (pageSize <= 0 || count < pageSize) {
+                return result;
+            }
+            offset += count;
+        }
+    }
+
+    private int get(String url, FindResponseHandler handler, List<Attributes> result, long deadline)
+        throws Exception {
+        long maxTime = getRemainingTime(deadline);
+        LOGGER.debug("QIDO-RS request: {}", url);
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(getTimeout(connectTimeout, maxTime));
+        connection.setReadTimeout(getTimeout(readTimeout, maxTime));
+        connection.setRequestProperty("Accept", "application/dicom+json, application/json");
+        if (authorization != null) {
+            connection.setRequestProperty("Authorization", authorization);
+        }
+        int code = connection.getResponseCode();
+        if (code == HttpURLConnection.HTTP_NO_CONTENT) {
+            FileUtil.safeClose(connection.getInputStream());
+            return 0;
+        }
+        if (code != HttpURLConnection.HTTP_OK) {
+            // Read the error stream, so the connection can be reused
+            FileUtil.safeClose(connection.getErrorStream());
+            throw new IOException("QIDO-RS request failed with HTTP status " + code + ": " + url);
+        }
+        InputStream in = connection.getInputStream();
+        try {
+            return readDatasets(new JsonReader(new BufferedReader(new InputStreamReader(in, "UTF-8"))), handler,
+                result, deadline);
+        } finally {
+            FileUtil.safeClose(in);
+        }
+    }
+
+    /**
+     * @return the time in milliseconds before the deadline, Long.MAX_VALUE when there is no deadline
+     * @throws TimeoutException
+     *             when the deadline is over
+     */
+    private static long getRemainingTime(long deadline) throws TimeoutException {
+        if (deadline == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        long remainingTime = deadline - System.currentTimeMillis();
+        if (remainingTime <= 0) {
+            throw new TimeoutException("The time budget of the QIDO-RS query is over");
+        }
+        return remainingTime;
+    }
+
+    private static int getTimeout(int timeout, long maxTime) {
+        if (maxTime == Long.MAX_VALUE) {
+            return timeout;
+        }
+        // 0 would mean an infinite timeout
+        int max = (int) Math.max(1L, Math.min(Integer.MAX_VALUE, maxTime));
+        return timeout <= 0 ? max : Math.min(timeout, max);
+    }
+
+    private String buildURL(QueryRetrieveLevel level, int offset, DicomParam... keys) throws IOException {
+        String studyUID = level == QueryRetrieveLevel.STUDY ? null : getSingleValue(Tag.StudyInstanceUID, keys);
+        String seriesUID =
+            level == QueryRetrieveLevel.IMAGE && studyUID != null ? getSingleValue(Tag.SeriesInstanceUID, keys)
+                : null;
+        StringBuilder url = new StringBuilder(baseURL);
+        if (studyUID != null) {
+            url.append("/studies/");
+            url.append(encode(studyUID));
+        }
+        if (seriesUID != null) {
+            url.append("/series/");
+            url.append(encode(seriesUID));
+        }
+        switch (level) {
+            case STUDY:
+                url.append("/studies");
+                break;
+            case SERIES:
+                url.append("/series");
+                break;
+            case IMAGE:
+                url.append("/instances");
+                break;
+            default:
+                throw new IOException("QIDO-RS does not support the " + level + " level");
+        }
+
+        char separator = '?';
+        for (DicomParam p : keys) {
+            int tag = p.getTag();
+            if ((tag == Tag.StudyInstanceUID && studyUID != null)
+                || (tag == Tag.SeriesInstanceUID && seriesUID != null)) {
+                // Already in the path
+                continue;
+            }
+            String value = getValue(p.getValues());
+            url.append(separator);
+            separator = '&';
+            if (value == null) {
+                url.append("includefield=");
+                url.append(toHex(tag));
+            } else {
+                url.append(toHex(tag));
+                url.append('=');
+                url.append(encode(value));
+            }
+        }
+        if (pageSize > 0) {
+            url.append(separator);
+            url.append("limit=");
+            url.append(pageSize);
+            url.append("&offset=");
+            url.append(offset);
+        }
+        return url.toString();
+    }
+
+    private static String getSingleValue(int tag, DicomParam... keys) {
+        for (DicomParam p : keys) {
+            if (p.getTag() == tag) {
+                String[] values = p.getValues();
+                if (values != null && values.length == 1 && values[0] != null && values[0].length() > 0
+                    && values[0].indexOf('*') < 0 && values[0].indexOf('?') < 0) {
+                    return values[0];
+                }
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the values separated by commas (UID list matching) or null when there is no value (return key)
+     */
+    private static String getValue(String[] values) {
+        if (values == null) {
+            return null;
+        }
+        StringBuilder buf = new StringBuilder();
+        for (String v : values) {
+            if (v != null && v.length() > 0) {
+                if (buf.length() > 0) {
+                    buf.append(',');
+                }
+                buf.append(v);
+            }
+        }
+        return buf.length() == 0 ? null : buf.toString();
+    }
+
+    private static String encode(String value) throws IOException {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+
+    private static String toHex(int tag) {
+        String hex = Integer.toHexString(tag).toUpperCase();
+        StringBuilder buf = new StringBuilder(8);
+        for (int i = hex.length(); i < 8; i++) {
+            buf.append('0');
+        }
+        buf.append(hex);
+        return buf.toString();
+    }
+
+    /**
+     * Reads the JSON array of datasets (DICOM JSON Model, PS3.18 F.2). The read timeout applies to each read of the
+     * socket, so the deadline is also checked after each dataset.
+     *
+     * @return the number of datasets
+     */
+    static int readDatasets(JsonReader json, FindResponseHandler handler, List<Attributes> result, long deadline)
+        throws Exception {
+        Event event = json.next();
+        if (event == null) {
+            return 0;
+        }
+        if (event != Event.START_ARRAY) {
+            throw new IOException("The QIDO-RS response is not a JSON array");
+        }
+        int count = 0;
+        while ((event = json.next()) == Event.START_OBJECT) {
+            Attributes dataset = readDataset(json);
+            getRemainingTime(deadline);
+            count++;
+            if (handler == null) {
+                result.add(dataset);
+            } else {
+                handler.handle(dataset);
+            }
+        }
+        if (event != Event.END_ARRAY) {
+            throw new IOException("Unexpected JSON content in the QIDO-RS response: " + event);
+        }
+        return count;
+    }
+
+    private static Attributes readDataset(JsonReader json) throws IOException {
+        Attributes dataset = new Attributes();
+        Event event;
+        while ((event = json.next()) == Event.KEY_NAME) {
+            int tag;
+            try {
+                tag = (int) Long.parseLong(json.getString(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid DICOM tag in the QIDO-RS response: " + json.getString());
+            }
+            readAttribute(json, dataset, tag);
+        }
+        if (event != Event.END_OBJECT) {
+            throw new IOException("Unexpected JSON content in the QIDO-RS response: " + event);
+        }
+        return dataset;
+    }
+
+    private static void readAttribute(JsonReader json, Attributes dataset, int tag) throws IOException {
+        if (json.next() != Event.START_OBJECT) {
+            throw new IOException("Invalid attribute in the QIDO-RS response: " + toHex(tag));
+        }
+        String vrName = null;
+        List<String> values = new ArrayList<String>();
+        Event event;
+        while ((event = json.next()) == Event.KEY_NAME) {
+            String name = json.getString();
+            if ("vr".equals(name)) {
+                json.next();
+                vrName = json.getString();
+            } else if ("Value".equals(name)) {
+                readValues(json, values);
+            } else {
+                // BulkDataURI and InlineBinary are not used in the manifest
+                json.skipValue();
+            }
+        }
+        if (event != Event.END_OBJECT) {
+            throw new IOException("Invalid attribute in the QIDO-RS response: " + toHex(tag));
+        }
+
+        VR vr = getVR(vrName, tag);
+        if (vr == null || vr == VR.SQ) {
+            // The sequences are not used in the manifest
+            return;
+        }
+        if (values.isEmpty()) {
+            dataset.setNull(tag, vr);
+        } else {
+            dataset.setString(tag, vr, values.toArray(new String[values.size()]));
+        }
+    }
+
+    private static void readValues(JsonReader json, List<String> values) throws IOException {
+        if (json.next() != Event.START_ARRAY) {
+            throw new IOException("Invalid Value in the QIDO-RS response");
+        }
+        Event event;
+        while ((event = json.next()) != Event.END_ARRAY) {
+            if (event == null) {
+                throw new IOException("Unexpected end of the QIDO-RS response");
+            } else if (event == Event.START_OBJECT) {
+                // Person name (the items of a sequence are ignored)
+                values.add(readPersonName(json));
+            } else if (event == Event.START_ARRAY) {
+                json.skipRemaining();
+            } else if (event == Event.VALUE_NULL) {
+                values.add("");
+            } else {
+                values.add(json.getString());
+            }
+        }
+    }
+
+    private static String readPersonName(JsonReader json) throws IOException {
+        String alphabetic = "";
+        String ideographic = "";
+        String phonetic = "";
+        Event event;
+        while ((event = json.next()) == Event.KEY_NAME) {
+            String name = json.getString();
+            Event value = json.next();
+            if (value == Event.VALUE_STRING) {
+                if ("Alphabetic".equals(name)) {
+                    alphabetic = json.getString();
+                } else if ("Ideographic".equals(name)) {
+                    ideographic = json.getString();
+                } else if ("Phonetic".equals(name)) {
+                    phonetic = json.getString();
+                }
+            } else if (value == Event.START_OBJECT || value == Event.START_ARRAY) {
+                // Content of a sequence item
+                json.skipRemaining();
+            }
+        }
+        if (event != Event.END_OBJECT) {
+            throw new IOException("Invalid person name in the QIDO-RS response");
+        }
+        String pn = alphabetic + "=" + ideographic + "=" + phonetic;
+        int end = pn.length();
+        while (end > 0 && pn.charAt(end - 1) == '=') {
+            end--;
+        }
+        return pn.substring(0, end);
+    }
+
+    private static VR getVR(String vrName, int tag) {
+        if (vrName != null) {
+            try {
+                return VR.valueOf(vrName);
+            } catch (IllegalArgumentException e) {
+                LOGGER.debug("Unknown VR {} of {}", vrName, toHex(tag));
+            }
+        }
+        return ElementDictionary.vrOf(tag, null);
+    }
+}
@@ -0,0 +1,26 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.wado.net;
+
+import java.io.IOException;
+
+/**
+ * The query has not been sent to the PACS because of a local limit (concurrency limit reached, no association
+ * available in the pool or open circuit). It is not recorded as a failure of the PACS.
+ */
+public class QueryRejectedException extends IOException {
+
+    private static final long serialVersionUID = -2750841204615397721L;
+
+    public QueryRejectedException(String message) {
+        super(message);
+    }
+}
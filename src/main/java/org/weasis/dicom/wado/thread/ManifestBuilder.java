@@ -11,15 +11,17 @@
 package org.weasis.dicom.wado.thread;
 
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.weasis.dicom.wado.DicomQueryParams;
+import org.weasis.dicom.wado.SharedManifest;
 import org.weasis.dicom.wado.WadoQuery;
-import org.weasis.dicom.wado.WadoQuery.WadoMessage;
 import org.weasis.dicom.wado.XmlManifest;
 import org.weasis.servlet.ServletUtil;
 
@@ -34,6 +36,8 @@ public class ManifestBuilder implements Callable<XmlManifest> {
     private final DicomQueryParams params;
     private final XmlManifest xml;
     private volatile Future<XmlManifest> future;
+    private ConcurrentHashMap<String, Future<XmlManifest>> inFlightMap;
+    private String requestKey;
 
     public ManifestBuilder(DicomQueryParams params) {
         this.params = params;
@@ -61,6 +65,37 @@ public class ManifestBuilder implements Callable<XmlManifest> {
         future = executor.submit(this);
     }
 
+    /**
+     * Submits the build, or joins the build of an identical request still in progress. Each builder keeps its own
+     * request id.
+     *
+     * @param inFlightMap
+     *            the builds in progress by request key, null means no coalescing
+     */
+    public void submit(ExecutorService executor, ConcurrentHashMap<String, Future<XmlManifest>> inFlightMap) {
+        if (inFlightMap == null || params == null) {
+            submit(executor);
+            return;
+        }
+        String key = params.getRequestKey();
+        FutureTask<XmlManifest> task = new FutureTask<XmlManifest>(this);
+        Future<XmlManifest> inFlight = inFlightMap.putIfAbsent(key, task);
+        if (inFlight == null) {
+            this.inFlightMap = inFlightMap;
+            this.requestKey = key;
+            future = task;
+            try {
+                executor.execute(task);
+            } catch (RuntimeException e) {
+                inFlightMap.remove(key, task);
+                throw e;
+            }
+        } else {
+            LOGGER.info("Join the manifest build in progress of an identical request [id={}]", requestId);
+            future = inFlight;
+        }
+    }
+
     public Future<XmlManifest> getFuture() {
         return future;
     }
@@ -68,16 +103,19 @@ public class ManifestBuilder implements Callable<XmlManifest> {
     @Override
     public XmlManifest call() throws Exception {
         if (xml == null) {
-            long startTime = System.currentTimeMillis();
-
-            WadoMessage message = ServletUtil.getPatientList(params);
-            WadoQuery wadoQuery =
-                new WadoQuery(params.getPatients(), params.getWadoParameters(), params.getCharsetEncoding(),
-                    params.isAcceptNoImage());
-            wadoQuery.setWadoMessage(message);
-
-            LOGGER.info("Build Manifest in {} ms [id={}]", (System.currentTimeMillis() - startTime), requestId);
-            return wadoQuery;
+            try {
+                long startTime = System.currentTimeMillis();
+
+                WadoQuery wadoQuery = ServletUtil.buildWadoQuery(params);
+
+                LOGGER.info("Build Manifest in {} ms [id={}]", (System.currentTimeMillis() - startTime), requestId);
+                // The manifest can be consumed by the identical requests which have joined this build
+                return inFlightMap == null ? wadoQuery : new SharedManifest(wadoQuery);
+            } finally {
+                if (inFlightMap != null) {
+                    inFlightMap.remove(requestKey, future);
+                }
+            }
         } else {
             return xml;
         }
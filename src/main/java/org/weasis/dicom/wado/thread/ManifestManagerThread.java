@@ -75,7 +75,7 @@ public class ManifestManagerThread extends Thread {
 
                 if (diff > MAX_LIFE_CYCLE) {
                     Future<XmlManifest> future = manifestBuilder.getFuture();
-                    if (future != null && !future.isDone()) {
+                    if (future != null && !future.isDone() && !isShared(key, future)) {
                         // If the builder process is still running after 5 minutes, kill it.
                         future.cancel(true);
                     }
@@ -92,4 +92,16 @@ public class ManifestManagerThread extends Thread {
             }
         }
     }
+
+    /**
+     * @return true if the build is also used by another request (coalesced build), which can still be waiting for it
+     */
+    private boolean isShared(Integer key, Future<XmlManifest> future) {
+        for (Entry<Integer, ManifestBuilder> entry : manifestBuilderMap.entrySet()) {
+            if (!key.equals(entry.getKey()) && entry.getValue().getFuture() == future) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Properties;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.dicom.util.StringUtil;
+import org.weasis.dicom.wado.cache.NegativeCache;
+import org.weasis.dicom.wado.cache.QueryCache;
+import org.weasis.dicom.wado.net.CircuitBreaker;
+import org.weasis.dicom.wado.net.ConcurrencyLimiter;
+import org.weasis.dicom.wado.net.PacsCluster;
+
+/**
+ * Administration of the query caches: GET returns the statistics of each cache. POST with the parameter purge=true (or
+ * purge=cacheName) removes all the entries, POST with the parameter invalidate=ID (with the optional parameter
+ * type=studyUID, accessionNumber, seriesUID or objectUID) removes an ID from the negative cache. The current C-FIND
+ * concurrency limit and the circuit state of each PACS are also returned. Only the hosts of cache.admin.hosts.allow
+ * (the local host when the value is empty) are allowed.
+ */
+public class CacheManager extends HttpServlet {
+
+    private static final long serialVersionUID = -2316104542816624431L;
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheManager.class);
+
+    public static final String PARAM_PURGE = "purge";
+    public static final String PARAM_INVALIDATE = "invalidate";
+    public static final String PARAM_TYPE = "type";
+
+    private static final String LOCAL_HOSTS = "127.0.0.1,0:0:0:0:0:0:0:1,localhost";
+
+    @Override
+    public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (isAllowed(request, response)) {
+            writeStatistics(request, response, true);
+        }
+    }
+
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!isAllowed(request, response)) {
+            return;
+        }
+        if (request.getParameter(PARAM_PURGE) != null || request.getParameter(PARAM_INVALIDATE) != null) {
+            // A link or a prefetching browser must not modify the caches
+            response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED, "The caches can be modified only with POST");
+            return;
+        }
+        writeStatistics(request, response, false);
+    }
+
+    private boolean isAllowed(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Properties pacsProperties = (Properties) this.getServletContext().getAttribute("componentProperties");
+        String hosts = pacsProperties == null ? null : pacsProperties.getProperty("cache.admin.hosts.allow");
+        if (!StringUtil.hasText(hosts)) {
+            // Unlike hosts.allow, no value does not mean no restriction
+            hosts = LOCAL_HOSTS;
+        }
+        if (!ServletUtil.isRequestAllowed(request, hosts, LOGGER)) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return false;
+        }
+        return true;
+    }
+
+    private void writeStatistics(HttpServletRequest request, HttpServletResponse response, boolean update)
+        throws IOException {
+        response.setHeader("Cache-Control", "no-cache, no-store, must-revalidate"); // HTTP 1.1
+        response.setContentType("text/plain");
+        List<?> caches = (List<?>) getServletContext().getAttribute("queryCaches");
+        String purge = update ? request.getParameter(PARAM_PURGE) : null;
+
+        PrintWriter writer = response.getWriter();
+        try {
+            String invalidate = update ? request.getParameter(PARAM_INVALIDATE) : null;
+            NegativeCache negativeCache = (NegativeCache) getServletContext().getAttribute("negativeCache");
+            if (invalidate != null && negativeCache != null) {
+                int nb = negativeCache.invalidate(request.getParameter(PARAM_TYPE), invalidate.trim());
+                LOGGER.info("Invalidate {} in the negative cache", invalidate);
+                writer.println("Invalidated entries: " + nb);
+            }
+            if (caches != null) {
+                for (Object item : caches) {
+                    QueryCache<?, ?> cache = (QueryCache<?, ?>) item;
+                    if (purge != null && ("true".equalsIgnoreCase(purge) || purge.equals(cache.getName()))) {
+                        cache.purge();
+                        LOGGER.info("Purge the {} cache", cache.getName());
+                    }
+                    writer.println(cache);
+                }
+            }
+            CircuitBreaker breaker = (CircuitBreaker) getServletContext().getAttribute("circuitBreaker");
+            if (breaker != null) {
+                for (String stat : breaker.getStatistics()) {
+                    writer.println(stat);
+                }
+            }
+            ConcurrencyLimiter limiter = (ConcurrencyLimiter) getServletContext().getAttribute("concurrencyLimiter");
+            if (limiter != null) {
+                for (String stat : limiter.getStatistics()) {
+                    writer.println(stat);
+                }
+            }
+            PacsCluster cluster = (PacsCluster) getServletContext().getAttribute("pacsCluster");
+            if (cluster != null) {
+                for (String stat : cluster.getStatistics()) {
+                    writer.println(stat);
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
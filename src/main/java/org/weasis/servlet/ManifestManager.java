@@ -10,12 +10,18 @@
  *******************************************************************************/
 package org.weasis.servlet;
 
+import java.io.File;
 import java.net.URL;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.ServiceLoader;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServlet;
@@ -23,7 +29,24 @@ import javax.servlet.http.HttpServlet;
 import org.jdom2.Element;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.weasis.dicom.param.DicomNode;
 import org.weasis.dicom.util.StringUtil;
+import org.weasis.dicom.wado.DicomManifestSource;
+import org.weasis.dicom.wado.ManifestSource;
+import org.weasis.dicom.wado.QueryBatcher;
+import org.weasis.dicom.wado.XmlManifest;
+import org.weasis.dicom.wado.cache.InstanceCache;
+import org.weasis.dicom.wado.cache.NegativeCache;
+import org.weasis.dicom.wado.cache.QueryCache;
+import org.weasis.dicom.wado.cache.SeriesCache;
+import org.weasis.dicom.wado.cache.StudyCache;
+import org.weasis.dicom.wado.cache.StudyTreeCache;
+import org.weasis.dicom.wado.net.AssociationPool;
+import org.weasis.dicom.wado.net.CapabilityProbe;
+import org.weasis.dicom.wado.net.CircuitBreaker;
+import org.weasis.dicom.wado.net.ConcurrencyLimiter;
+import org.weasis.dicom.wado.net.PacsCluster;
+import org.weasis.dicom.wado.net.QidoClient;
 import org.weasis.dicom.wado.thread.ManifestBuilder;
 import org.weasis.dicom.wado.thread.ManifestManagerThread;
 
@@ -38,6 +61,12 @@ public class ManifestManager extends HttpServlet {
 
     private final ManifestManagerThread manifestManagerThread = new ManifestManagerThread(manifestBuilderMap);
     private final Map<URL, Element> jnlpTemplates = ManifestManager.<URL, Element> createLRUMap(20);
+    private AssociationPool associationPool;
+    private CapabilityProbe capabilityProbe;
+    private ManifestSource manifestSource;
+    private ExecutorService queryExecutor;
+    private ExecutorService federationExecutor;
+    private final List<QueryCache<?, ?>> queryCaches = new CopyOnWriteArrayList<QueryCache<?, ?>>();
 
     @Override
     public void init() {
@@ -107,6 +136,182 @@ public class ManifestManager extends HttpServlet {
             this.getServletContext().setAttribute("manifestExecutor",
                 Executors.newFixedThreadPool(ServletUtil.getIntProperty(properties, "thread.manifest.concurrency", 5)));
             this.getServletContext().setAttribute("manifestBuilderMap", manifestBuilderMap);
+            if (Boolean.valueOf(properties.getProperty("thread.manifest.coalescing", "false"))) {
+                this.getServletContext().setAttribute("manifestInFlightMap",
+                    new ConcurrentHashMap<String, Future<XmlManifest>>());
+            }
+
+            // Shared by all the builds, the number of threads of the process does not depend on the number of requests
+            queryExecutor =
+                Executors.newFixedThreadPool(Math.max(1, ServletUtil.getIntProperty(properties,
+                    "thread.query.pool.size", 20)));
+            this.getServletContext().setAttribute("queryExecutor", queryExecutor);
+            if (!ServletUtil.getFederatedPacsNodes(properties).isEmpty()) {
+                federationExecutor =
+                    Executors.newFixedThreadPool(Math.max(1, ServletUtil.getIntProperty(properties,
+                        "thread.federation.pool.size", 5)));
+                this.getServletContext().setAttribute("federationExecutor", federationExecutor);
+            }
+
+            long batchWindow = ServletUtil.getLongProperty(properties, "pacs.query.batch.window", 0L);
+            if (batchWindow > 0) {
+                this.getServletContext().setAttribute("queryBatcher", new QueryBatcher(batchWindow));
+                LOGGER.info("Query batching configuration (window={}ms)", batchWindow);
+            }
+
+            int maxLimit = ServletUtil.getIntProperty(properties, "pacs.limiter.max", 0);
+            if (maxLimit > 0) {
+                ConcurrencyLimiter limiter =
+                    new ConcurrencyLimiter(ServletUtil.getIntProperty(properties, "pacs.limiter.initial", maxLimit),
+                        ServletUtil.getIntProperty(properties, "pacs.limiter.min", 1), maxLimit,
+                        Double.parseDouble(properties.getProperty("pacs.limiter.latency.tolerance", "2.0")),
+                        Double.parseDouble(properties.getProperty("pacs.limiter.backoff", "0.5")),
+                        ServletUtil.getLongProperty(properties, "pacs.limiter.wait", 30000L));
+                this.getServletContext().setAttribute("concurrencyLimiter", limiter);
+                LOGGER.info("C-FIND concurrency limiter configuration (min={}, max={})", limiter.getMinLimit(),
+                    limiter.getMaxLimit());
+            }
+
+            int circuitWindow = ServletUtil.getIntProperty(properties, "pacs.circuit.window", 0);
+            if (circuitWindow > 0) {
+                CircuitBreaker breaker =
+                    new CircuitBreaker(circuitWindow, ServletUtil.getIntProperty(properties, "pacs.circuit.min.calls",
+                        10), Double.parseDouble(properties.getProperty("pacs.circuit.failure.rate", "0.5")),
+                        ServletUtil.getLongProperty(properties, "pacs.circuit.slow.call", 0L),
+                        ServletUtil.getLongProperty(properties, "pacs.circuit.open.duration", 30000L),
+                        ServletUtil.getIntProperty(properties, "pacs.circuit.trial.calls", 3));
+                this.getServletContext().setAttribute("circuitBreaker", breaker);
+                DicomNode secondary = ServletUtil.getSecondaryPacsNode(properties);
+                LOGGER.info("Circuit breaker configuration (window={}, failureRate={}, openDuration={}s, secondary={})",
+                    new Object[] { circuitWindow, breaker.getFailureRate(),
+                        TimeUnit.MILLISECONDS.toSeconds(breaker.getOpenDuration()),
+                        secondary == null ? null : secondary.getAet() });
+            }
+
+            String sourceName = properties.getProperty("manifest.source", DicomManifestSource.NAME).trim();
+            if (!DicomManifestSource.NAME.equals(sourceName)) {
+                try {
+                    ManifestSource source = loadManifestSource(sourceName);
+                    source.init(properties);
+                    manifestSource = source;
+                    this.getServletContext().setAttribute("manifestSource", source);
+                    LOGGER.info("Manifest source: {}", source.getName());
+                } catch (Exception e) {
+                    StringUtil.logError(LOGGER, e, "Cannot initialize the manifest source " + sourceName);
+                }
+            }
+
+            String qidoURL = properties.getProperty("pacs.qido.url");
+            if (StringUtil.hasText(qidoURL)) {
+                QidoClient qidoClient =
+                    new QidoClient(qidoURL, ServletUtil.getIntProperty(properties, "pacs.qido.limit", 0),
+                        ServletUtil.getIntProperty(properties, "pacs.qido.concurrency", 4),
+                        ServletUtil.getIntProperty(properties, "pacs.qido.connect.timeout", 5000),
+                        ServletUtil.getIntProperty(properties, "pacs.qido.read.timeout", 60000),
+                        properties.getProperty("pacs.qido.login", null));
+                this.getServletContext().setAttribute("qidoClient", qidoClient);
+                LOGGER.info("QIDO-RS query configuration (url={}, limit={}, concurrency={})", new Object[] {
+                    qidoClient.getBaseURL(), qidoClient.getPageSize(), qidoClient.getConcurrency() });
+            }
+
+            List<DicomNode> pacsNodes = ServletUtil.getPacsNodes(properties);
+            if (pacsNodes.size() > 1) {
+                PacsCluster cluster =
+                    new PacsCluster(pacsNodes, Boolean.valueOf(properties.getProperty("pacs.hedge.enabled", "false")),
+                        ServletUtil.getLongProperty(properties, "pacs.hedge.min.delay", 100L));
+                this.getServletContext().setAttribute("pacsCluster", cluster);
+                LOGGER.info("C-FIND queries are balanced between {} nodes (hedging={})", cluster.size(),
+                    cluster.isHedging());
+            }
+
+            int poolSize = ServletUtil.getIntProperty(properties, "pacs.pool.size", 0);
+            if (poolSize > 0) {
+                associationPool = new AssociationPool(poolSize, ServletUtil.getLongProperty(properties,
+                    "pacs.pool.max.idle", AssociationPool.DEFAULT_MAX_IDLE_TIME), ServletUtil.getLongProperty(
+                    properties, "pacs.pool.borrow.timeout", AssociationPool.DEFAULT_BORROW_TIMEOUT),
+                    ServletUtil.getLongProperty(properties, "pacs.pool.echo.idle",
+                        AssociationPool.DEFAULT_ECHO_IDLE_TIME), ServletUtil.getIntProperty(properties,
+                        "pacs.pool.max.ops", 1));
+                this.getServletContext().setAttribute("associationPool", associationPool);
+                LOGGER.info("DICOM association pool configuration (size={}, maxIdle={}s, maxOps={})", new Object[] {
+                    poolSize, TimeUnit.MILLISECONDS.toSeconds(associationPool.getMaxIdleTime()),
+                    associationPool.getMaxOpsInvoked() });
+            }
+
+            int studyCacheSize = ServletUtil.getIntProperty(properties, "cache.study.size", 0);
+            if (studyCacheSize > 0) {
+                StudyCache studyCache =
+                    new StudyCache(studyCacheSize, ServletUtil.getLongProperty(properties, "cache.study.ttl", 300000L));
+                this.getServletContext().setAttribute("studyCache", studyCache);
+                queryCaches.add(studyCache);
+                LOGGER.info("Study cache configuration (size={}, ttl={}s)", studyCacheSize,
+                    TimeUnit.MILLISECONDS.toSeconds(studyCache.getTimeToLive()));
+            }
+            int instanceCacheSize = ServletUtil.getIntProperty(properties, "cache.instance.size", 0);
+            if (instanceCacheSize > 0) {
+                InstanceCache instanceCache =
+                    new InstanceCache(instanceCacheSize, ServletUtil.getLongProperty(properties, "cache.instance.ttl",
+                        3600000L));
+                this.getServletContext().setAttribute("instanceCache", instanceCache);
+                queryCaches.add(instanceCache);
+                LOGGER.info("Instance cache configuration (size={}, ttl={}s)", instanceCacheSize,
+                    TimeUnit.MILLISECONDS.toSeconds(instanceCache.getTimeToLive()));
+            }
+            int negativeCacheSize = ServletUtil.getIntProperty(properties, "cache.negative.size", 0);
+            if (negativeCacheSize > 0) {
+                NegativeCache negativeCache =
+                    new NegativeCache(negativeCacheSize, ServletUtil.getLongProperty(properties, "cache.negative.ttl",
+                        60000L));
+                this.getServletContext().setAttribute("negativeCache", negativeCache);
+                queryCaches.add(negativeCache);
+                LOGGER.info("Negative cache configuration (size={}, ttl={}s)", negativeCacheSize,
+                    TimeUnit.MILLISECONDS.toSeconds(negativeCache.getTimeToLive()));
+            }
+            int seriesCacheSize = ServletUtil.getIntProperty(properties, "cache.series.size", 0);
+            if (seriesCacheSize > 0) {
+                SeriesCache seriesCache =
+                    new SeriesCache(seriesCacheSize, ServletUtil.getLongProperty(properties, "cache.series.ttl",
+                        3600000L));
+                this.getServletContext().setAttribute("seriesCache", seriesCache);
+                queryCaches.add(seriesCache);
+                LOGGER.info("Series cache configuration (size={}, ttl={}s)", seriesCacheSize,
+                    TimeUnit.MILLISECONDS.toSeconds(seriesCache.getTimeToLive()));
+            }
+            int treeCacheSize = ServletUtil.getIntProperty(properties, "cache.tree.size", 0);
+            if (treeCacheSize > 0) {
+                StudyTreeCache treeCache =
+                    new StudyTreeCache(treeCacheSize, ServletUtil.getLongProperty(properties, "cache.tree.ttl",
+                        3600000L));
+                this.getServletContext().setAttribute("studyTreeCache", treeCache);
+                queryCaches.add(treeCache);
+                LOGGER.info("Study tree cache configuration (size={}, ttl={}s)", treeCacheSize,
+                    TimeUnit.MILLISECONDS.toSeconds(treeCache.getTimeToLive()));
+            }
+            this.getServletContext().setAttribute("queryCaches", queryCaches);
+
+            long probePeriod = ServletUtil.getLongProperty(properties, "pacs.capability.probe.period", -1L);
+            if (probePeriod >= 0) {
+                String file =
+                    properties.getProperty("pacs.capability.file", System.getProperty("java.io.tmpdir")
+                        + "/weasis-pacs-connector/pacs-capabilities.properties");
+                capabilityProbe =
+                    new CapabilityProbe(new File(file), probePeriod,
+                        properties.getProperty("pacs.capability.probe.study.uid"));
+                capabilityProbe.register(new DicomNode(properties.getProperty("aet", "PACS-CONNECTOR")),
+                    ServletUtil.getPacsNode(properties), ServletUtil.buildAdvancedParams(properties));
+                DicomNode secondary = ServletUtil.getSecondaryPacsNode(properties);
+                if (secondary != null) {
+                    capabilityProbe.register(new DicomNode(properties.getProperty("aet", "PACS-CONNECTOR")),
+                        secondary, ServletUtil.buildAdvancedParams(properties));
+                }
+                for (DicomNode archive : ServletUtil.getFederatedPacsNodes(properties).values()) {
+                    capabilityProbe.register(new DicomNode(properties.getProperty("aet", "PACS-CONNECTOR")),
+                        archive, ServletUtil.buildAdvancedParams(properties));
+                }
+                this.getServletContext().setAttribute("pacsCapabilityProbe", capabilityProbe);
+                LOGGER.info("PACS capability probe configuration (period={}s, file={})",
+                    TimeUnit.MILLISECONDS.toSeconds(probePeriod), file);
+            }
             manifestManagerThread.start();
         }
     }
@@ -116,6 +321,37 @@ public class ManifestManager extends HttpServlet {
         LOGGER.info("Stop the manifest manager servlet");
 
         manifestManagerThread.interrupt();
+        if (queryExecutor != null) {
+            queryExecutor.shutdownNow();
+        }
+        if (federationExecutor != null) {
+            federationExecutor.shutdownNow();
+        }
+        if (associationPool != null) {
+            associationPool.close();
+        }
+        if (capabilityProbe != null) {
+            capabilityProbe.close();
+        }
+        if (manifestSource != null) {
+            manifestSource.close();
+        }
+        for (QueryCache<?, ?> cache : queryCaches) {
+            cache.purge();
+        }
+    }
+
+    /**
+     * @param name
+     *            the name of a source registered in META-INF/services or the class name of a source
+     */
+    private static ManifestSource loadManifestSource(String name) throws Exception {
+        for (ManifestSource source : ServiceLoader.load(ManifestSource.class, ManifestManager.class.getClassLoader())) {
+            if (name.equals(source.getName())) {
+                return source;
+            }
+        }
+        return (ManifestSource) Class.forName(name).newInstance();
     }
 
     // Get map where the oldest entry when the limit size is reached
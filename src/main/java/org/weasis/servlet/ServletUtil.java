@@ -27,18 +27,32 @@ import java.net.UnknownHostException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 
+import org.dcm4che3.net.QueryOption;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.weasis.dicom.data.Patient;
+import org.weasis.dicom.data.SOPInstance;
 import org.weasis.dicom.data.Series;
 import org.weasis.dicom.data.Study;
 import org.weasis.dicom.data.xml.Base64;
@@ -47,15 +61,34 @@ import org.weasis.dicom.param.DicomNode;
 import org.weasis.dicom.param.TlsOptions;
 import org.weasis.dicom.util.StringUtil;
 import org.weasis.dicom.util.StringUtil.Suffix;
-import org.weasis.dicom.wado.BuildManifestDcmQR;
+import org.weasis.dicom.wado.DicomManifestSource;
 import org.weasis.dicom.wado.DicomQueryParams;
+import org.weasis.dicom.wado.ManifestSource;
+import org.weasis.dicom.wado.QueryBatcher;
+import org.weasis.dicom.wado.QueryStrategy;
 import org.weasis.dicom.wado.WadoParameters;
+import org.weasis.dicom.wado.WadoQuery;
+import org.weasis.dicom.wado.WadoQueryException;
+import org.weasis.dicom.wado.XmlManifest;
 import org.weasis.dicom.wado.WadoQuery.WadoMessage;
+import org.weasis.dicom.wado.cache.InstanceCache;
+import org.weasis.dicom.wado.cache.NegativeCache;
+import org.weasis.dicom.wado.cache.SeriesCache;
+import org.weasis.dicom.wado.cache.StudyCache;
+import org.weasis.dicom.wado.cache.StudyTreeCache;
+import org.weasis.dicom.wado.net.AssociationPool;
+import org.weasis.dicom.wado.net.CapabilityProbe;
+import org.weasis.dicom.wado.net.CircuitBreaker;
+import org.weasis.dicom.wado.net.ConcurrencyLimiter;
+import org.weasis.dicom.wado.net.PacsCapabilities;
+import org.weasis.dicom.wado.net.PacsCluster;
+import org.weasis.dicom.wado.net.QidoClient;
 import org.weasis.dicom.wado.thread.ManifestBuilder;
 import org.weasis.util.EncryptUtils;
 
 public class ServletUtil {
     private static Logger LOGGER = LoggerFactory.getLogger(ServletUtil.class);
+    private static final ManifestSource DICOM_SOURCE = new DicomManifestSource();
 
     private ServletUtil() {
     }
@@ -121,9 +154,15 @@ public class ServletUtil {
 
     public static boolean isRequestAllowed(HttpServletRequest request, Properties pacsProperties, Logger logger)
         throws IOException {
+        return isRequestAllowed(request, pacsProperties.getProperty("hosts.allow"), logger);
+    }
 
+    /**
+     * @param hosts
+     *            the IPs or hostnames (comma separated values) allowed, no value means no restriction
+     */
+    public static boolean isRequestAllowed(HttpServletRequest request, String hosts, Logger logger) {
         // Test if this client is allowed
-        String hosts = pacsProperties.getProperty("hosts.allow");
         if (hosts != null && !hosts.trim().equals("")) {
             String clientHost = request.getRemoteHost();
             String clientIP = request.getRemoteAddr();
@@ -163,28 +202,187 @@ public class ServletUtil {
         return StringUtil.getTruncatedString(buffer.toString(), 30, Suffix.NO);
     }
 
-    public static WadoMessage getPatientList(DicomQueryParams params) {
+    /**
+     * Builds the manifest from the patient list of the PACS and of the federated archives. Each archive is written in
+     * its own wado_query element with its WADO parameters, the instances already found in the PACS or in a previous
+     * archive are removed from the next archives.
+     */
+    public static WadoQuery buildWadoQuery(DicomQueryParams params) throws WadoQueryException {
+        List<DicomQueryParams> archives = new ArrayList<DicomQueryParams>();
+        WadoMessage message = getPatientList(params, archives);
+
+        Set<String> sopInstanceUIDs = new HashSet<String>();
+        WadoQuery wadoQuery = null;
+        if (!params.getPatients().isEmpty()) {
+            addSopInstanceUIDs(params.getPatients(), sopInstanceUIDs);
+            wadoQuery =
+                new WadoQuery(params.getPatients(), params.getWadoParameters(), params.getCharsetEncoding(),
+                    params.isAcceptNoImage());
+        }
+        for (DicomQueryParams archive : archives) {
+            removeDuplicateInstances(archive.getPatients(), sopInstanceUIDs);
+            if (archive.getPatients().isEmpty()) {
+                continue;
+            }
+            if (wadoQuery == null) {
+                wadoQuery =
+                    new WadoQuery(archive.getPatients(), archive.getWadoParameters(), params.getCharsetEncoding(),
+                        params.isAcceptNoImage());
+            } else {
+                wadoQuery.addArchive(archive.getPatients(), archive.getWadoParameters());
+            }
+        }
+        if (wadoQuery == null) {
+            wadoQuery =
+                new WadoQuery(params.getPatients(), params.getWadoParameters(), params.getCharsetEncoding(),
+                    params.isAcceptNoImage());
+        }
+        wadoQuery.setWadoMessage(message);
+        return wadoQuery;
+    }
+
+    /**
+     * Builds the patient list from the PACS and, in parallel, from the federated archives.
+     *
+     * @param archives
+     *            the list receiving the federated archives having completed their patient list in time
+     */
+    private static WadoMessage getPatientList(DicomQueryParams params, List<DicomQueryParams> archives) {
+        final List<DicomQueryParams> federation = params.getFederatedParams();
+        ExecutorService executor = params.getFederationExecutor();
+        if (federation.isEmpty() || executor == null) {
+            WadoMessage wadoMessage = buildPatientList(params);
+            for (DicomQueryParams archive : federation) {
+                WadoMessage message = buildPatientList(archive);
+                archives.add(archive);
+                if (wadoMessage == null) {
+                    wadoMessage = message;
+                }
+            }
+            return wadoMessage;
+        }
+        List<Future<WadoMessage>> futures = new ArrayList<Future<WadoMessage>>(federation.size());
+        try {
+            for (final DicomQueryParams archive : federation) {
+                futures.add(executor.submit(new Callable<WadoMessage>() {
+
+                    @Override
+                    public WadoMessage call() throws Exception {
+                        return buildPatientList(archive);
+                    }
+                }));
+            }
+            WadoMessage wadoMessage = buildPatientList(params);
+            for (int i = 0; i < federation.size(); i++) {
+                DicomQueryParams archive = federation.get(i);
+                WadoMessage message;
+                try {
+                    long remainingTime = params.getRemainingTime();
+                    message =
+                        remainingTime == Long.MAX_VALUE ? futures.get(i).get() : futures.get(i).get(remainingTime,
+                            TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    stopFederatedBuilds(federation);
+                    break;
+                } catch (TimeoutException e) {
+                    LOGGER.warn("The patient list of {} is ignored, the time budget of the build is over", archive
+                        .getCalledNode().getAet());
+                    archive.stop();
+                    continue;
+                } catch (ExecutionException e) {
+                    StringUtil.logError(LOGGER, e.getCause(), "Error when building the patient list of "
+                        + archive.getCalledNode().getAet());
+                    continue;
+                }
+                archives.add(archive);
+                if (wadoMessage == null) {
+                    wadoMessage = message;
+                }
+            }
+            return wadoMessage;
+        } finally {
+            for (Future<WadoMessage> future : futures) {
+                // The threads are shared by all the builds
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static void stopFederatedBuilds(List<DicomQueryParams> archives) {
+        for (DicomQueryParams archive : archives) {
+            archive.stop();
+        }
+    }
+
+    private static void addSopInstanceUIDs(List<Patient> patients, Set<String> sopInstanceUIDs) {
+        for (Patient patient : patients) {
+            for (Study study : patient.getStudies()) {
+                for (Series series : study.getSeriesList()) {
+                    for (SOPInstance sop : series.getSopInstancesList()) {
+                        sopInstanceUIDs.add(sop.getSOPInstanceIUID());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the instances already written in the manifest, then the series, studies and patients left empty. A
+     * study or a series found in several archives is completed by the instances missing in the previous archives.
+     */
+    private static void removeDuplicateInstances(List<Patient> patients, Set<String> sopInstanceUIDs) {
+        for (Iterator<Patient> p = patients.iterator(); p.hasNext();) {
+            Patient patient = p.next();
+            for (Iterator<Study> st = patient.getStudies().iterator(); st.hasNext();) {
+                Study study = st.next();
+                for (Iterator<Series> se = study.getSeriesList().iterator(); se.hasNext();) {
+                    Series series = se.next();
+                    for (Iterator<SOPInstance> sop = series.getSopInstancesList().iterator(); sop.hasNext();) {
+                        if (!sopInstanceUIDs.add(sop.next().getSOPInstanceIUID())) {
+                            sop.remove();
+                        }
+                    }
+                    if (series.getSopInstancesList().isEmpty()) {
+                        se.remove();
+                    }
+                }
+                if (study.getSeriesList().isEmpty()) {
+                    st.remove();
+                }
+            }
+            if (patient.getStudies().isEmpty()) {
+                p.remove();
+            }
+        }
+    }
+
+    private static WadoMessage buildPatientList(DicomQueryParams params) {
         WadoMessage wadoMessage = null;
+        Properties properties = params.getProperties();
+        String key = properties.getProperty("encrypt.key", null);
+        // The ID of the query whose results must match the other IDs of the request (request.[id])
+        String checkedID = null;
         try {
-            Properties properties = params.getProperties();
-            String key = properties.getProperty("encrypt.key", null);
+            ManifestSource source = params.getManifestSource() == null ? DICOM_SOURCE : params.getManifestSource();
             String requestType = params.getRequestType();
 
             if (StudyLevel.equals(requestType) && isRequestIDAllowed(StudyLevel, properties)) {
                 String stuID = params.getReqStudyUID();
                 String anbID = params.getReqAccessionNumber();
                 if (StringUtil.hasText(anbID)) {
-                    BuildManifestDcmQR.buildFromStudyAccessionNumber(params,
-                        ServletUtil.decrypt(anbID, key, AccessionNumber));
+                    source.buildFromStudyAccessionNumbers(params,
+                        Collections.singletonList(ServletUtil.decrypt(anbID, key, AccessionNumber)));
                 } else if (StringUtil.hasText(stuID)) {
-                    BuildManifestDcmQR.buildFromStudyInstanceUID(params, ServletUtil.decrypt(stuID, key, StudyUID));
+                    source.buildFromStudyInstanceUIDs(params,
+                        Collections.singletonList(ServletUtil.decrypt(stuID, key, StudyUID)));
                 } else {
                     LOGGER.info("Not ID found for STUDY request type: {}", requestType);
                 }
             } else if (PatientLevel.equals(requestType) && isRequestIDAllowed(PatientLevel, properties)) {
                 String patID = params.getReqPatientID();
                 if (StringUtil.hasText(patID)) {
-                    BuildManifestDcmQR.buildFromPatientID(params, ServletUtil.decrypt(patID, key, PatientID));
+                    source.buildFromPatientID(params, ServletUtil.decrypt(patID, key, PatientID));
                 }
             } else if (requestType != null) {
                 LOGGER.info("Not supported IID request type: {}", requestType);
@@ -195,50 +393,94 @@ public class ServletUtil {
                 String[] ser = params.getReqSeriesUIDs();
                 String[] obj = params.getReqObjectUIDs();
                 if (obj != null && obj.length > 0 && isRequestIDAllowed(ObjectUID, properties)) {
-                    for (String id : obj) {
-                        BuildManifestDcmQR.buildFromSopInstanceUID(params, decrypt(id, key, ObjectUID));
-                    }
-                    if (!isValidateAllIDs(ObjectUID, key, params, pat, stu, anb, ser)) {
-                        params.getPatients().clear();
-                        return null;
-                    }
+                    checkedID = ObjectUID;
+                    source.buildFromSopInstanceUIDs(params, decrypt(obj, key, ObjectUID));
                 } else if (ser != null && ser.length > 0 && isRequestIDAllowed(SeriesUID, properties)) {
-                    for (String id : ser) {
-                        BuildManifestDcmQR.buildFromSeriesInstanceUID(params, decrypt(id, key, SeriesUID));
-                    }
-                    if (!isValidateAllIDs(SeriesUID, key, params, pat, stu, anb, null)) {
-                        params.getPatients().clear();
-                        return null;
-                    }
+                    checkedID = SeriesUID;
+                    source.buildFromSeriesInstanceUIDs(params, decrypt(ser, key, SeriesUID));
                 } else if (anb != null && anb.length > 0 && isRequestIDAllowed(AccessionNumber, properties)) {
-                    for (String id : anb) {
-                        BuildManifestDcmQR.buildFromStudyAccessionNumber(params, decrypt(id, key, AccessionNumber));
-                    }
-                    if (!isValidateAllIDs(AccessionNumber, key, params, pat, null, null, null)) {
-                        params.getPatients().clear();
-                        return null;
-                    }
+                    checkedID = AccessionNumber;
+                    source.buildFromStudyAccessionNumbers(params, decrypt(anb, key, AccessionNumber));
                 } else if (stu != null && stu.length > 0 && isRequestIDAllowed(StudyUID, properties)) {
-                    for (String id : stu) {
-                        BuildManifestDcmQR.buildFromStudyInstanceUID(params, decrypt(id, key, StudyUID));
-                    }
-                    if (!isValidateAllIDs(StudyUID, key, params, pat, null, null, null)) {
-                        params.getPatients().clear();
-                        return null;
-                    }
+                    checkedID = StudyUID;
+                    source.buildFromStudyInstanceUIDs(params, decrypt(stu, key, StudyUID));
                 } else if (pat != null && pat.length > 0 && isRequestIDAllowed(PatientID, properties)) {
                     for (String id : pat) {
-                        BuildManifestDcmQR.buildFromPatientID(params, decrypt(id, key, PatientID));
+                        source.buildFromPatientID(params, decrypt(id, key, PatientID));
                     }
                 }
             }
+            if (!isValidateAllIDs(checkedID, key, params)) {
+                params.getPatients().clear();
+                return null;
+            }
         } catch (Exception e) {
             StringUtil.logError(LOGGER, e, "Error when building the patient list");
+            // A partial result must pass the same check as a complete result
+            if (!isValidateAllIDs(checkedID, key, params)) {
+                params.getPatients().clear();
+            }
+            wadoMessage = getPartialResultMessage(params, e);
         }
 
         return wadoMessage;
     }
 
+    /**
+     * Keeps the studies resolved before a timeout or an error of the PACS, the series without instance are removed.
+     *
+     * @return a warning message when some results remain and the partial mode is enabled (manifest.partial)
+     */
+    private static WadoMessage getPartialResultMessage(DicomQueryParams params, Exception e) {
+        params.stop();
+        if (!Boolean.valueOf(params.getProperties().getProperty("manifest.partial", "false"))) {
+            return null;
+        }
+        List<Patient> patients = params.getPatients();
+        for (Iterator<Patient> p = patients.iterator(); p.hasNext();) {
+            Patient patient = p.next();
+            for (Iterator<Study> st = patient.getStudies().iterator(); st.hasNext();) {
+                Study study = st.next();
+                for (Iterator<Series> se = study.getSeriesList().iterator(); se.hasNext();) {
+                    if (se.next().isEmpty()) {
+                        se.remove();
+                    }
+                }
+                if (study.getSeriesList().isEmpty()) {
+                    st.remove();
+                }
+            }
+            if (patient.getStudies().isEmpty()) {
+                p.remove();
+            }
+        }
+        if (patients.isEmpty()) {
+            return null;
+        }
+        String cause =
+            e instanceof TimeoutException ? "the archive has not answered in time" : "of an error with the archive";
+        LOGGER.warn("Return a partial manifest because {}", cause);
+        return new WadoMessage("Incomplete result", "Some studies or images may be missing because " + cause + ".",
+            WadoMessage.eLevel.WARN);
+    }
+
+    /**
+     * @param id
+     *            the ID of the query (ObjectUID, SeriesUID, AccessionNumber or StudyUID), null means no check
+     * @return false when the patients do not match the other IDs of the request required by request.[id]
+     */
+    private static boolean isValidateAllIDs(String id, String key, DicomQueryParams params) {
+        if (id == null) {
+            return true;
+        }
+        // Only the IDs of the upper levels can be required
+        boolean instanceLevel = ObjectUID.equals(id);
+        boolean studyLevel = !instanceLevel && !SeriesUID.equals(id);
+        return isValidateAllIDs(id, key, params, params.getReqPatientIDs(),
+            studyLevel ? null : params.getReqStudyUIDs(), studyLevel ? null : params.getReqAccessionNumbers(),
+            instanceLevel ? params.getReqSeriesUIDs() : null);
+    }
+
     private static boolean isValidateAllIDs(String id, String key, DicomQueryParams params, String[] pat, String[] stu,
         String[] anb, String[] ser) {
 
@@ -316,6 +558,14 @@ public class ServletUtil {
         return true;
     }
 
+    static List<String> decrypt(String[] messages, String key, String level) {
+        List<String> list = new ArrayList<String>(messages.length);
+        for (String message : messages) {
+            list.add(decrypt(message, key, level));
+        }
+        return list;
+    }
+
     static String decrypt(String message, String key, String level) {
         if (key != null) {
             String decrypt = EncryptUtils.decrypt(message, key);
@@ -349,14 +599,153 @@ public class ServletUtil {
         return request.getScheme() + "://" + request.getServerName() + ":" + request.getServerPort();
     }
 
-    public static DicomQueryParams buildDicomQueryParams(HttpServletRequest request, Properties props) {
+    /**
+     * @return the TLS configuration of the PACS connection or null when TLS is not enabled
+     */
+    public static AdvancedParams buildAdvancedParams(Properties props) {
+        if (StringUtil.getNULLtoFalse(props.getProperty("pacs.tls.mode"))) {
+            try {
+                TlsOptions tlsOptions =
+                    new TlsOptions(StringUtil.getNULLtoFalse(props.getProperty("pacs.tlsNeedClientAuth")),
+                        props.getProperty("pacs.keystoreURL"), props.getProperty("pacs.keystoreType", "JKS"),
+                        props.getProperty("pacs.keystorePass"),
+                        props.getProperty("pacs.keyPass", props.getProperty("pacs.keystorePass")),
+                        props.getProperty("pacs.truststoreURL"), props.getProperty("pacs.truststoreType", "JKS"),
+                        props.getProperty("pacs.truststorePass"));
+                AdvancedParams params = new AdvancedParams();
+                params.setTlsOptions(tlsOptions);
+                return params;
+            } catch (Exception e) {
+                StringUtil.logError(LOGGER, e, "Cannot set TLS configuration");
+            }
+        }
+        return null;
+    }
 
-        String pacsAET = props.getProperty("pacs.aet", "DCM4CHEE");
-        String pacsHost = props.getProperty("pacs.host", "localhost");
-        int pacsPort = Integer.parseInt(props.getProperty("pacs.port", "11112"));
-        DicomNode calledNode = new DicomNode(pacsAET, pacsHost, pacsPort);
+    private static String getConnectionOptionsKey(Properties props) {
+        if (StringUtil.getNULLtoFalse(props.getProperty("pacs.tls.mode"))) {
+            return "tls:" + props.getProperty("pacs.tlsNeedClientAuth") + ":" + props.getProperty("pacs.keystoreURL")
+                + ":" + props.getProperty("pacs.truststoreURL");
+        }
+        return null;
+    }
 
+    /**
+     * @return the PACS node, the first host when pacs.host is a list of equivalent nodes
+     */
+    public static DicomNode getPacsNode(Properties props) {
+        return getPacsNodes(props).get(0);
+    }
+
+    /**
+     * @return the equivalent nodes of the PACS, pacs.host can be a comma-separated list of host[:port] sharing the
+     *         same AE title (pacs.port is the default port)
+     */
+    public static List<DicomNode> getPacsNodes(Properties props) {
+        String aet = props.getProperty("pacs.aet", "DCM4CHEE");
+        int defaultPort = Integer.parseInt(props.getProperty("pacs.port", "11112"));
+        List<DicomNode> nodes = new ArrayList<DicomNode>();
+        for (String host : props.getProperty("pacs.host", "localhost").split(",")) {
+            String name = host.trim();
+            if (name.length() == 0) {
+                continue;
+            }
+            int port = defaultPort;
+            int index = name.indexOf(':');
+            // Ignore IPv6 addresses
+            if (index > 0 && index == name.lastIndexOf(':')) {
+                port = Integer.parseInt(name.substring(index + 1).trim());
+                name = name.substring(0, index).trim();
+            }
+            nodes.add(new DicomNode(aet, name, port));
+        }
+        if (nodes.isEmpty()) {
+            nodes.add(new DicomNode(aet, "localhost", defaultPort));
+        }
+        return nodes;
+    }
+
+    /**
+     * @return the time budget of a manifest build in milliseconds. The property suffixed by the servlet path (e.g.
+     *         manifest.build.timeout.IHEInvokeImageDisplay) overrides manifest.build.timeout.
+     */
+    private static long getBuildTimeout(HttpServletRequest request, Properties props) {
+        long timeout = getLongProperty(props, "manifest.build.timeout", 0L);
+        String path = request.getServletPath();
+        if (StringUtil.hasText(path)) {
+            timeout = getLongProperty(props, "manifest.build.timeout." + path.substring(path.lastIndexOf('/') + 1),
+                timeout);
+        }
+        return timeout;
+    }
+
+    /**
+     * @return the other archives queried for each manifest by identifier (pacs.federation is a comma-separated list of
+     *         identifiers, each archive is configured with pacs.federation.[id].aet, .host, .port and .wado.url)
+     */
+    public static Map<String, DicomNode> getFederatedPacsNodes(Properties props) {
+        Map<String, DicomNode> nodes = new LinkedHashMap<String, DicomNode>();
+        String federation = props.getProperty("pacs.federation");
+        if (StringUtil.hasText(federation)) {
+            for (String id : federation.split(",")) {
+                String prefix = "pacs.federation." + id.trim() + ".";
+                String aet = props.getProperty(prefix + "aet");
+                if (StringUtil.hasText(aet)) {
+                    nodes.put(id.trim(), new DicomNode(aet, props.getProperty(prefix + "host", "localhost"), Integer
+                        .parseInt(props.getProperty(prefix + "port", "11112"))));
+                } else {
+                    LOGGER.warn("No AET for the federated archive {}", id.trim());
+                }
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * @return the secondary PACS (e.g. a replica archive) used when the circuit of the PACS is open or null when it is
+     *         not configured
+     */
+    public static DicomNode getSecondaryPacsNode(Properties props) {
+        String aet = props.getProperty("pacs.secondary.aet");
+        if (!StringUtil.hasText(aet)) {
+            return null;
+        }
+        return new DicomNode(aet, props.getProperty("pacs.secondary.host", "localhost"), Integer.parseInt(props
+            .getProperty("pacs.secondary.port", "11112")));
+    }
+
+    public static DicomQueryParams buildDicomQueryParams(HttpServletRequest request, Properties props) {
+        ServletContext ctx = request.getSession().getServletContext();
+
+        DicomNode calledNode = getPacsNode(props);
         String wadoQueriesURL = props.getProperty("pacs.wado.url", props.getProperty("server.base.url") + "/wado");
+
+        CircuitBreaker breaker = (CircuitBreaker) ctx.getAttribute("circuitBreaker");
+        DicomNode secondaryNode = breaker == null ? null : getSecondaryPacsNode(props);
+        String secondaryWadoURL = props.getProperty("pacs.secondary.wado.url", wadoQueriesURL);
+        DicomQueryParams queryParams;
+        if (secondaryNode != null && breaker.isOpen(calledNode)) {
+            LOGGER.info("The circuit of {} is open, the manifest is built with {}", calledNode.getAet(),
+                secondaryNode.getAet());
+            queryParams = buildDicomQueryParams(request, props, secondaryNode, secondaryWadoURL);
+        } else {
+            queryParams = buildDicomQueryParams(request, props, calledNode, wadoQueriesURL);
+            if (secondaryNode != null) {
+                // When the circuit opens during the build, the next queries are sent to the secondary PACS
+                queryParams.setSecondaryParams(buildDicomQueryParams(request, props, secondaryNode,
+                    secondaryWadoURL));
+            }
+        }
+        for (Entry<String, DicomNode> archive : getFederatedPacsNodes(props).entrySet()) {
+            queryParams.addFederatedParams(buildDicomQueryParams(request, props, archive.getValue(),
+                props.getProperty("pacs.federation." + archive.getKey() + ".wado.url", wadoQueriesURL)));
+        }
+        return queryParams;
+    }
+
+    private static DicomQueryParams buildDicomQueryParams(HttpServletRequest request, Properties props,
+        DicomNode calledNode, String wadoQueriesURL) {
+        ServletContext ctx = request.getSession().getServletContext();
         boolean onlysopuid = StringUtil.getNULLtoFalse(props.getProperty("wado.onlysopuid"));
         String addparams = props.getProperty("wado.addparams", "");
         String overrideTags = props.getProperty("wado.override.tags", null);
@@ -377,29 +766,47 @@ public class ServletUtil {
             }
         }
 
-        boolean tls = StringUtil.getNULLtoFalse(props.getProperty("pacs.tls.mode"));
-        AdvancedParams params = null;
-        if (tls) {
-            try {
-                TlsOptions tlsOptions =
-                    new TlsOptions(StringUtil.getNULLtoFalse(props.getProperty("pacs.tlsNeedClientAuth")),
-                        props.getProperty("pacs.keystoreURL"), props.getProperty("pacs.keystoreType", "JKS"),
-                        props.getProperty("pacs.keystorePass"),
-                        props.getProperty("pacs.keyPass", props.getProperty("pacs.keystorePass")),
-                        props.getProperty("pacs.truststoreURL"), props.getProperty("pacs.truststoreType", "JKS"),
-                        props.getProperty("pacs.truststorePass"));
-                params = new AdvancedParams();
-                params.setTlsOptions(tlsOptions);
-            } catch (Exception e) {
-                StringUtil.logError(LOGGER, e, "Cannot set TLS configuration");
-            }
-
+        AdvancedParams params = buildAdvancedParams(props);
+        String optionsKey = getConnectionOptionsKey(props);
+        if (params == null) {
+            params = new AdvancedParams();
         }
 
-        return new DicomQueryParams(new DicomNode(props.getProperty("aet", "PACS-CONNECTOR")), calledNode, request,
-            wado, props.getProperty("pacs.db.encoding", "utf-8"),
-            StringUtil.getNULLtoFalse(props.getProperty("accept.noimage")), params, props);
-
+        DicomQueryParams queryParams =
+            new DicomQueryParams(new DicomNode(props.getProperty("aet", "PACS-CONNECTOR")), calledNode, request, wado,
+                props.getProperty("pacs.db.encoding", "utf-8"),
+                StringUtil.getNULLtoFalse(props.getProperty("accept.noimage")), params, props);
+        CapabilityProbe probe = (CapabilityProbe) ctx.getAttribute("pacsCapabilityProbe");
+        PacsCapabilities capabilities = probe == null ? null : probe.getCapabilities(calledNode);
+        queryParams.setCapabilities(capabilities);
+
+        if (capabilities != null && capabilities.isCombinedDateTimeMatching()) {
+            params.getQueryOptions().add(QueryOption.DATETIME);
+            optionsKey = optionsKey == null ? "datetime" : optionsKey + ":datetime";
+        }
+        if (QueryStrategy.RELATIONAL == queryParams.getQueryStrategy()) {
+            params.getQueryOptions().add(QueryOption.RELATIONAL);
+            optionsKey = optionsKey == null ? "relational" : optionsKey + ":relational";
+        }
+        queryParams.setAssociationPool((AssociationPool) ctx.getAttribute("associationPool"), optionsKey);
+        queryParams.setStudyCache((StudyCache) ctx.getAttribute("studyCache"));
+        queryParams.setInstanceCache((InstanceCache) ctx.getAttribute("instanceCache"));
+        queryParams.setNegativeCache((NegativeCache) ctx.getAttribute("negativeCache"));
+        queryParams.setSeriesCache((SeriesCache) ctx.getAttribute("seriesCache"));
+        queryParams.setStudyTreeCache((StudyTreeCache) ctx.getAttribute("studyTreeCache"));
+        queryParams.setQueryBatcher((QueryBatcher) ctx.getAttribute("queryBatcher"));
+        queryParams.setConcurrencyLimiter((ConcurrencyLimiter) ctx.getAttribute("concurrencyLimiter"));
+        queryParams.setCircuitBreaker((CircuitBreaker) ctx.getAttribute("circuitBreaker"));
+        queryParams.setQueryExecutor((ExecutorService) ctx.getAttribute("queryExecutor"));
+        queryParams.setFederationExecutor((ExecutorService) ctx.getAttribute("federationExecutor"));
+        if (PacsCapabilities.getNodeKey(getPacsNode(props)).equals(PacsCapabilities.getNodeKey(calledNode))) {
+            // Not for the secondary PACS and the federated archives
+            queryParams.setPacsCluster((PacsCluster) ctx.getAttribute("pacsCluster"));
+            queryParams.setQidoClient((QidoClient) ctx.getAttribute("qidoClient"));
+            queryParams.setManifestSource((ManifestSource) ctx.getAttribute("manifestSource"));
+        }
+        queryParams.setBuildTimeout(getBuildTimeout(request, props));
+        return queryParams;
     }
 
     public static ManifestBuilder buildManifest(HttpServletRequest request, Properties props) throws Exception {
@@ -413,7 +820,8 @@ public class ServletUtil {
             (ConcurrentHashMap<Integer, ManifestBuilder>) ctx.getAttribute("manifestBuilderMap");
 
         ExecutorService executor = (ExecutorService) ctx.getAttribute("manifestExecutor");
-        builder.submit((ExecutorService) ctx.getAttribute("manifestExecutor"));
+        builder.submit(executor, (ConcurrentHashMap<String, Future<XmlManifest>>) ctx
+            .getAttribute("manifestInFlightMap"));
         builderMap.put(builder.getRequestId(), builder);
         return builder;
     }
@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming JSON parser reading one event at a time, so a large response is never loaded in memory. The parser is
+ * lenient: the separators (comma and colon) are not validated.
+ */
+public class JsonReader {
+
+    public enum Event {
+        START_OBJECT, END_OBJECT, START_ARRAY, END_ARRAY, KEY_NAME, VALUE_STRING, VALUE_NUMBER, VALUE_TRUE,
+        VALUE_FALSE, VALUE_NULL
+    }
+
+    private final Reader reader;
+    // true for an object, false for an array
+    private final List<Boolean> stack = new ArrayList<Boolean>();
+    private final StringBuilder buffer = new StringBuilder();
+    private boolean expectKey = false;
+    private int peeked = -2;
+    private String string;
+
+    /**
+     * @param reader
+     *            the reader, it should be buffered
+     */
+    public JsonReader(Reader reader) {
+        if (reader == null) {
+            throw new IllegalArgumentException("reader cannot be null");
+        }
+        this.reader = reader;
+    }
+
+    /**
+     * @return the next event or null at the end of the stream
+     */
+    public Event next() throws IOException {
+        int c = nextToken();
+        switch (c) {
+            case -1:
+                return null;
+            case '{':
+                stack.add(Boolean.TRUE);
+                expectKey = true;
+                return Event.START_OBJECT;
+            case '}':
+                pop();
+                return Event.END_OBJECT;
+            case '[':
+                stack.add(Boolean.FALSE);
+                expectKey = false;
+                return Event.START_ARRAY;
+            case ']':
+                pop();
+                return Event.END_ARRAY;
+            case '"':
+                string = readString();
+                if (expectKey) {
+                    expectKey = false;
+                    return Event.KEY_NAME;
+                }
+                expectKey = isInObject();
+                return Event.VALUE_STRING;
+            default:
+                string = readLiteral(c);
+                expectKey = isInObject();
+                if ("true".equals(string)) {
+                    return Event.VALUE_TRUE;
+                } else if ("false".equals(string)) {
+                    return Event.VALUE_FALSE;
+                } else if ("null".equals(string)) {
+                    return Event.VALUE_NULL;
+                }
+                return Event.VALUE_NUMBER;
+        }
+    }
+
+    /**
+     * @return the key name, the string value or the number value of the last event
+     */
+    public String getString() {
+        return string;
+    }
+
+    /**
+     * Skips the next value, including all the content of an object or an array.
+     */
+    public void skipValue() throws IOException {
+        skip(0);
+    }
+
+    /**
+     * Skips the remaining content of the current object or array, including its end event.
+     */
+    public void skipRemaining() throws IOException {
+        skip(1);
+    }
+
+    private void skip(int depth) throws IOException {
+        do {
+            Event event = next();
+            if (event == null) {
+                return;
+            }
+            if (event == Event.START_OBJECT || event == Event.START_ARRAY) {
+                depth++;
+            } else if (event == Event.END_OBJECT || event == Event.END_ARRAY) {
+                depth--;
+            }
+        } while (depth > 0);
+    }
+
+    private void pop() throws IOException {
+        if (stack.isEmpty()) {
+            throw new IOException("Unexpected end of JSON structure");
+        }
+        stack.remove(stack.size() - 1);
+        expectKey = isInObject();
+    }
+
+    private boolean isInObject() {
+        return !stack.isEmpty() && stack.get(stack.size() - 1);
+    }
+
+    private int read() throws IOException {
+        if (peeked != -2) {
+            int c = peeked;
+            peeked = -2;
+            return c;
+        }
+        return reader.read();
+    }
+
+    private int nextToken() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == ',' || c == ':');
+        return c;
+    }
+
+    private String readLiteral(int first) throws IOException {
+        buffer.setLength(0);
+        int c = first;
+        while (c != -1 && c != ',' && c != ':' && c != '}' && c != ']' && c != ' ' && c != '\t' && c != '\n'
+            && c != '\r') {
+            buffer.append((char) c);
+            c = read();
+        }
+        peeked = c;
+        return buffer.toString();
+    }
+
+    private String readString() throws IOException {
+        buffer.setLength(0);
+        while (true) {
+            int c = reader.read();
+            if (c == -1) {
+                throw new IOException("Unterminated JSON string");
+            } else if (c == '"') {
+                return buffer.toString();
+            } else if (c == '\\') {
+                c = reader.read();
+                switch (c) {
+                    case 'b':
+                        buffer.append('\b');
+                        break;
+                    case 'f':
+                        buffer.append('\f');
+                        break;
+                    case 'n':
+                        buffer.append('\n');
+                        break;
+                    case 'r':
+                        buffer.append('\r');
+                        break;
+                    case 't':
+                        buffer.append('\t');
+                        break;
+                    case 'u':
+                        char[] hex = new char[4];
+                        for (int i = 0; i < hex.length; i++) {
+                            int h = reader.read();
+                            if (h == -1) {
+                                throw new IOException("Unterminated JSON string");
+                            }
+                            hex[i] = (char) h;
+                        }
+                        try {
+                            buffer.append((char) Integer.parseInt(new String(hex), 16));
+                        } catch (NumberFormatException e) {
+                            throw new IOException("Invalid JSON escape sequence: \\u" + new String(hex));
+                        }
+                        break;
+                    case -1:
+                        throw new IOException("Unterminated JSON string");
+                    default:
+                        // \" \\ \/
+                        buffer.append((char) c);
+                }
+            } else {
+                buffer.append((char) c);
+            }
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.wado;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.weasis.dicom.data.Patient;
+import org.weasis.dicom.data.Series;
+import org.weasis.dicom.data.Study;
+import org.weasis.dicom.param.DicomNode;
+
+/**
+ * Tests the JDBC source with an in-memory H2 database having the tables of dcm4chee 2.x.
+ */
+public class JdbcManifestSourceTest {
+
+    private static final String URL = "jdbc:h2:mem:dcm4chee;DB_CLOSE_DELAY=-1";
+
+    private Connection connection;
+
+    @Before
+    public void setUp() throws SQLException {
+        // Keeps the in-memory database open during the test
+        connection = DriverManager.getConnection(URL, "sa", "");
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        execute("DROP ALL OBJECTS");
+        connection.close();
+    }
+
+    private void execute(String... sql) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            for (String s : sql) {
+                statement.execute(s);
+            }
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * @param dateTimeType
+     *            the SQL type of study_datetime
+     */
+    private void createTables(String dateTimeType) throws SQLException {
+        execute("CREATE TABLE patient (pk BIGINT PRIMARY KEY, pat_id VARCHAR(64), pat_id_issuer VARCHAR(64), "
+            + "pat_name VARCHAR(250), pat_birthdate VARCHAR(8), pat_sex VARCHAR(16))",
+            "CREATE TABLE study (pk BIGINT PRIMARY KEY, patient_fk BIGINT REFERENCES patient(pk), "
+                + "study_iuid VARCHAR(64), study_desc VARCHAR(64), study_datetime " + dateTimeType + ", "
+                + "accession_no VARCHAR(16), study_id VARCHAR(16), ref_physician VARCHAR(250))",
+            "CREATE TABLE series (pk BIGINT PRIMARY KEY, study_fk BIGINT REFERENCES study(pk), "
+                + "series_iuid VARCHAR(64), series_no VARCHAR(12), modality VARCHAR(16), series_desc VARCHAR(64))",
+            "CREATE TABLE instance (pk BIGINT PRIMARY KEY, series_fk BIGINT REFERENCES series(pk), "
+                + "sop_iuid VARCHAR(64), inst_no VARCHAR(12))");
+
+        execute("INSERT INTO patient VALUES (1, '123', 'HOSP_A', 'Doe^John', '19700101', 'M')",
+            "INSERT INTO patient VALUES (2, '123', 'HOSP_B', 'Smith^Jane', '19800202', 'F')",
+            "INSERT INTO study VALUES (10, 1, '1.1', 'Chest', '2014-03-05 10:20:30', 'ACC1', 'S1', 'House')",
+            "INSERT INTO study VALUES (11, 1, '1.2', 'Brain', '2013-01-02 08:00:00', 'ACC2', 'S2', NULL)",
+            "INSERT INTO study VALUES (20, 2, '2.1', 'Knee', '2012-06-07 15:45:00', 'ACC3', 'S3', NULL)",
+            "INSERT INTO series VALUES (100, 10, '1.1.1', '1', 'CT', 'Axial')",
+            "INSERT INTO series VALUES (101, 10, '1.1.2', '2', 'SR', 'Report')",
+            "INSERT INTO series VALUES (110, 11, '1.2.1', '1', 'MR', 'T1')",
+            "INSERT INTO series VALUES (200, 20, '2.1.1', '1', 'MR', 'PD')",
+            "INSERT INTO instance VALUES (1000, 100, '1.1.1.1', '1')",
+            "INSERT INTO instance VALUES (1001, 100, '1.1.1.2', '2')",
+            "INSERT INTO instance VALUES (1002, 100, '1.1.1.3', '3')",
+            "INSERT INTO instance VALUES (1010, 101, '1.1.2.1', '1')",
+            "INSERT INTO instance VALUES (1100, 110, '1.2.1.1', '1')",
+            "INSERT INTO instance VALUES (2000, 200, '2.1.1.1', '1')");
+    }
+
+    private static JdbcManifestSource getSource() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("jdbc.url", URL);
+        properties.setProperty("jdbc.user", "sa");
+        properties.setProperty("jdbc.password", "");
+        // Several groups of UIDs with a small list of values
+        properties.setProperty("jdbc.in.list.size", "2");
+        JdbcManifestSource source = new JdbcManifestSource();
+        source.init(properties);
+        return source;
+    }
+
+    private static DicomQueryParams getParams(final Map<String, String[]> parameters) {
+        HttpServletRequest request =
+            (HttpServletRequest) Proxy.newProxyInstance(JdbcManifestSourceTest.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("getParameterMap".equals(method.getName())) {
+                            return parameters;
+                        }
+                        return null;
+                    }
+                });
+        return new DicomQueryParams(new DicomNode("WEASIS"), new DicomNode("DCM4CHEE", "localhost", 11112), request,
+            new WadoParameters("http://localhost:8080/wado", false, null, null, null), "UTF-8", false, null,
+            new Properties());
+    }
+
+    private static DicomQueryParams getParams() {
+        return getParams(new HashMap<String, String[]>());
+    }
+
+    private static Patient getPatient(List<Patient> patients, String issuer) {
+        for (Patient p : patients) {
+            if (p.hasSameUniqueID("123", issuer)) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    private static int getInstanceCount(List<Patient> patients) {
+        int count = 0;
+        for (Patient p : patients) {
+            for (Study st : p.getStudies()) {
+                for (Series se : st.getSeriesList()) {
+                    count += se.getSopInstancesList().size();
+                }
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testBuildFromPatientIDWithIssuer() throws Exception {
+        createTables("TIMESTAMP");
+        DicomQueryParams params = getParams();
+        getSource().buildFromPatientID(params, "123^^^HOSP_A");
+
+        List<Patient> patients = params.getPatients();
+        assertEquals(1, patients.size());
+        Patient patient = patients.get(0);
+        assertEquals("HOSP_A", patient.getIssuerOfPatientID());
+        assertEquals("Doe John", patient.getPatientName());
+        assertEquals("19700101", patient.getPatientBirthDate());
+        assertEquals("M", patient.getPatientSex());
+        assertEquals(2, patient.getStudies().size());
+        assertEquals(5, getInstanceCount(patients));
+
+        Study study = patient.getStudy("1.1");
+        assertNotNull(study);
+        assertEquals("Chest", study.getStudyDescription());
+        assertEquals("ACC1", study.getAccessionNumber());
+        assertEquals("S1", study.getStudyID());
+        assertEquals("House", study.getReferringPhysicianName());
+        assertNull(patient.getStudy("1.2").getReferringPhysicianName());
+        Series series = study.getSeries("1.1.1");
+        assertEquals("CT", series.getModality());
+        assertEquals("1", series.getSeriesNumber());
+        assertEquals("Axial", series.getSeriesDescription());
+        assertEquals(3, series.getSopInstancesList().size());
+    }
+
+    @Test
+    public void testBuildFromPatientIDWithEncodedIssuer() throws Exception {
+        createTables("TIMESTAMP");
+        DicomQueryParams params = getParams();
+        getSource().buildFromPatientID(params, "123%5E%5E%5EHOSP_B");
+
+        List<Patient> patients = params.getPatients();
+        assertEquals(1, patients.size());
+        assertNotNull(getPatient(patients, "HOSP_B"));
+        assertNotNull(patients.get(0).getStudy("2.1"));
+    }
+
+    @Test
+    public void testBuildFromPatientIDWithoutIssuer() throws Exception {
+        createTables("TIMESTAMP");
+        DicomQueryParams params = getParams();
+        getSource().buildFromPatientID(params, "123");
+
+        // Same Patient ID in two domains
+        List<Patient> patients = params.getPatients();
+        assertEquals(2, patients.size());
+        assertEquals(2, getPatient(patients, "HOSP_A").getStudies().size());
+        assertEquals(1, getPatient(patients, "HOSP_B").getStudies().size());
+        assertEquals(6, getInstanceCount(patients));
+    }
+
+    @Test
+    public void testBuildFromPatientIDWithModalities() throws Exception {
+        createTables("TIMESTAMP");
+        Map<String, String[]> parameters = new HashMap<String, String[]>();
+        parameters.put(DicomQueryParams.ModalitiesInStudy, new String[] { "MR" });
+        DicomQueryParams params = getParams(parameters);
+        getSource().buildFromPatientID(params, "123^^^HOSP_A");
+
+        // Only the study containing a MR series, with all its series
+        Patient patient = params.getPatients().get(0);
+        assertEquals(1, patient.getStudies().size());
+        assertNotNull(patient.getStudy("1.2"));
+    }
+
+    @Test
+    public void testBuildFromStudyInstanceUIDs() throws Exception {
+        createTables("TIMESTAMP");
+        DicomQueryParams params = getParams();
+        getSource().buildFromStudyInstanceUIDs(params, Arrays.asList("1.1", "1.2", "2.1", "9.9"));
+
+        assertEquals(2, params.getPatients().size());
+        assertEquals(6, getInstanceCount(params.getPatients()));
+    }
+
+    @Test
+    public void testBuildFromStudyAccessionNumbers() throws Exception {
+        createTables("TIMESTAMP");
+        DicomQueryParams params = getParams();
+        getSource().buildFromStudyAccessionNumbers(params, Arrays.asList("ACC2", " ", "ACC3"));
+
+        List<Patient> patients = params.getPatients();
+        assertEquals(2, patients.size());
+        assertNotNull(getPatient(patients, "HOSP_A").getStudy("1.2"));
+        assertNull(getPatient(patients, "HOSP_A").getStudy("1.1"));
+        assertNotNull(getPatient(patients, "HOSP_B").getStudy("2.1"));
+    }
+
+    @Test
+    public void testBuildFromSeriesInstanceUIDs() throws Exception {
+        createTables("TIMESTAMP");
+        DicomQueryParams params = getParams();
+        getSource().buildFromSeriesInstanceUIDs(params, Arrays.asList("1.1.2", "2.1.1", "1.1.1"));
+
+        List<Patient> patients = params.getPatients();
+        Study study = getPatient(patients, "HOSP_A").getStudy("1.1");
+        assertEquals(2, study.getSeriesList().size());
+        assertEquals(1, study.getSeries("1.1.2").getSopInstancesList().size());
+        assertEquals(5, getInstanceCount(patients));
+    }
+
+    @Test
+    public void testBuildFromSopInstanceUIDs() throws Exception {
+        createTables("TIMESTAMP");
+        DicomQueryParams params = getParams();
+        // Three groups of two UIDs at most
+        getSource().buildFromSopInstanceUIDs(params,
+            Arrays.asList("1.1.1.1", "1.1.1.3", "1.1.2.1", "1.2.1.1", "2.1.1.1"));
+
+        List<Patient> patients = params.getPatients();
+        assertEquals(5, getInstanceCount(patients));
+        Series series = getPatient(patients, "HOSP_A").getStudy("1.1").getSeries("1.1.1");
+        assertEquals(2, series.getSopInstancesList().size());
+        assertEquals("1.1.1.3", series.getSopInstancesList().get(1).getSOPInstanceIUID());
+        assertEquals("3", series.getSopInstancesList().get(1).getInstanceNumber());
+    }
+
+    @Test
+    public void testNoResult() throws Exception {
+        createTables("TIMESTAMP");
+        DicomQueryParams params = getParams();
+        JdbcManifestSource source = getSource();
+        source.buildFromPatientID(params, "999");
+        source.buildFromStudyInstanceUIDs(params, Collections.singletonList("9.9"));
+        source.buildFromSopInstanceUIDs(params, Collections.<String> emptyList());
+
+        assertTrue(params.getPatients().isEmpty());
+    }
+
+    @Test
+    public void testDateTimeAsTimestamp() throws Exception {
+        createTables("TIMESTAMP");
+        DicomQueryParams params = getParams();
+        getSource().buildFromStudyInstanceUIDs(params, Collections.singletonList("1.1"));
+
+        Study study = params.getPatients().get(0).getStudy("1.1");
+        assertEquals("20140305", study.getStudyDate());
+        assertEquals("102030", study.getStudyTime());
+    }
+
+    @Test
+    public void testDateTimeAsString() throws Exception {
+        // Returned as a String by the driver
+        createTables("VARCHAR(32)");
+        execute("UPDATE study SET study_datetime = '2013-01-02T08:05' WHERE pk = 11",
+            "UPDATE study SET study_datetime = '20120607154500.000' WHERE pk = 20");
+        DicomQueryParams params = getParams();
+        getSource().buildFromStudyInstanceUIDs(params, Arrays.asList("1.1", "1.2", "2.1"));
+
+        Patient patient = getPatient(params.getPatients(), "HOSP_A");
+        assertEquals("20140305", patient.getStudy("1.1").getStudyDate());
+        assertEquals("102030", patient.getStudy("1.1").getStudyTime());
+        assertEquals("20130102", patient.getStudy("1.2").getStudyDate());
+        assertEquals("080500", patient.getStudy("1.2").getStudyTime());
+        Study study = getPatient(params.getPatients(), "HOSP_B").getStudy("2.1");
+        assertEquals("20120607", study.getStudyDate());
+        assertEquals("154500", study.getStudyTime());
+    }
+
+    @Test
+    public void testDateOnlyAsString() throws Exception {
+        createTables("VARCHAR(32)");
+        execute("UPDATE study SET study_datetime = '2014-03-05' WHERE pk = 10");
+        DicomQueryParams params = getParams();
+        getSource().buildFromStudyInstanceUIDs(params, Collections.singletonList("1.1"));
+
+        Study study = params.getPatients().get(0).getStudy("1.1");
+        assertEquals("20140305", study.getStudyDate());
+        assertNull(study.getStudyTime());
+    }
+}
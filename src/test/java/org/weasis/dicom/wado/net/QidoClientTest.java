@@ -0,0 +1,280 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.wado.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.net.service.QueryRetrieveLevel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.weasis.dicom.param.DicomParam;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class QidoClientTest {
+
+    private static final String STUDY_1 =
+        "{\"0020000D\":{\"vr\":\"UI\",\"Value\":[\"1.2.1\"]},\"00100020\":{\"vr\":\"LO\",\"Value\":[\"123\"]}}";
+    private static final String STUDY_2 = "{\"0020000D\":{\"vr\":\"UI\",\"Value\":[\"1.2.2\"]}}";
+    private static final String STUDY_3 = "{\"0020000D\":{\"vr\":\"UI\",\"Value\":[\"1.2.3\"]}}";
+
+    private HttpServer server;
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    private volatile int status = 200;
+    // Body by page, the page is selected by the offset parameter
+    private volatile String[] pages = new String[] { "[]" };
+    private volatile int pageSize = 0;
+    private volatile long delay = 0L;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/rs", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String uri = exchange.getRequestURI().toString();
+                requests.add(uri);
+                if (delay > 0) {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                int page = pageSize <= 0 ? 0 : getOffset(uri) / pageSize;
+                String body = page < pages.length ? pages[page] : null;
+                if (body == null || status != 200) {
+                    exchange.sendResponseHeaders(body == null && status == 200 ? 204 : status, -1);
+                } else {
+                    byte[] bytes = body.getBytes("UTF-8");
+                    exchange.getResponseHeaders().add("Content-Type", "application/dicom+json");
+                    exchange.sendResponseHeaders(status, bytes.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(bytes);
+                    out.close();
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private static int getOffset(String uri) {
+        int index = uri.indexOf("offset=");
+        if (index < 0) {
+            return 0;
+        }
+        int end = uri.indexOf('&', index);
+        return Integer.parseInt(uri.substring(index + 7, end < 0 ? uri.length() : end));
+    }
+
+    private QidoClient getClient(int limit) {
+        this.pageSize = limit;
+        return new QidoClient("http://localhost:" + server.getAddress().getPort() + "/rs/", limit, 2, 5000, 5000,
+            null);
+    }
+
+    @Test
+    public void testMatchingAndReturnKeys() throws Exception {
+        pages = new String[] { "[" + STUDY_1 + "]" };
+        List<Attributes> result =
+            getClient(0).query(QueryRetrieveLevel.STUDY, null, Long.MAX_VALUE, new DicomParam(Tag.PatientID, "123"),
+                new DicomParam(Tag.StudyInstanceUID), new DicomParam(Tag.StudyDescription));
+
+        assertEquals(1, requests.size());
+        assertEquals("/rs/studies?00100020=123&includefield=0020000D&includefield=00081030", requests.get(0));
+        assertEquals(1, result.size());
+        assertEquals("1.2.1", result.get(0).getString(Tag.StudyInstanceUID));
+        assertEquals("123", result.get(0).getString(Tag.PatientID));
+    }
+
+    @Test
+    public void testPagingEndsWithIncompletePage() throws Exception {
+        pages = new String[] { "[" + STUDY_1 + "," + STUDY_2 + "]", "[" + STUDY_3 + "]" };
+        List<Attributes> result =
+            getClient(2).query(QueryRetrieveLevel.STUDY, null, Long.MAX_VALUE, new DicomParam(Tag.StudyInstanceUID));
+
+        assertEquals(3, result.size());
+        assertEquals(2, requests.size());
+        assertTrue(requests.get(0).endsWith("limit=2&offset=0"));
+        assertTrue(requests.get(1).endsWith("limit=2&offset=2"));
+    }
+
+    @Test
+    public void testPagingEndsWithEmptyPage() throws Exception {
+        pages = new String[] { "[" + STUDY_1 + "," + STUDY_2 + "]", "[]" };
+        List<Attributes> result =
+            getClient(2).query(QueryRetrieveLevel.STUDY, null, Long.MAX_VALUE, new DicomParam(Tag.StudyInstanceUID));
+
+        assertEquals(2, result.size());
+        assertEquals(2, requests.size());
+    }
+
+    @Test
+    public void testPagingEndsWithNoContent() throws Exception {
+        // No body for the third page: 204 No Content
+        pages = new String[] { "[" + STUDY_1 + "," + STUDY_2 + "]", "[" + STUDY_2 + "," + STUDY_3 + "]" };
+        List<Attributes> result =
+            getClient(2).query(QueryRetrieveLevel.STUDY, null, Long.MAX_VALUE, new DicomParam(Tag.StudyInstanceUID));
+
+        assertEquals(4, result.size());
+        assertEquals(3, requests.size());
+        assertTrue(requests.get(2).endsWith("limit=2&offset=4"));
+    }
+
+    @Test
+    public void testPagingWithTimeBudget() throws Exception {
+        // Each page is answered before the read timeout, but not all the pages within the time budget
+        pages = new String[] { "[" + STUDY_1 + "]", "[" + STUDY_2 + "]", "[" + STUDY_3 + "]", "[" + STUDY_1 + "]" };
+        delay = 200L;
+        try {
+            getClient(1).query(QueryRetrieveLevel.STUDY, null, 500L, new DicomParam(Tag.StudyInstanceUID));
+            assertTrue("A TimeoutException was expected", false);
+        } catch (TimeoutException e) {
+            assertTrue(requests.size() < pages.length);
+        }
+    }
+
+    @Test
+    public void testSingleUIDsInPath() throws Exception {
+        QidoClient client = getClient(0);
+        client.query(QueryRetrieveLevel.SERIES, null, Long.MAX_VALUE, new DicomParam(Tag.StudyInstanceUID, "1.2.1"),
+            new DicomParam(Tag.SeriesInstanceUID));
+        client.query(QueryRetrieveLevel.IMAGE, null, Long.MAX_VALUE, new DicomParam(Tag.StudyInstanceUID, "1.2.1"),
+            new DicomParam(Tag.SeriesInstanceUID, "1.2.1.5"), new DicomParam(Tag.SOPInstanceUID));
+
+        assertEquals("/rs/studies/1.2.1/series?includefield=0020000E", requests.get(0));
+        assertEquals("/rs/studies/1.2.1/series/1.2.1.5/instances?includefield=00080018", requests.get(1));
+    }
+
+    @Test
+    public void testUIDListInQuery() throws Exception {
+        QidoClient client = getClient(0);
+        client.query(QueryRetrieveLevel.SERIES, null, Long.MAX_VALUE, new DicomParam(Tag.StudyInstanceUID, "1.2.1",
+            "1.2.2"), new DicomParam(Tag.SeriesInstanceUID));
+        // A series UID cannot be in the path without a single study UID
+        client.query(QueryRetrieveLevel.IMAGE, null, Long.MAX_VALUE, new DicomParam(Tag.SeriesInstanceUID, "1.2.1.5",
+            "1.2.1.6"), new DicomParam(Tag.SOPInstanceUID));
+        client.query(QueryRetrieveLevel.SERIES, null, Long.MAX_VALUE, new DicomParam(Tag.StudyInstanceUID, "1.2.*"));
+
+        assertEquals("/rs/series?0020000D=1.2.1%2C1.2.2&includefield=0020000E", requests.get(0));
+        assertEquals("/rs/instances?0020000E=1.2.1.5%2C1.2.1.6&includefield=00080018", requests.get(1));
+        assertEquals("/rs/series?0020000D=1.2.*", requests.get(2));
+    }
+
+    @Test
+    public void testPersonNameAndSequence() throws Exception {
+        pages =
+            new String[] { "[{\"00081032\":{\"vr\":\"SQ\",\"Value\":[{\"00080100\":{\"vr\":\"SH\",\"Value\":[\"X\"]},"
+                + "\"00080104\":{\"vr\":\"LO\",\"Value\":[\"Y\"]}}]},"
+                + "\"00100010\":{\"vr\":\"PN\",\"Value\":[{\"Alphabetic\":\"Doe^John\",\"Ideographic\":\"\\u5c71\"}]},"
+                + "\"00080090\":{\"vr\":\"PN\",\"Value\":[{\"Alphabetic\":\"Smith\"}]},"
+                + "\"00081030\":{\"vr\":\"LO\"},"
+                + "\"00080061\":{\"vr\":\"CS\",\"Value\":[\"CT\",\"MR\"]}}]" };
+        List<Attributes> result =
+            getClient(0).query(QueryRetrieveLevel.STUDY, null, Long.MAX_VALUE, new DicomParam(Tag.PatientName));
+
+        assertEquals(1, result.size());
+        Attributes dataset = result.get(0);
+        assertEquals("Doe^John=\u5c71", dataset.getString(Tag.PatientName));
+        assertEquals("Smith", dataset.getString(Tag.ReferringPhysicianName));
+        assertFalse(dataset.contains(Tag.ProcedureCodeSequence));
+        assertTrue(dataset.contains(Tag.StudyDescription));
+        assertNull(dataset.getString(Tag.StudyDescription));
+        assertEquals(2, dataset.getStrings(Tag.ModalitiesInStudy).length);
+    }
+
+    @Test
+    public void testHandler() throws Exception {
+        pages = new String[] { "[" + STUDY_1 + "," + STUDY_2 + "]", "[" + STUDY_3 + "]" };
+        final List<String> uids = new ArrayList<String>();
+        List<Attributes> result =
+            getClient(2).query(QueryRetrieveLevel.STUDY, new FindResponseHandler() {
+
+                @Override
+                public void handle(Attributes dataset) throws Exception {
+                    uids.add(dataset.getString(Tag.StudyInstanceUID));
+                }
+            }, Long.MAX_VALUE, new DicomParam(Tag.StudyInstanceUID));
+
+        assertTrue(result.isEmpty());
+        assertEquals(3, uids.size());
+        assertEquals("1.2.3", uids.get(2));
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotAnArray() throws Exception {
+        pages = new String[] { STUDY_1 };
+        getClient(0).query(QueryRetrieveLevel.STUDY, null, Long.MAX_VALUE, new DicomParam(Tag.StudyInstanceUID));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedString() throws Exception {
+        pages = new String[] { "[{\"0020000D\":{\"vr\":\"UI\",\"Value\":[\"1.2" };
+        getClient(0).query(QueryRetrieveLevel.STUDY, null, Long.MAX_VALUE, new DicomParam(Tag.StudyInstanceUID));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedArray() throws Exception {
+        pages = new String[] { "[" + STUDY_1 + "," };
+        getClient(0).query(QueryRetrieveLevel.STUDY, null, Long.MAX_VALUE, new DicomParam(Tag.StudyInstanceUID));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedValues() throws Exception {
+        pages = new String[] { "[{\"00080061\":{\"vr\":\"CS\",\"Value\":[\"CT\"," };
+        getClient(0).query(QueryRetrieveLevel.STUDY, null, Long.MAX_VALUE, new DicomParam(Tag.ModalitiesInStudy));
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidTag() throws Exception {
+        pages = new String[] { "[{\"PatientID\":{\"vr\":\"LO\",\"Value\":[\"123\"]}}]" };
+        getClient(0).query(QueryRetrieveLevel.STUDY, null, Long.MAX_VALUE, new DicomParam(Tag.PatientID));
+    }
+
+    @Test
+    public void testHttpError() throws Exception {
+        status = 500;
+        try {
+            getClient(0).query(QueryRetrieveLevel.STUDY, null, Long.MAX_VALUE, new DicomParam(Tag.StudyInstanceUID));
+            assertTrue("An IOException was expected", false);
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("500"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnsupportedLevel() throws Exception {
+        getClient(0).query(QueryRetrieveLevel.PATIENT, null, Long.MAX_VALUE, new DicomParam(Tag.PatientID));
+    }
+}
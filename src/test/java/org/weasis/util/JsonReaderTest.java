@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Weasis Team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+import org.weasis.util.JsonReader.Event;
+
+public class JsonReaderTest {
+
+    private static JsonReader getReader(String json) {
+        return new JsonReader(new StringReader(json));
+    }
+
+    @Test
+    public void testEvents() throws IOException {
+        JsonReader json = getReader(" {\"a\" : [1, -2.5e3, true, false, null, \"b\"], \"c\": {}}\n");
+
+        assertEquals(Event.START_OBJECT, json.next());
+        assertEquals(Event.KEY_NAME, json.next());
+        assertEquals("a", json.getString());
+        assertEquals(Event.START_ARRAY, json.next());
+        assertEquals(Event.VALUE_NUMBER, json.next());
+        assertEquals("1", json.getString());
+        assertEquals(Event.VALUE_NUMBER, json.next());
+        assertEquals("-2.5e3", json.getString());
+        assertEquals(Event.VALUE_TRUE, json.next());
+        assertEquals(Event.VALUE_FALSE, json.next());
+        assertEquals(Event.VALUE_NULL, json.next());
+        assertEquals(Event.VALUE_STRING, json.next());
+        assertEquals("b", json.getString());
+        assertEquals(Event.END_ARRAY, json.next());
+        assertEquals(Event.KEY_NAME, json.next());
+        assertEquals("c", json.getString());
+        assertEquals(Event.START_OBJECT, json.next());
+        assertEquals(Event.END_OBJECT, json.next());
+        assertEquals(Event.END_OBJECT, json.next());
+        assertNull(json.next());
+    }
+
+    @Test
+    public void testStringKeyInValue() throws IOException {
+        // A string value is not taken as a key, the next string of the object is a key
+        JsonReader json = getReader("{\"a\":\"b\",\"c\":\"d\"}");
+
+        assertEquals(Event.START_OBJECT, json.next());
+        assertEquals(Event.KEY_NAME, json.next());
+        assertEquals(Event.VALUE_STRING, json.next());
+        assertEquals(Event.KEY_NAME, json.next());
+        assertEquals("c", json.getString());
+        assertEquals(Event.VALUE_STRING, json.next());
+        assertEquals("d", json.getString());
+    }
+
+    @Test
+    public void testEscapes() throws IOException {
+        JsonReader json = getReader("[\"a\\\"b\\\\c\\/d\\n\\t\\u00e9\"]");
+
+        assertEquals(Event.START_ARRAY, json.next());
+        assertEquals(Event.VALUE_STRING, json.next());
+        assertEquals("a\"b\\c/d\n\t\u00e9", json.getString());
+    }
+
+    @Test
+    public void testSkip() throws IOException {
+        JsonReader json = getReader("{\"a\":{\"b\":[1,{\"c\":2}]},\"d\":[3,[4]],\"e\":5}");
+
+        assertEquals(Event.START_OBJECT, json.next());
+        assertEquals(Event.KEY_NAME, json.next());
+        json.skipValue();
+        assertEquals(Event.KEY_NAME, json.next());
+        assertEquals("d", json.getString());
+        assertEquals(Event.START_ARRAY, json.next());
+        json.skipRemaining();
+        assertEquals(Event.KEY_NAME, json.next());
+        assertEquals("e", json.getString());
+        assertEquals(Event.VALUE_NUMBER, json.next());
+        assertEquals(Event.END_OBJECT, json.next());
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        assertNull(getReader("  ").next());
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnterminatedString() throws IOException {
+        JsonReader json = getReader("[\"abc");
+        json.next();
+        json.next();
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnterminatedEscape() throws IOException {
+        JsonReader json = getReader("[\"\\u00");
+        json.next();
+        json.next();
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidEscape() throws IOException {
+        JsonReader json = getReader("[\"\\uzzzz\"]");
+        json.next();
+        json.next();
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnexpectedEnd() throws IOException {
+        JsonReader json = getReader("[]]");
+        json.next();
+        json.next();
+        json.next();
+    }
+}